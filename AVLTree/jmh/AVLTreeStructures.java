@@ -0,0 +1,66 @@
+/*
+ * The trees of this project as benchmarks.Structure, for the JMH benchmarks, which are in a
+ * named package and so cannot refer to them directly.
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+
+import benchmarks.Structure;
+
+public class AVLTreeStructures {
+
+	public static Structure create(String name) {
+		switch (name) {
+		case "AVLTree":
+			return avlTree(new AVLTree<Long, Long>());
+		case "AVLMap":
+			return Structure.navigableMap(new AVLNavigableMap<Long, Long>());
+		case "ConcurrentAVLTree":
+			return concurrentAVLTree(new ConcurrentAVLTree<Long, Long>());
+		default:
+			throw new IllegalArgumentException("Unknown structure " + name);
+		}
+	}
+
+	static Structure avlTree(AVLTree<Long, Long> tree) {
+		return new Structure() {
+			public void add(Long key, Long val) { tree.add(key, val); }
+			public Long get(Long key) { return tree.get(key); }
+			public boolean contains(Long key) { return tree.contains(key); }
+			public void remove(Long key) { tree.remove(key); }
+			public Long min() { return tree.min(); }
+			public Long max() { return tree.max(); }
+			public void removeMin() { tree.removeMin(); }
+			public void removeMax() { tree.removeMax(); }
+			public int size() { return tree.size(); }
+			public int height() { return tree.height(); }
+			public long scan(Long from, int count) {
+				long sum = 0;
+				Iterator<Map.Entry<Long, Long>> it = tree.entries(from, true, Long.MAX_VALUE, true);
+				for (int i = 0; i < count && it.hasNext(); i++)
+					sum += it.next().getValue();
+				return sum;
+			}
+		};
+	}
+
+	static Structure concurrentAVLTree(ConcurrentAVLTree<Long, Long> tree) {
+		return new Structure() {
+			public void add(Long key, Long val) { tree.add(key, val); }
+			public Long get(Long key) { return tree.get(key); }
+			public boolean contains(Long key) { return tree.contains(key); }
+			public void remove(Long key) { tree.remove(key); }
+			public Long min() { return tree.min(); }
+			public Long max() { return tree.max(); }
+			public void removeMin() { tree.removeMin(); }
+			public void removeMax() { tree.removeMax(); }
+			public int size() { return tree.size(); }
+			public int height() { return tree.height(); }
+			public long scan(Long from, int count) {
+				throw new UnsupportedOperationException("ConcurrentAVLTree has no range iterator");
+			}
+		};
+	}
+
+}
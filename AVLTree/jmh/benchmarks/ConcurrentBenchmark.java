@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * AVLTreeBenchmark.benchConcurrentThroughput: a get / add-or-remove mix over n keys, half of
+ * them present, for ConcurrentAVLTree, an AVLTree behind one monitor and ConcurrentSkipListMap.
+ * The thread count is not a parameter in JMH, so run it once per count with -t (see pom.xml).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentBenchmark {
+
+	@Param({ "100000" })
+	int n;
+
+	@Param({ "10", "50" })
+	int writePercent;
+
+	@Param({ "ConcurrentAVLTree", "SynchronizedAVLTree", "SkipList" })
+	String structure;
+
+	Structure s;
+
+	@Setup
+	public void fill() {
+		s = Structure.create(structure);
+		for (long i = 0; i < n; i += 2)
+			s.add(i, i);
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		final Random rnd = new Random();
+	}
+
+	@Benchmark
+	public Long operation(ThreadKeys keys) {
+		long key = keys.rnd.nextInt(n);
+		if (keys.rnd.nextInt(100) >= writePercent)
+			return s.get(key);
+		if ((key & 1) == 0)
+			s.add(key, key);
+		else
+			s.remove(key);
+		return null;
+	}
+
+}
@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.util.Random;
+
+/*
+ * The key patterns and Zipfian generator of AVLTreeWorkloadBenchmark, so that its results and
+ * these can be compared.
+ */
+public final class Keys {
+
+	private Keys() {
+	}
+
+	/*
+	 * Orders in which n distinct keys are inserted and then queried.
+	 */
+	public enum Pattern {
+		SEQUENTIAL, RANDOM, ZIPFIAN, SAWTOOTH;
+
+		/*
+		 * Returns the n distinct keys in insertion order.
+		 */
+		public Long[] keys(int n) {
+			Long[] keys = new Long[n];
+			int period = Math.max(1, (int) Math.ceil(Math.sqrt(n)));		// period * period >= n, so the keys are distinct
+			for (int i = 0; i < n; i++) {
+				if (this == SAWTOOTH)				// ascending runs that restart a little higher each time
+					keys[i] = (long) (i % period) * period + i / period;
+				else
+					keys[i] = (long) i;
+			}
+			if (this == RANDOM || this == ZIPFIAN)
+				shuffle(keys, new Random(n));
+			return keys;
+		}
+
+		/*
+		 * Returns count lookups into keys: in insertion order, or drawn from a Zipfian
+		 * distribution over them for ZIPFIAN.
+		 */
+		public Long[] queries(Long[] keys, int count) {
+			Long[] queries = new Long[count];
+			Zipfian zipf = (this == ZIPFIAN)? new Zipfian(keys.length, new Random(keys.length)) : null;
+			for (int i = 0; i < count; i++)
+				queries[i] = keys[(zipf == null)? i % keys.length : (int) zipf.next()];
+			return queries;
+		}
+	}
+
+	static void shuffle(Long[] keys, Random rnd) {
+		for (int i = keys.length - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+			Long tmp = keys[i];
+			keys[i] = keys[j];
+			keys[j] = tmp;
+		}
+	}
+
+
+
+	/*
+	 * Zipfian ranks in [0, n), rank 0 most frequent, as generated by YCSB's ZipfianGenerator
+	 * (Gray et al., "Quickly Generating Billion-Record Synthetic Databases").
+	 */
+	public static class Zipfian {
+		static final double THETA = 0.99;
+		final long n;
+		final double alpha, zetan, eta;
+		final Random rnd;
+
+		public Zipfian(long n, Random rnd) {
+			this.n = n;
+			this.rnd = rnd;
+			double zeta2 = 1 + Math.pow(0.5, THETA);
+			double zeta = 0;
+			for (long i = 1; i <= n; i++)
+				zeta += 1 / Math.pow(i, THETA);
+			zetan = zeta;
+			alpha = 1 / (1 - THETA);
+			eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+		}
+
+		public long next() {
+			double u = rnd.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)
+				return 0;
+			if (uz < 1 + Math.pow(0.5, THETA))
+				return Math.min(1, n - 1);
+			return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+}
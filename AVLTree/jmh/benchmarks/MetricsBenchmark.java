@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * AVLTreeBenchmark.benchMetricsOverhead under JMH: get, and remove followed by add, on an
+ * AVLTree of n random keys, each forked once with -Davltree.metrics=false and once with true.
+ * With metrics off the guarded hooks are compiled away, so the Off scores should match a
+ * build with no instrumentation, and the On scores show what the counters cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MetricsBenchmark {
+
+	static final int QUERIES = 1 << 20;
+
+	@Param({ "1000000" })
+	int n;
+
+	Structure s;
+	Long[] queries;
+	int next;
+
+	@Setup
+	public void fill() {
+		Long[] keys = Keys.Pattern.RANDOM.keys(n);
+		s = Structure.create("AVLTree");
+		for (Long key : keys)
+			s.add(key, key);
+		Random rnd = new Random(n);
+		queries = new Long[QUERIES];
+		for (int i = 0; i < QUERIES; i++)
+			queries[i] = keys[rnd.nextInt(n)];
+	}
+
+	Long nextQuery() {
+		return queries[next++ & (QUERIES - 1)];
+	}
+
+	Long get() {
+		return s.get(nextQuery());
+	}
+
+	// Leaves the tree as it was, so the size stays n
+	int removeAndAdd() {
+		Long key = nextQuery();
+		s.remove(key);
+		s.add(key, key);
+		return s.size();
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Davltree.metrics=false")
+	public Long getMetricsOff() {
+		return get();
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Davltree.metrics=true")
+	public Long getMetricsOn() {
+		return get();
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Davltree.metrics=false")
+	public int removeAndAddMetricsOff() {
+		return removeAndAdd();
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Davltree.metrics=true")
+	public int removeAndAddMetricsOn() {
+		return removeAndAdd();
+	}
+
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The reads of part one of AVLTreeWorkloadBenchmark: get, contains, min, max, size and height
+ * on a structure holding n keys inserted in the given pattern. get and contains cycle through
+ * the same queries as there. The writes, which change the size, are in WriteBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OperationBenchmark {
+
+	static final int QUERIES = 1 << 20;
+
+	@Param({ "SEQUENTIAL", "RANDOM", "ZIPFIAN", "SAWTOOTH" })
+	Keys.Pattern pattern;
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	int n;
+
+	@Param({ "AVLTree", "AVLMap", "TreeMap", "SkipList" })
+	String structure;
+
+	Structure s;
+	Long[] queries;
+	int next;
+
+	@Setup
+	public void fill() {
+		Long[] keys = pattern.keys(n);
+		queries = pattern.queries(keys, QUERIES);
+		s = Structure.create(structure);
+		for (Long key : keys)
+			s.add(key, key);
+	}
+
+	Long nextQuery() {
+		return queries[next++ & (QUERIES - 1)];
+	}
+
+	@Benchmark
+	public Long get() {
+		return s.get(nextQuery());
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return s.contains(nextQuery());
+	}
+
+	@Benchmark
+	public Long min() {
+		return s.min();
+	}
+
+	@Benchmark
+	public Long max() {
+		return s.max();
+	}
+
+	@Benchmark
+	public int size() {
+		return s.size();
+	}
+
+	@Benchmark
+	public int height() {
+		return s.height();
+	}
+
+}
@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * The structures under test, behind one set of operations, as in AVLTreeWorkloadBenchmark.
+ *
+ * JMH only generates code for benchmarks in a named package, which cannot refer to the trees
+ * in the default package. So the trees are wrapped by AVLTreeStructures, which sits in the
+ * default package and can refer to both, and is looked up by name once per trial; the calls
+ * made while measuring are ordinary interface calls.
+ */
+public interface Structure {
+
+	void add(Long key, Long val);
+	Long get(Long key);
+	boolean contains(Long key);
+	void remove(Long key);
+	Long min();
+	Long max();
+	void removeMin();
+	void removeMax();
+	int size();
+	int height();				// -1 where the structure has no height
+	long scan(Long from, int count);
+
+
+
+	/*
+	 * Returns a new empty structure: one of AVLTree, AVLMap (AVLNavigableMap), TreeMap and
+	 * SkipList, as named in AVLTreeWorkloadBenchmark, or ConcurrentAVLTree or
+	 * SynchronizedAVLTree (an AVLTree behind one monitor) for the concurrent benchmarks.
+	 */
+	static Structure create(String name) {
+		switch (name) {
+		case "TreeMap":
+			return navigableMap(new TreeMap<Long, Long>());
+		case "SkipList":
+			return navigableMap(new ConcurrentSkipListMap<Long, Long>());
+		case "SynchronizedAVLTree":
+			return synchronizedStructure(create("AVLTree"));
+		default:
+			try {
+				return (Structure) Class.forName("AVLTreeStructures").getMethod("create", String.class).invoke(null, name);
+			}
+			catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Cannot create " + name, e);
+			}
+		}
+	}
+
+	static Structure navigableMap(NavigableMap<Long, Long> map) {
+		return new Structure() {
+			public void add(Long key, Long val) { map.put(key, val); }
+			public Long get(Long key) { return map.get(key); }
+			public boolean contains(Long key) { return map.containsKey(key); }
+			public void remove(Long key) { map.remove(key); }
+			public Long min() { return map.firstKey(); }
+			public Long max() { return map.lastKey(); }
+			public void removeMin() { map.pollFirstEntry(); }
+			public void removeMax() { map.pollLastEntry(); }
+			public int size() { return map.size(); }
+			public int height() { return -1; }
+			public long scan(Long from, int count) {
+				long sum = 0;
+				Iterator<Long> it = map.tailMap(from, true).values().iterator();
+				for (int i = 0; i < count && it.hasNext(); i++)
+					sum += it.next();
+				return sum;
+			}
+		};
+	}
+
+	static Structure synchronizedStructure(Structure s) {
+		return new Structure() {
+			public synchronized void add(Long key, Long val) { s.add(key, val); }
+			public synchronized Long get(Long key) { return s.get(key); }
+			public synchronized boolean contains(Long key) { return s.contains(key); }
+			public synchronized void remove(Long key) { s.remove(key); }
+			public synchronized Long min() { return s.min(); }
+			public synchronized Long max() { return s.max(); }
+			public synchronized void removeMin() { s.removeMin(); }
+			public synchronized void removeMax() { s.removeMax(); }
+			public synchronized int size() { return s.size(); }
+			public synchronized int height() { return s.height(); }
+			public synchronized long scan(Long from, int count) { return s.scan(from, count); }
+		};
+	}
+
+}
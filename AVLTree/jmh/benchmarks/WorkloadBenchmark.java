@@ -0,0 +1,104 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Part two of AVLTreeWorkloadBenchmark: the YCSB core workloads A-F on n preloaded records,
+ * with Zipfian key choice except for D, which reads the most recently inserted records.
+ * Each invocation is one operation of the mix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WorkloadBenchmark {
+
+	/*
+	 * Percentages of reads, updates, inserts, scans and read-modify-writes.
+	 */
+	public enum Mix {
+		A(50, 50, 0, 0, 0),				// update heavy
+		B(95, 5, 0, 0, 0),				// read mostly
+		C(100, 0, 0, 0, 0),				// read only
+		D(95, 0, 5, 0, 0),				// read latest
+		E(0, 0, 5, 95, 0),				// short ranges
+		F(50, 0, 0, 0, 50);				// read-modify-write
+
+		final int read, update, insert, scan, readModifyWrite;
+
+		Mix(int read, int update, int insert, int scan, int readModifyWrite) {
+			this.read = read;
+			this.update = update;
+			this.insert = insert;
+			this.scan = scan;
+			this.readModifyWrite = readModifyWrite;
+		}
+	}
+
+	@Param({ "A", "B", "C", "D", "E", "F" })
+	Mix mix;
+
+	@Param({ "1000000" })
+	int n;
+
+	@Param({ "AVLTree", "AVLMap", "TreeMap", "SkipList" })
+	String structure;
+
+	Structure s;
+	Long[] keys;
+	long inserted;
+	Random rnd;
+	Keys.Zipfian zipf;
+
+	@Setup
+	public void load() {
+		s = Structure.create(structure);
+		keys = Keys.Pattern.RANDOM.keys(n);
+		for (Long key : keys)
+			s.add(key, key);
+		inserted = n;
+		rnd = new Random(n);
+		zipf = new Keys.Zipfian(n, rnd);
+	}
+
+	@Benchmark
+	public long operation() {
+		int dice = rnd.nextInt(100);
+		Long key = (mix == Mix.D)? Long.valueOf(inserted - 1 - Math.min(zipf.next(), inserted - 1))
+				: keys[(int) zipf.next()];
+		if ((dice -= mix.read) < 0) {
+			Long val = s.get(key);
+			return (val == null)? 0 : val;
+		}
+		if ((dice -= mix.update) < 0) {
+			s.add(key, key + 1);
+			return 0;
+		}
+		if ((dice -= mix.insert) < 0) {
+			s.add(inserted, inserted);
+			inserted++;
+			return 0;
+		}
+		if ((dice -= mix.scan) < 0)
+			return s.scan(key, 1 + rnd.nextInt(100));
+		Long val = s.get(key);
+		s.add(key, (val == null)? 0 : val + 1);
+		return 0;
+	}
+
+}
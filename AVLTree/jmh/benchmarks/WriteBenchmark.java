@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/*
+ * The writes of part one of AVLTreeWorkloadBenchmark: add fills an empty structure with n keys
+ * in the given pattern, remove takes them out again in the same order, and removeMin and
+ * removeMax drain a full structure from one end.
+ *
+ * Each invocation makes n calls on a structure prepared before the iteration, so scores and
+ * the GC profiler's gc.alloc.rate.norm are per n operations: divide by n for one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class WriteBenchmark {
+
+	@Param({ "SEQUENTIAL", "RANDOM", "ZIPFIAN", "SAWTOOTH" })
+	Keys.Pattern pattern;
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	int n;
+
+	@Param({ "AVLTree", "AVLMap", "TreeMap", "SkipList" })
+	String structure;
+
+	Long[] keys;
+	Structure s;
+
+	@Setup(Level.Trial)
+	public void createKeys() {
+		keys = pattern.keys(n);
+	}
+
+	// Empty for add, full for the others
+	@Setup(Level.Iteration)
+	public void prepare(BenchmarkParams params) {
+		s = Structure.create(structure);
+		if (!params.getBenchmark().endsWith(".add")) {
+			for (Long key : keys)
+				s.add(key, key);
+		}
+	}
+
+	@Benchmark
+	public int add() {
+		for (Long key : keys)
+			s.add(key, key);
+		return s.size();
+	}
+
+	@Benchmark
+	public int remove() {
+		for (Long key : keys)
+			s.remove(key);
+		return s.size();
+	}
+
+	@Benchmark
+	public int removeMin() {
+		for (int i = 0; i < n; i++)
+			s.removeMin();
+		return s.size();
+	}
+
+	@Benchmark
+	public int removeMax() {
+		for (int i = 0; i < n; i++)
+			s.removeMax();
+		return s.size();
+	}
+
+}
@@ -0,0 +1,639 @@
+/*
+ * A java.util.NavigableMap backed by an AVLTree, to drop in wherever a TreeMap is used.
+ *
+ * subMap, headMap, tailMap and descendingMap return live views that copy nothing, as TreeMap's
+ * do. A view is another AVLNavigableMap over the same tree that remembers its key range and
+ * direction, so a change made through any view is seen by all of them. Iterators are fail-fast,
+ * driven by the tree's modification count, and support remove.
+ *
+ * put, remove, putIfAbsent, replace, compute, computeIfAbsent, computeIfPresent and merge each
+ * take a single descent of the tree, instead of a lookup followed by an update.
+ *
+ * Null keys and values are not permitted. Entries returned by the navigation methods and the
+ * iterators are snapshots and do not support setValue.
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+public class AVLNavigableMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+
+	private final AVLTree<K, V> tree;
+	private final K lo, hi;						// null when the view is open on that side
+	private final boolean loInclusive, hiInclusive;
+	private final boolean descending;
+
+
+	/**
+	 * Creates an empty map ordered by the natural ordering of its keys.
+	 */
+	public AVLNavigableMap() {
+		this(new AVLTree<K, V>());
+	}
+
+	/**
+	 * Creates an empty map ordered by the given comparator.
+	 *
+	 * @param comparator the ordering of the keys, or null for natural ordering
+	 */
+	public AVLNavigableMap(Comparator<? super K> comparator) {
+		this(new AVLTree<K, V>(comparator));
+	}
+
+	/**
+	 * Creates a map ordered by natural ordering holding the mappings of m.
+	 *
+	 * @param m the mappings to copy
+	 */
+	public AVLNavigableMap(Map<? extends K, ? extends V> m) {
+		this(new AVLTree<K, V>());
+		putAll(m);
+	}
+
+	/**
+	 * Creates a map backed by an existing tree. Changes to either are seen by the other.
+	 *
+	 * @param tree the tree holding the mappings
+	 * @throws IllegalArgumentException if tree is null
+	 */
+	public AVLNavigableMap(AVLTree<K, V> tree) {
+		this(checkTree(tree), null, false, null, false, false);
+	}
+
+	private AVLNavigableMap(AVLTree<K, V> tree, K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+		this.tree = tree;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+	private static <K, V> AVLTree<K, V> checkTree(AVLTree<K, V> tree) {
+		if (tree == null)
+			throw new IllegalArgumentException("Tree is null");
+		return tree;
+	}
+
+
+
+	/*
+	 * Range checks, in the ascending order of the tree whatever the direction of the view.
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(Object a, K b) {
+		Comparator<? super K> comparator = tree.comparator();
+		return (comparator == null)? ((Comparable<? super K>) a).compareTo(b) : comparator.compare((K) a, b);
+	}
+	private boolean tooLow(Object key) {
+		if (lo == null)
+			return false;
+		int cmp = compare(key, lo);
+		return cmp < 0 || (cmp == 0 && !loInclusive);
+	}
+	private boolean tooHigh(Object key) {
+		if (hi == null)
+			return false;
+		int cmp = compare(key, hi);
+		return cmp > 0 || (cmp == 0 && !hiInclusive);
+	}
+	private boolean inRange(Object key) {
+		return !tooLow(key) && !tooHigh(key);
+	}
+	private boolean inClosedRange(Object key) {
+		return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) <= 0);
+	}
+	private K checkKey(K key) {
+		if (!inRange(Objects.requireNonNull(key)))
+			throw new IllegalArgumentException("Key is out of range");
+		return key;
+	}
+
+
+
+	@Override
+	public int size() {
+		if (lo == null && hi == null)
+			return tree.size();
+		int from = (lo == null)? 0 : tree.rank(lo) + ((!loInclusive && tree.contains(lo))? 1 : 0);
+		int to = (hi == null)? tree.size() : tree.rank(hi) + ((hiInclusive && tree.contains(hi))? 1 : 0);
+		return Math.max(0, to - from);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return absLowest() == null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean containsKey(Object key) {
+		Objects.requireNonNull(key);
+		return inRange(key) && tree.contains((K) key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Objects.requireNonNull(key);
+		return inRange(key)? tree.get((K) key) : null;
+	}
+
+	@Override
+	public void clear() {
+		if (lo == null && hi == null) {
+			tree.clear();
+			return;
+		}
+		for (Iterator<Map.Entry<K, V>> it = entryIterator(); it.hasNext(); ) {
+			it.next();
+			it.remove();
+		}
+	}
+
+
+
+	@Override
+	public V put(K key, V value) {
+		Objects.requireNonNull(value);
+		return tree.update(checkKey(key), (k, old) -> value, false);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		Objects.requireNonNull(key);
+		if (!inRange(key))
+			return null;
+		return tree.removeAndGet((K) key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, Object value) {
+		Objects.requireNonNull(key);
+		if (value == null || !inRange(key))
+			return false;
+		V old = tree.update((K) key, (k, current) -> value.equals(current)? null : current, false);
+		return value.equals(old);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		Objects.requireNonNull(value);
+		return tree.putIfAbsent(checkKey(key), value);
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		Objects.requireNonNull(value);
+		return tree.replace(checkKey(key), value);
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		Objects.requireNonNull(oldValue);
+		Objects.requireNonNull(newValue);
+		V old = tree.update(checkKey(key), (k, current) -> oldValue.equals(current)? newValue : current, false);
+		return oldValue.equals(old);
+	}
+
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		Objects.requireNonNull(mappingFunction);
+		return tree.update(checkKey(key), (k, old) -> (old == null)? mappingFunction.apply(k) : old, true);
+	}
+
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		Objects.requireNonNull(remappingFunction);
+		return tree.update(checkKey(key), (k, old) -> (old == null)? null : remappingFunction.apply(k, old), true);
+	}
+
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		Objects.requireNonNull(remappingFunction);
+		return tree.compute(checkKey(key), remappingFunction);
+	}
+
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		Objects.requireNonNull(value);
+		Objects.requireNonNull(remappingFunction);
+		return tree.merge(checkKey(key), value, remappingFunction);
+	}
+
+
+
+	/*
+	 * Navigation in ascending tree order, clipped to the range of the view.
+	 */
+	private Map.Entry<K, V> absLowest() {
+		Map.Entry<K, V> e = tree.nearest(lo, false, loInclusive);
+		return (e == null || tooHigh(e.getKey()))? null : e;
+	}
+	private Map.Entry<K, V> absHighest() {
+		Map.Entry<K, V> e = tree.nearest(hi, true, hiInclusive);
+		return (e == null || tooLow(e.getKey()))? null : e;
+	}
+	private Map.Entry<K, V> absCeiling(K key, boolean inclusive) {
+		if (tooLow(key))
+			return absLowest();
+		Map.Entry<K, V> e = tree.nearest(key, false, inclusive);
+		return (e == null || tooHigh(e.getKey()))? null : e;
+	}
+	private Map.Entry<K, V> absFloor(K key, boolean inclusive) {
+		if (tooHigh(key))
+			return absHighest();
+		Map.Entry<K, V> e = tree.nearest(key, true, inclusive);
+		return (e == null || tooLow(e.getKey()))? null : e;
+	}
+	private static <K> K key(Map.Entry<K, ?> e) {
+		return (e == null)? null : e.getKey();
+	}
+	private static <K> K keyOrThrow(Map.Entry<K, ?> e) {
+		if (e == null)
+			throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return descending? absHighest() : absLowest();
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return descending? absLowest() : absHighest();
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		Objects.requireNonNull(key);
+		return descending? absCeiling(key, false) : absFloor(key, false);
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		Objects.requireNonNull(key);
+		return descending? absCeiling(key, true) : absFloor(key, true);
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		Objects.requireNonNull(key);
+		return descending? absFloor(key, true) : absCeiling(key, true);
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		Objects.requireNonNull(key);
+		return descending? absFloor(key, false) : absCeiling(key, false);
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		Map.Entry<K, V> e = firstEntry();
+		if (e != null)
+			tree.remove(e.getKey());
+		return e;
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		Map.Entry<K, V> e = lastEntry();
+		if (e != null)
+			tree.remove(e.getKey());
+		return e;
+	}
+
+	@Override
+	public K firstKey() {
+		return keyOrThrow(firstEntry());
+	}
+
+	@Override
+	public K lastKey() {
+		return keyOrThrow(lastEntry());
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return key(lowerEntry(key));
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return key(floorEntry(key));
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return key(ceilingEntry(key));
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return key(higherEntry(key));
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		Comparator<? super K> comparator = tree.comparator();
+		if (!descending)
+			return comparator;
+		return Collections.reverseOrder(comparator);
+	}
+
+
+
+	/*
+	 * A view over part of this view's range, given in ascending tree order; a null bound
+	 * keeps the current one. As in TreeMap, an exclusive bound may sit on the edge of the
+	 * current range but an inclusive one must lie inside it.
+	 */
+	private AVLNavigableMap<K, V> range(K newLo, boolean newLoInclusive, K newHi, boolean newHiInclusive) {
+		if (newLo != null && newHi != null && compare(newLo, newHi) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		if (newLo == null) {
+			newLo = lo;
+			newLoInclusive = loInclusive;
+		}
+		else if (newLoInclusive? !inRange(newLo) : !inClosedRange(newLo))
+			throw new IllegalArgumentException("fromKey is out of range");
+		if (newHi == null) {
+			newHi = hi;
+			newHiInclusive = hiInclusive;
+		}
+		else if (newHiInclusive? !inRange(newHi) : !inClosedRange(newHi))
+			throw new IllegalArgumentException("toKey is out of range");
+		return new AVLNavigableMap<K, V>(tree, newLo, newLoInclusive, newHi, newHiInclusive, descending);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		Objects.requireNonNull(fromKey);
+		Objects.requireNonNull(toKey);
+		if (descending)
+			return range(toKey, toInclusive, fromKey, fromInclusive);
+		return range(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		Objects.requireNonNull(toKey);
+		if (descending)
+			return range(toKey, inclusive, null, false);
+		return range(null, false, toKey, inclusive);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		Objects.requireNonNull(fromKey);
+		if (descending)
+			return range(null, false, fromKey, inclusive);
+		return range(fromKey, inclusive, null, false);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	@Override
+	public AVLNavigableMap<K, V> descendingMap() {
+		return new AVLNavigableMap<K, V>(tree, lo, loInclusive, hi, hiInclusive, !descending);
+	}
+
+
+
+	private Iterator<Map.Entry<K, V>> entryIterator() {
+		return tree.entries(lo, loInclusive, hi, hiInclusive, descending);
+	}
+	private Iterator<K> keyIterator() {
+		Iterator<Map.Entry<K, V>> entries = entryIterator();
+		return new Iterator<K>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public K next() {
+				return entries.next().getKey();
+			}
+
+			@Override
+			public void remove() {
+				entries.remove();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return entryIterator();
+			}
+
+			@Override
+			public int size() {
+				return AVLNavigableMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return AVLNavigableMap.this.isEmpty();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+				Object value = (e.getKey() == null)? null : get(e.getKey());
+				return value != null && value.equals(e.getValue());
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+				return e.getKey() != null && AVLNavigableMap.this.remove(e.getKey(), e.getValue());
+			}
+
+			@Override
+			public void clear() {
+				AVLNavigableMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public NavigableSet<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet<K>(this);
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return new KeySet<K>(descendingMap());
+	}
+
+
+
+	/*
+	 * The keys of a map view, as a live NavigableSet.
+	 */
+	private static final class KeySet<E> extends AbstractSet<E> implements NavigableSet<E> {
+		private final AVLNavigableMap<E, ?> m;
+
+		KeySet(AVLNavigableMap<E, ?> m) {
+			this.m = m;
+		}
+
+		@Override
+		public Iterator<E> iterator() {
+			return m.keyIterator();
+		}
+
+		@Override
+		public Iterator<E> descendingIterator() {
+			return m.descendingMap().keyIterator();
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return m.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+		}
+
+		@Override
+		public Comparator<? super E> comparator() {
+			return m.comparator();
+		}
+
+		@Override
+		public E first() {
+			return m.firstKey();
+		}
+
+		@Override
+		public E last() {
+			return m.lastKey();
+		}
+
+		@Override
+		public E lower(E e) {
+			return m.lowerKey(e);
+		}
+
+		@Override
+		public E floor(E e) {
+			return m.floorKey(e);
+		}
+
+		@Override
+		public E ceiling(E e) {
+			return m.ceilingKey(e);
+		}
+
+		@Override
+		public E higher(E e) {
+			return m.higherKey(e);
+		}
+
+		@Override
+		public E pollFirst() {
+			return key(m.pollFirstEntry());
+		}
+
+		@Override
+		public E pollLast() {
+			return key(m.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<E> descendingSet() {
+			return new KeySet<E>(m.descendingMap());
+		}
+
+		@Override
+		public NavigableSet<E> subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+			return new KeySet<E>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+			return new KeySet<E>(m.headMap(toElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+			return new KeySet<E>(m.tailMap(fromElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<E> subSet(E fromElement, E toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public NavigableSet<E> headSet(E toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public NavigableSet<E> tailSet(E fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+
+}
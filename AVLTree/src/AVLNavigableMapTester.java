@@ -0,0 +1,199 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class AVLNavigableMapTester {
+
+	@Test
+	public void testMatchesTreeMap() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(1000);
+			String value = "v" + rnd.nextInt(10);
+			switch (rnd.nextInt(9)) {
+			case 0:
+				assertEquals(expected.put(key, value), map.put(key, value));
+				break;
+			case 1:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			case 2:
+				assertEquals(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+				break;
+			case 3:
+				assertEquals(expected.computeIfAbsent(key, k -> value), map.computeIfAbsent(key, k -> value));
+				break;
+			case 4:
+				assertEquals(expected.merge(key, value, String::concat), map.merge(key, value, String::concat));
+				break;
+			case 5:
+				assertEquals(expected.compute(key, (k, v) -> (v == null || v.length() > 6)? null : v + "x"),
+						map.compute(key, (k, v) -> (v == null || v.length() > 6)? null : v + "x"));
+				break;
+			case 6:
+				assertEquals(expected.replace(key, value), map.replace(key, value));
+				break;
+			case 7:
+				assertEquals(expected.remove(key, value), map.remove(key, value));
+				break;
+			default:
+				assertEquals(expected.replace(key, value, value + "r"), map.replace(key, value, value + "r"));
+				break;
+			}
+		}
+		assertEquals(expected, map);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertEquals(expected.toString(), map.toString());
+
+		for (int key = -1; key <= 1000; key += 7) {
+			assertEquals(expected.lowerEntry(key), map.lowerEntry(key));
+			assertEquals(expected.floorEntry(key), map.floorEntry(key));
+			assertEquals(expected.ceilingEntry(key), map.ceilingEntry(key));
+			assertEquals(expected.higherEntry(key), map.higherEntry(key));
+		}
+		assertEquals(expected.firstEntry(), map.firstEntry());
+		assertEquals(expected.lastEntry(), map.lastEntry());
+		assertEquals(expected.pollFirstEntry(), map.pollFirstEntry());
+		assertEquals(expected.pollLastEntry(), map.pollLastEntry());
+		assertEquals(expected, map);
+	}
+
+	@Test
+	public void testViews() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 500; i++) {
+			int key = rnd.nextInt(1000);
+			map.put(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+
+		for (int i = 0; i < 200; i++) {
+			int a = rnd.nextInt(1100) - 50;
+			int b = a + rnd.nextInt(400);
+			boolean aInclusive = rnd.nextBoolean(), bInclusive = rnd.nextBoolean();
+			assertView(expected.subMap(a, aInclusive, b, bInclusive), map.subMap(a, aInclusive, b, bInclusive), rnd);
+			assertView(expected.headMap(b, bInclusive), map.headMap(b, bInclusive), rnd);
+			assertView(expected.tailMap(a, aInclusive), map.tailMap(a, aInclusive), rnd);
+			assertView(expected.descendingMap().subMap(b, bInclusive, a, aInclusive), map.descendingMap().subMap(b, bInclusive, a, aInclusive), rnd);
+			assertView(expected.descendingMap().headMap(a, aInclusive), map.descendingMap().headMap(a, aInclusive), rnd);
+			assertView(expected.descendingMap().tailMap(b, bInclusive), map.descendingMap().tailMap(b, bInclusive), rnd);
+			assertView(expected.subMap(a, aInclusive, b, bInclusive).descendingMap(), map.subMap(a, aInclusive, b, bInclusive).descendingMap(), rnd);
+		}
+		assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), new ArrayList<Integer>(map.descendingKeySet()));
+		assertEquals(expected.navigableKeySet().subSet(100, 200), map.navigableKeySet().subSet(100, 200));
+		assertEquals(Collections.reverseOrder(), map.descendingMap().comparator());
+	}
+
+	/*
+	 * Compares a view with the matching TreeMap view, including a change made through it.
+	 */
+	private void assertView(NavigableMap<Integer, String> expected, NavigableMap<Integer, String> view, Random rnd) {
+		assertEquals(expected.size(), view.size());
+		assertEquals(expected.isEmpty(), view.isEmpty());
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), new ArrayList<Map.Entry<Integer, String>>(view.entrySet()));
+		assertEquals(new ArrayList<Integer>(expected.descendingKeySet()), new ArrayList<Integer>(view.descendingKeySet()));
+		assertEquals(expected.firstEntry(), view.firstEntry());
+		assertEquals(expected.lastEntry(), view.lastEntry());
+		for (int i = 0; i < 10; i++) {
+			int key = rnd.nextInt(1100) - 50;
+			assertEquals(expected.get(key), view.get(key));
+			assertEquals(expected.lowerKey(key), view.lowerKey(key));
+			assertEquals(expected.floorKey(key), view.floorKey(key));
+			assertEquals(expected.ceilingKey(key), view.ceilingKey(key));
+			assertEquals(expected.higherKey(key), view.higherKey(key));
+		}
+		if (!expected.isEmpty()) {
+			Integer key = expected.firstKey();
+			assertEquals(expected.put(key, "changed"), view.put(key, "changed"));
+			assertEquals(expected.remove(expected.lastKey()), view.remove(view.lastKey()));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutOutOfRange() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		map.headMap(10).put(10, "a");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSubMapOutOfRange() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		map.subMap(0, 10).subMap(5, 11);
+	}
+
+	@Test
+	public void testIteratorRemoveAndFailFast() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		for (int i = 0; i < 100; i++) {
+			map.put(i, "v" + i);
+		}
+
+		Iterator<Integer> keys = map.descendingMap().headMap(80).keySet().iterator();
+		int expected = 99;
+		while (keys.hasNext()) {
+			int key = keys.next();
+			assertEquals(expected--, key);
+			if (key % 2 == 0)
+				keys.remove();
+		}
+		assertEquals(80, expected);
+		assertEquals(91, map.size());
+		assertFalse(map.containsKey(90));
+		assertTrue(map.containsKey(79));
+
+		map.subMap(10, 20).clear();
+		assertEquals(81, map.size());
+		assertEquals(Integer.valueOf(20), map.ceilingKey(10));
+
+		Iterator<Map.Entry<Integer, String>> it = map.entrySet().iterator();
+		it.next();
+		map.put(1000, "x");
+		try {
+			it.next();
+			fail();
+		}
+		catch (ConcurrentModificationException e) {
+			// expected
+		}
+
+		// Overwriting a value is not a structural change
+		it = map.entrySet().iterator();
+		it.next();
+		map.put(1000, "y");
+		it.next();
+	}
+
+	@Test(expected = ConcurrentModificationException.class)
+	public void testComputeMayNotModifyMap() {
+		AVLNavigableMap<Integer, String> map = new AVLNavigableMap<Integer, String>();
+		map.computeIfAbsent(1, k -> map.put(2, "b"));
+	}
+
+	@Test
+	public void testSharesTree() {
+		AVLTree<String, Integer> tree = new AVLTree<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		AVLNavigableMap<String, Integer> map = new AVLNavigableMap<String, Integer>(tree);
+		map.put("b", 1);
+		tree.add("A", 2);
+		assertEquals(Integer.valueOf(2), map.get("a"));
+		assertEquals("A", map.firstKey());
+		assertEquals(String.CASE_INSENSITIVE_ORDER, map.comparator());
+		assertEquals(Integer.valueOf(3), map.merge("B", 2, Integer::sum));
+		assertEquals(Integer.valueOf(3), tree.get("b"));
+	}
+
+}
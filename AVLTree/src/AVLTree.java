@@ -2,6 +2,10 @@
  * An implementation of an AVL self-balancing binary search tree that stores key-value pairs.
  * Search (get), insert (add), and delete (remove) are O(log(n)) time complexity
  * 
+ * Keys are kept in their natural ordering, or in the order of a Comparator given at
+ * construction. An optional KeyPrefix stores a 64-bit order-preserving prefix of each key in
+ * its node, so most comparisons on the way down are settled by comparing two longs.
+ * 
  * @author Tyler McGrew
  * 
  * 
@@ -10,11 +14,29 @@
  * https://stackoverflow.com/a/29704252
  */
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implements BinarySearchTreeInterface<K, T> {
+public class AVLTree<K, T> implements BinarySearchTreeInterface<K, T>, Iterable<Map.Entry<K, T>> {
 
 
 	private class Node {
@@ -22,11 +44,13 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		K key;
 		T val;
 		int height;
+		int size;
 
 		public Node(K key, T val) {
 			this.key = key;
 			this.val = val;
 			height = 1;
+			size = 1;
 		}
 
 		public String getKeyString() {
@@ -42,15 +66,197 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 			return key.toString() + ": " + val.toString();
 		}
 	}
+	
+	/*
+	 * Node of a tree with a KeyPrefix, carrying the prefix of its key.
+	 */
+	private class PrefixedNode extends Node {
+		long prefix;
+		
+		public PrefixedNode(K key, T val, long prefix) {
+			super(key, val);
+			this.prefix = prefix;
+		}
+	}
+
+
+
+	/**
+	 * Maps keys to 64-bit prefixes that agree with the order of the tree: if a key
+	 * sorts before another, its prefix is less than or equal to the other's when both
+	 * are compared as unsigned longs. Keys with different prefixes are then ordered by
+	 * their prefixes alone, and only keys with equal prefixes need a full comparison.
+	 */
+	@FunctionalInterface
+	public interface KeyPrefix<K> {
+		
+		long prefix(K key);
+		
+		/**
+		 * The first 8 chars of a string, one byte each, for natural String ordering. A
+		 * char above 0xFE is stored as 0xFF and ends the prefix, and short strings are
+		 * padded with zeros.
+		 */
+		KeyPrefix<String> STRINGS = s -> {
+			long prefix = 0;
+			int i = 0;
+			for (int n = Math.min(s.length(), 8); i < n; i++) {
+				int c = Math.min(s.charAt(i), 0xFF);
+				prefix = (prefix << 8) | c;
+				if (c == 0xFF) {
+					i++;
+					break;
+				}
+			}
+			return (i == 0)? 0 : prefix << (8 * (8 - i));
+		};
+		
+		/**
+		 * The first 8 bytes of an array, big-endian and zero padded, for unsigned
+		 * lexicographic ordering of byte arrays.
+		 */
+		KeyPrefix<byte[]> UNSIGNED_BYTES = b -> {
+			long prefix = 0;
+			for (int i = 0; i < 8; i++)
+				prefix = (prefix << 8) | ((i < b.length)? b[i] & 0xFF : 0);
+			return prefix;
+		};
+		
+		/**
+		 * The most significant half of a UUID, for natural UUID ordering.
+		 */
+		KeyPrefix<java.util.UUID> UUIDS = u -> u.getMostSignificantBits() ^ Long.MIN_VALUE;
+	}
 
 
 
 
+	// AVL trees have height at most about 1.44 * log2(n), so this is enough for any tree with an int size
+	private static final int MAX_HEIGHT = 64;
+
 	Node root;
 
+	// Nodes visited on the way down by add and remove, replayed bottom-up to rebalance
+	private final Node[] path;
+
+	// Null unless -Davltree.metrics=true; every use is guarded by AVLTreeMetrics.ENABLED
+	private final AVLTreeMetrics metrics;
+
+	// Null for natural ordering
+	private final Comparator<? super K> comparator;
+
+	// Null unless nodes carry key prefixes, in which case every node is a PrefixedNode
+	private final KeyPrefix<? super K> keyPrefix;
+
+	// Bumped by every change to the shape of the tree, so iterators can detect concurrent changes
+	private int modCount;
+
+	// Set while update() runs its function, when its half-finished descent still holds path
+	private boolean updating;
 
+
+	/**
+	 * Creates an empty tree ordered by the natural ordering of its keys, which
+	 * must implement Comparable.
+	 */
 	public AVLTree() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates an empty tree ordered by the given comparator.
+	 * 
+	 * @param comparator the ordering of the keys, or null for natural ordering
+	 */
+	public AVLTree(Comparator<? super K> comparator) {
+		this(comparator, null);
+	}
+
+	/**
+	 * Creates an empty tree ordered by the given comparator that keeps the prefix
+	 * of each key in its node. The prefixes must agree with the comparator.
+	 * 
+	 * @param comparator the ordering of the keys, or null for natural ordering
+	 * @param keyPrefix the prefix function, or null for none
+	 */
+	@SuppressWarnings("unchecked")
+	public AVLTree(Comparator<? super K> comparator, KeyPrefix<? super K> keyPrefix) {
 		root = null;
+		path = (Node[]) new AVLTree<?, ?>.Node[MAX_HEIGHT];
+		metrics = AVLTreeMetrics.ENABLED? new AVLTreeMetrics() : null;
+		this.comparator = comparator;
+		this.keyPrefix = keyPrefix;
+	}
+	/*
+	 * An empty tree with the same ordering and prefixes, whose nodes can be moved to and from this one.
+	 */
+	private AVLTree<K, T> emptyLike() {
+		return new AVLTree<K, T>(comparator, keyPrefix);
+	}
+	private void checkSameOrdering(AVLTree<K, T> other) {
+		if (!Objects.equals(comparator, other.comparator) || !Objects.equals(keyPrefix, other.keyPrefix))
+			throw new IllegalArgumentException("Trees are ordered differently");
+	}
+
+
+
+	/**
+	 * Returns the comparator ordering the keys.
+	 * 
+	 * @return the comparator, or null if the keys are in natural ordering
+	 */
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+
+
+	/**
+	 * Returns the counters and latency histograms of this tree. They stay at zero
+	 * unless the JVM was started with -Davltree.metrics=true.
+	 *
+	 * @return the metrics of this tree
+	 */
+	public AVLTreeMetrics metrics() {
+		return AVLTreeMetrics.ENABLED? metrics : AVLTreeMetrics.DISABLED;
+	}
+	/*
+	 * Compares keys in the order of the tree, counting the comparison when metrics are on.
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(K a, K b) {
+		if (AVLTreeMetrics.ENABLED)
+			metrics.comparisons++;
+		return (comparator == null)? ((Comparable<? super K>) a).compareTo(b) : comparator.compare(a, b);
+	}
+	/*
+	 * Compares a key with the key of a node, given the key's prefix from prefixOf. Prefix
+	 * comparisons settle most steps and are not counted as comparisons in the metrics.
+	 */
+	private int compare(K key, long prefix, Node node) {
+		if (keyPrefix != null) {
+			long other = ((PrefixedNode) node).prefix;
+			if (prefix != other)
+				return (prefix + Long.MIN_VALUE < other + Long.MIN_VALUE)? -1 : 1;
+		}
+		return compare(key, node.key);
+	}
+	private long prefixOf(K key) {
+		return (keyPrefix == null)? 0 : keyPrefix.prefix(key);
+	}
+	private Node newNode(K key, T val, long prefix) {
+		return (keyPrefix == null)? new Node(key, val) : new PrefixedNode(key, val, prefix);
+	}
+	private long startTimer() {
+		return AVLTreeMetrics.ENABLED? System.nanoTime() : 0L;
+	}
+	private void stopTimer(AVLTreeMetrics.Operation op, long start) {
+		if (AVLTreeMetrics.ENABLED)
+			metrics.record(op, start);
+	}
+	private void visit() {
+		if (AVLTreeMetrics.ENABLED)
+			metrics.visits++;
 	}
 
 
@@ -66,10 +272,9 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		return size(root);
 	}
 	private int size(Node root) {
-		if (root == null) {
+		if (root == null)
 			return 0;
-		}
-		return 1 + size(root.left) + size(root.right);
+		return root.size;
 	}
 
 
@@ -99,16 +304,25 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		if (key == null) {
 			throw new IllegalArgumentException("Key is null");
 		}
-		return get(key, root);
+		long start = startTimer();
+		Node node = getNode(key);
+		stopTimer(AVLTreeMetrics.Operation.GET, start);
+		return (node == null)? null : node.val;
 	}
-	private T get(K key, Node root) {
-		if (root == null)
-			return null;
-		if (key.equals(root.key))
-			return root.val;
-		if (key.compareTo(root.key) < 0)
-			return get(key, root.left);
-		return get(key, root.right);
+	private Node getNode(K key) {
+		long prefix = prefixOf(key);
+		Node current = root;
+		while (current != null) {
+			visit();
+			int cmp = compare(key, prefix, current);
+			if (cmp < 0)
+				current = current.left;
+			else if (cmp > 0)
+				current = current.right;
+			else
+				return current;
+		}
+		return null;
 	}
 
 
@@ -118,16 +332,10 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		if (key == null) {
 			throw new IllegalArgumentException("Key is null");
 		}
-		return contains(key, root);
-	}
-	private boolean contains(K key, Node root) {
-		if (root == null)
-			return false;
-		if (key.equals(root.key))
-			return true;
-		if (key.compareTo(root.key) < 0)
-			return contains(key, root.left);
-		return contains(key, root.right);
+		long start = startTimer();
+		boolean found = getNode(key) != null;
+		stopTimer(AVLTreeMetrics.Operation.CONTAINS, start);
+		return found;
 	}
 
 
@@ -140,7 +348,9 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		A.left = C;
 		
 		A.height = 1 + Math.max(height(A.left), height(A.right));
+		A.size = 1 + size(A.left) + size(A.right);
 		B.height = 1 + Math.max(height(B.left), height(B.right));
+		B.size = 1 + size(B.left) + size(B.right);
 		
 		return B;
 	}
@@ -152,63 +362,119 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		A.right = C;
 		
 		A.height = 1 + Math.max(height(A.left), height(A.right));
+		A.size = 1 + size(A.left) + size(A.right);
 		B.height = 1 + Math.max(height(B.left), height(B.right));
+		B.size = 1 + size(B.left) + size(B.right);
 		
 		return B;
 	}
-	
-		
-	
-	@Override
-	public void add(K key, T val) {
-		if (key == null) {
-			throw new IllegalArgumentException("Key is null");
-		}
-		if (val == null) {
-			remove(key);
-			return;
-		}
-		root = add(root, new Node(key, val));
-	}
-	private Node add(Node root, Node newNode) {	
-		// Standard insert operation here
-		if (root == null)
-			return newNode;
-
-		if (newNode.key.compareTo(root.key) < 0)
-			root.left = add(root.left, newNode);
-		else if (newNode.key.compareTo(root.key) > 0)
-			root.right = add(root.right, newNode);
-		else {
-			root.val = newNode.val;
-			return root;
-		}
-
-		// Update height
+	private Node balance(Node root) {
+		// Update height and size
 		root.height = 1 + Math.max(height(root.left), height(root.right));
+		root.size = 1 + size(root.left) + size(root.right);
 
 		// Update balance
 		int balance = getBalance(root);
 
 		// Balance if needed
-		if (balance > 1 && getBalance(root.left) >= 0)                // left-left case
+		if (balance > 1 && getBalance(root.left) >= 0) {             // left-left case
+			if (AVLTreeMetrics.ENABLED)
+				metrics.rotation(AVLTreeMetrics.Rotation.LEFT_LEFT);
 			return rotateRight(root);
+		}
 		
-		if (balance < -1 && getBalance(root.right) <= 0)              // right-right case
+		if (balance < -1 && getBalance(root.right) <= 0) {           // right-right case
+			if (AVLTreeMetrics.ENABLED)
+				metrics.rotation(AVLTreeMetrics.Rotation.RIGHT_RIGHT);
 			return rotateLeft(root);
+		}
 		
 		if (balance > 1 && getBalance(root.left) < 0) {              // left-right case
+			if (AVLTreeMetrics.ENABLED)
+				metrics.rotation(AVLTreeMetrics.Rotation.LEFT_RIGHT);
 			root.left = rotateLeft(root.left);
 			return rotateRight(root);
 		}
 		
 		if (balance < -1 && getBalance(root.right) > 0) {            // right-left case;
+			if (AVLTreeMetrics.ENABLED)
+				metrics.rotation(AVLTreeMetrics.Rotation.RIGHT_LEFT);
 			root.right = rotateRight(root.right);
 			return rotateLeft(root);
 		}
 		
 		return root;
 	}
+	
+		
+	
+	/*
+	 * Walks back up the first depth entries of path, recomputing heights and sizes and
+	 * rotating where needed, then clears the path so it doesn't keep nodes reachable.
+	 */
+	private void rebalancePath(int depth) {
+		while (depth > 0) {
+			Node node = path[--depth];
+			path[depth] = null;
+			replaceChild((depth > 0)? path[depth - 1] : null, node, balance(node));
+		}
+	}
+	private void replaceChild(Node parent, Node oldChild, Node newChild) {
+		if (parent == null)
+			root = newChild;
+		else if (parent.left == oldChild)
+			parent.left = newChild;
+		else
+			parent.right = newChild;
+	}
+	
+	
+	
+	@Override
+	public void add(K key, T val) {
+		if (key == null) {
+			throw new IllegalArgumentException("Key is null");
+		}
+		if (val == null) {
+			remove(key);
+			return;
+		}
+		checkNotUpdating();
+		
+		// Standard insert operation here, remembering the path down
+		long start = startTimer();
+		long prefix = prefixOf(key);
+		Node current = root;
+		int depth = 0;
+		int cmp = 0;
+		if (current == null && comparator == null && !(key instanceof Comparable))
+			throw new ClassCastException(key.getClass().getName() + " is not Comparable");
+		while (current != null) {
+			visit();
+			cmp = compare(key, prefix, current);
+			if (cmp == 0) {												// key already present, overwrite value
+				current.val = val;
+				while (depth > 0)
+					path[--depth] = null;
+				stopTimer(AVLTreeMetrics.Operation.ADD, start);
+				return;
+			}
+			path[depth++] = current;
+			current = (cmp < 0)? current.left : current.right;
+		}
+		
+		Node newNode = newNode(key, val, prefix);
+		modCount++;
+		if (depth == 0)
+			root = newNode;
+		else if (cmp < 0)
+			path[depth - 1].left = newNode;
+		else
+			path[depth - 1].right = newNode;
+		
+		rebalancePath(depth);
+		stopTimer(AVLTreeMetrics.Operation.ADD, start);
+	}
 
 
 
@@ -216,75 +482,230 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 	public void remove(K key) {
 		if (key == null)
 			throw new IllegalArgumentException("Key is null");
-		root = remove(root, key);
+		checkNotUpdating();
+		
+		// Standard Delete Operation, remembering the path down
+		long start = startTimer();
+		long prefix = prefixOf(key);
+		Node current = root;
+		int depth = 0;
+		while (current != null) {
+			visit();
+			int cmp = compare(key, prefix, current);
+			if (cmp == 0)
+				break;
+			path[depth++] = current;
+			current = (cmp < 0)? current.left : current.right;
+		}
+		if (current == null) {											// key not in tree
+			while (depth > 0)
+				path[--depth] = null;
+			stopTimer(AVLTreeMetrics.Operation.REMOVE, start);
+			return;
+		}
+		unlink(current, depth);
+		stopTimer(AVLTreeMetrics.Operation.REMOVE, start);
 	}
-	private Node remove(Node root, K key) {
-		// Standard Delete Operation
-		if (root == null)
-			return root;
-		if (key.compareTo(root.key) < 0)
-			root.left = remove(root.left, key);
-		else if (key.compareTo(root.key) > 0)
-			root.right = remove(root.right, key);
-		
-																	// This is the node to be deleted
-		else {                                                          
-			if (root.left == null && root.right != null)       		// right child only case
-				root = root.right;
-			else if (root.right == null && root.left != null)     	// left child only case
-				root = root.left;
-			else if (root.left == null && root.right == null)     	// no children (leaf node) case
-				root = null;
-			
-			else {                                                	// two children case
-				Node leftMax = minNode(root.left);         				// find max of left subtree
-				root.key = leftMax.key;									// replace root with key and value of max of left subtree
-				root.val = leftMax.val;
-				root.left = remove(root.left, leftMax.key);				// remove max of left subtree
+	/*
+	 * Deletes a node found at the given depth, whose ancestors are on path, and rebalances.
+	 */
+	private void unlink(Node current, int depth) {
+		modCount++;
+		Node parent = (depth > 0)? path[depth - 1] : null;
+		if (current.left == null)										// right child only or leaf case
+			replaceChild(parent, current, current.right);
+		else if (current.right == null)									// left child only case
+			replaceChild(parent, current, current.left);
+		else {															// two children case
+			path[depth++] = current;
+			Node leftMax = current.left;								// find max of left subtree
+			while (leftMax.right != null) {
+				visit();
+				path[depth++] = leftMax;
+				leftMax = leftMax.right;
 			}
+			current.key = leftMax.key;									// replace node with key and value of max of left subtree
+			current.val = leftMax.val;
+			if (keyPrefix != null)
+				((PrefixedNode) current).prefix = ((PrefixedNode) leftMax).prefix;
+			replaceChild(path[depth - 1], leftMax, leftMax.left);		// unlink max of left subtree
 		}
 		
-		if (root == null)                                     		// if root is now null (tree had only root to begin with)
-			return root;												// return root (null)
-		
-		// Update height
-		root.height = 1 + Math.max(height(root.left), height(root.right));
-		
-		// Update balance
-		int balance = getBalance(root);
-		
-		// Balance if needed
-		if (balance > 1 && getBalance(root.left) >= 0)                // left-left case
-			return rotateRight(root);
-		
-		if (balance < -1 && getBalance(root.right) <= 0)              // right-right case
-			return rotateLeft(root);
-		
-		if (balance > 1 && getBalance(root.left) < 0) {              // left-right case
-			root.left = rotateLeft(root.left);
-			return rotateRight(root);
+		rebalancePath(depth);
+	}
+
+
+
+	/*
+	 * Replaces the value of key with fn(key, old value) in a single descent, where the old
+	 * value is null if the key is absent. A null result removes the key or leaves it absent.
+	 * Returns the new value if returnNew is set, and the old value otherwise. fn must not
+	 * change the tree: writes that reuse path throw from inside fn, and any other change
+	 * to the shape of the tree is caught by modCount once fn returns.
+	 */
+	T update(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		checkNotUpdating();
+		long start = startTimer();
+		long prefix = prefixOf(key);
+		Node current = root;
+		int depth = 0;
+		int cmp = 0;
+		if (current == null && comparator == null && !(key instanceof Comparable))
+			throw new ClassCastException(key.getClass().getName() + " is not Comparable");
+		while (current != null) {
+			visit();
+			cmp = compare(key, prefix, current);
+			if (cmp == 0)
+				break;
+			path[depth++] = current;
+			current = (cmp < 0)? current.left : current.right;
 		}
 		
-		if (balance < -1 && getBalance(root.right) > 0) {            // right-left case;
-			root.right = rotateRight(root.right);
-			return rotateLeft(root);
+		T old = (current == null)? null : current.val;
+		int expectedModCount = modCount;
+		T val;
+		updating = true;
+		try {
+			val = fn.apply(key, old);
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+		}
+		catch (RuntimeException | Error e) {
+			while (depth > 0)
+				path[--depth] = null;
+			throw e;
+		}
+		finally {
+			updating = false;
 		}
 		
-		return root;
+		if (current != null && val == null)
+			unlink(current, depth);
+		else if (current == null && val != null) {
+			Node newNode = newNode(key, val, prefix);
+			modCount++;
+			if (depth == 0)
+				root = newNode;
+			else if (cmp < 0)
+				path[depth - 1].left = newNode;
+			else
+				path[depth - 1].right = newNode;
+			rebalancePath(depth);
+		}
+		else {
+			if (current != null)										// key present, overwrite value
+				current.val = val;
+			while (depth > 0)
+				path[--depth] = null;
+		}
+		stopTimer(AVLTreeMetrics.Operation.UPDATE, start);
+		return returnNew? val : old;
 	}
-	private Node minNode(Node root) {
-		Node current = root;
-		while (current.right != null)
-			current = current.right;
-		return current;
+
+
+
+	/**
+	 * Replaces the value of key with fn(key, old value) in one descent, rebalancing on
+	 * the way back up. The old value is null if the key is absent, and a null result
+	 * removes the key or leaves it absent. fn must not change the tree.
+	 *
+	 * @param key the key
+	 * @param fn computes the new value from the key and the old value
+	 * @return the new value, or null if the key is now absent
+	 * @throws IllegalArgumentException if key or fn is null
+	 * @throws ConcurrentModificationException if fn changes the tree
+	 */
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, fn, true);
+	}
+
+	/**
+	 * Associates key with val if it is absent, and otherwise with fn(old value, val),
+	 * in one descent. A null result from fn removes the key.
+	 *
+	 * @param key the key
+	 * @param val the value to add or merge in
+	 * @param fn combines the old value with val
+	 * @return the new value, or null if the key was removed
+	 * @throws IllegalArgumentException if key, val or fn is null
+	 * @throws ConcurrentModificationException if fn changes the tree
+	 */
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, (k, old) -> (old == null)? val : fn.apply(old, val), true);
+	}
+
+	/**
+	 * Adds the key-value pair in one descent if key is absent.
+	 *
+	 * @param key the key
+	 * @param val the value
+	 * @return the value already associated with key, or null if it was added
+	 * @throws IllegalArgumentException if key or val is null
+	 */
+	@Override
+	public T putIfAbsent(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? val : old, false);
+	}
+
+	/**
+	 * Replaces the value of key in one descent if key is present.
+	 *
+	 * @param key the key
+	 * @param val the new value
+	 * @return the old value, or null if key is absent and nothing changed
+	 * @throws IllegalArgumentException if key or val is null
+	 */
+	@Override
+	public T replace(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? null : val, false);
+	}
+
+	/**
+	 * Removes key in one descent and returns the value it had.
+	 *
+	 * @param key the key
+	 * @return the removed value, or null if key was absent
+	 * @throws IllegalArgumentException if key is null
+	 */
+	@Override
+	public T removeAndGet(K key) {
+		return update(key, (k, old) -> null, false);
 	}
 
 
+
 	@Override
 	public void removeMin() {
 		if (isEmpty())
 			throw new NoSuchElementException("Tree is empty");
-		remove(getMinKey(root));
+		unlinkMin();
+	}
+	private Node unlinkMin() {
+		checkNotUpdating();
+		modCount++;
+		Node current = root;
+		int depth = 0;
+		while (current.left != null) {
+			path[depth++] = current;
+			current = current.left;
+		}
+		replaceChild((depth > 0)? path[depth - 1] : null, current, current.right);
+		rebalancePath(depth);
+		return current;
 	}
 
 
@@ -293,86 +714,1615 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 	public void removeMax() {
 		if (isEmpty())
 			throw new NoSuchElementException("Tree is empty");
-		remove(getMaxKey(root));
+		unlinkMax();
+	}
+	private Node unlinkMax() {
+		checkNotUpdating();
+		modCount++;
+		Node current = root;
+		int depth = 0;
+		while (current.right != null) {
+			path[depth++] = current;
+			current = current.right;
+		}
+		replaceChild((depth > 0)? path[depth - 1] : null, current, current.left);
+		rebalancePath(depth);
+		return current;
+	}
+	/*
+	 * Throws if called from the function passed to update(), which the write would corrupt
+	 * by reusing path.
+	 */
+	private void checkNotUpdating() {
+		if (updating)
+			throw new ConcurrentModificationException();
+	}
+	private Node minNode(Node root) {
+		Node current = root;
+		while (current.left != null)
+			current = current.left;
+		return current;
+	}
+	private Node maxNode(Node root) {
+		Node current = root;
+		while (current.right != null)
+			current = current.right;
+		return current;
 	}
 
 
 
-	@Override
-	public K min() {
+	/**
+	 * Removes the smallest key from the tree in a single pass and returns it
+	 * along with its associated value.
+	 * 
+	 * @return the removed key-value pair, or null if the tree is empty
+	 */
+	public Map.Entry<K, T> pollFirst() {
 		if (isEmpty())
-			throw new NoSuchElementException("Tree is empty");
-		return getMinKey(root);
+			return null;
+		Node min = unlinkMin();
+		return new AbstractMap.SimpleImmutableEntry<K, T>(min.key, min.val);
 	}
-	private K getMinKey(Node root) {
-		if (root == null)
+
+
+
+	/**
+	 * Removes the largest key from the tree in a single pass and returns it
+	 * along with its associated value.
+	 * 
+	 * @return the removed key-value pair, or null if the tree is empty
+	 */
+	public Map.Entry<K, T> pollLast() {
+		if (isEmpty())
 			return null;
-		K left = getMinKey(root.left);
-		K right = getMinKey(root.right);
-		if (left == null && right == null)
-			return root.key;
-		if (left == null)
-			return (right.compareTo(root.key) < 0)? right : root.key;
-		if (right == null)
-			return (left.compareTo(root.key) < 0)? left : root.key;
-		K lrmin = (left.compareTo(right) < 0)? left : right;
-		return (lrmin.compareTo(root.key) < 0)? lrmin : root.key;
+		Node max = unlinkMax();
+		return new AbstractMap.SimpleImmutableEntry<K, T>(max.key, max.val);
 	}
 
 
 
 	@Override
-	public K max() {
+	public K min() {
 		if (isEmpty())
 			throw new NoSuchElementException("Tree is empty");
-		return getMaxKey(root);
-	}
-	private K getMaxKey(Node root) {
-		if (root == null)
-			return null;
-		K left = getMaxKey(root.left);
-		K right = getMaxKey(root.right);
-		if (left == null && right == null)
-			return root.key;
-		if (left == null)
-			return (right.compareTo(root.key) > 0)? right : root.key;
-		if (right == null)
-			return (left.compareTo(root.key) > 0)? left : root.key;
-		K lrmax = (left.compareTo(right) > 0)? left : right;
-		return (lrmax.compareTo(root.key) > 0)? lrmax : root.key;
-	}
-	
-	
-	
-	public void clear() {
-		root = null;
+		return minNode(root).key;
 	}
-	
-	
-	
+
+
+
 	@Override
-	public String toString() {
-		return inOrderTraversal();
-	}
-	private String inOrderTraversal() {
-		return inOrderTraversal(root);
-	}
-	private String inOrderTraversal(Node root) {
-		if (root == null)
-			return "";
-		return inOrderTraversal(root.left) + root + "\n" + inOrderTraversal(root.right);
+	public K max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return maxNode(root).key;
 	}
 
 
-	
-	public void printTree() {
-		toTreeString(root, 0);
+
+	@Override
+	public int rank(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return rank(key, root);
+	}
+	private int rank(K key, Node root) {
+		long prefix = prefixOf(key);
+		int rank = 0;
+		Node current = root;
+		while (current != null) {
+			int cmp = compare(key, prefix, current);
+			if (cmp < 0)
+				current = current.left;
+			else if (cmp > 0) {
+				rank += 1 + size(current.left);
+				current = current.right;
+			}
+			else
+				return rank + size(current.left);
+		}
+		return rank;
+	}
+
+
+
+	@Override
+	public K select(int rank) {
+		if (rank < 0 || rank >= size())
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		return select(rank, root).key;
+	}
+	private Node select(int rank, Node root) {
+		Node current = root;
+		while (true) {
+			int leftSize = size(current.left);
+			if (rank < leftSize)
+				current = current.left;
+			else if (rank > leftSize) {
+				rank -= leftSize + 1;
+				current = current.right;
+			}
+			else
+				return current;
+		}
+	}
+
+
+
+	@Override
+	public int countRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		if (compare(lo, hi) > 0)
+			return 0;
+		int count = rank(hi) - rank(lo);
+		if (contains(hi))
+			count++;
+		return count;
+	}
+
+
+
+	@Override
+	public K median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return select((size() - 1) / 2, root).key;
+	}
+
+
+
+	/**
+	 * Returns the largest key less than or equal to the given key.
+	 * 
+	 * @param key the key
+	 * @return the largest key <= key, or null if there is none
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public K floor(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node node = below(key, true);
+		return (node == null)? null : node.key;
+	}
+
+
+
+	/**
+	 * Returns the largest key strictly less than the given key.
+	 * 
+	 * @param key the key
+	 * @return the largest key < key, or null if there is none
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public K lower(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node node = below(key, false);
+		return (node == null)? null : node.key;
+	}
+
+
+
+	/**
+	 * Returns the smallest key greater than or equal to the given key.
+	 * 
+	 * @param key the key
+	 * @return the smallest key >= key, or null if there is none
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public K ceiling(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node node = above(key, true);
+		return (node == null)? null : node.key;
+	}
+
+
+
+	/**
+	 * Returns the smallest key strictly greater than the given key.
+	 * 
+	 * @param key the key
+	 * @return the smallest key > key, or null if there is none
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public K higher(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node node = above(key, false);
+		return (node == null)? null : node.key;
+	}
+	private Node below(K key, boolean inclusive) {
+		long prefix = prefixOf(key);
+		Node best = null;
+		Node current = root;
+		while (current != null) {
+			int cmp = compare(key, prefix, current);
+			if (cmp > 0 || (cmp == 0 && inclusive)) {
+				best = current;
+				current = current.right;
+			}
+			else
+				current = current.left;
+		}
+		return best;
+	}
+	private Node above(K key, boolean inclusive) {
+		long prefix = prefixOf(key);
+		Node best = null;
+		Node current = root;
+		while (current != null) {
+			int cmp = compare(key, prefix, current);
+			if (cmp < 0 || (cmp == 0 && inclusive)) {
+				best = current;
+				current = current.left;
+			}
+			else
+				current = current.right;
+		}
+		return best;
+	}
+
+	
+	
+	public void clear() {
+		modCount++;
+		root = null;
+	}
+	
+	
+	
+	/**
+	 * Returns a read-only copy of the tree laid out in van Emde Boas order in
+	 * flat arrays, for fast lookups in trees that are built once and queried
+	 * often. Later changes to this tree do not affect the copy.
+	 * 
+	 * @return a frozen copy of the tree
+	 */
+	public FrozenAVLTree<K, T> freeze() {
+		int n = size();
+		Object[] keys = new Object[n];
+		Object[] vals = new Object[n];
+		EntryIterator it = new EntryIterator(null, false, null, false, false);
+		for (int i = 0; i < n; i++) {
+			Node node = it.nextNode();
+			keys[i] = node.key;
+			vals[i] = node.val;
+		}
+		return new FrozenAVLTree<K, T>(keys, vals, n, comparator);
+	}
+
+	
+	
+	/**
+	 * Replaces the contents of the tree with the given entries, building a
+	 * height-balanced tree bottom-up. Sorted input is loaded in O(n) time;
+	 * unsorted input is sorted first. If a key appears more than once the last
+	 * value wins, and keys whose final value is null are left out, as with add.
+	 * 
+	 * @param entries the entries to load
+	 * @throws IllegalArgumentException if entries is null or contains a null key
+	 */
+	@SuppressWarnings("unchecked")
+	public void bulkLoad(Iterator<? extends Map.Entry<K, T>> entries) {
+		if (entries == null)
+			throw new IllegalArgumentException("Entries are null");
+		Object[] keys = new Object[16];
+		Object[] vals = new Object[16];
+		int count = 0;
+		boolean sorted = true;
+		while (entries.hasNext()) {
+			Map.Entry<K, T> entry = entries.next();
+			K key = entry.getKey();
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			if (count > 0 && compare(key, (K) keys[count - 1]) <= 0)
+				sorted = false;
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+				vals = Arrays.copyOf(vals, count * 2);
+			}
+			keys[count] = key;
+			vals[count] = entry.getValue();
+			count++;
+		}
+		
+		if (!sorted) {
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			Map.Entry<K, T>[] array = new Map.Entry[count];
+			for (int i = 0; i < count; i++)
+				array[i] = new AbstractMap.SimpleImmutableEntry<K, T>((K) keys[i], (T) vals[i]);
+			Arrays.parallelSort(array, new Comparator<Map.Entry<K, T>>() {	// stable, so the last duplicate stays last
+				@Override
+				public int compare(Map.Entry<K, T> a, Map.Entry<K, T> b) {
+					return AVLTree.this.compare(a.getKey(), b.getKey());
+				}
+			});
+			for (int i = 0; i < count; i++) {
+				keys[i] = array[i].getKey();
+				vals[i] = array[i].getValue();
+			}
+		}
+		
+		// Keep the last value of each key and drop keys whose value is null
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (i + 1 < count && compare((K) keys[i], (K) keys[i + 1]) == 0)
+				continue;
+			if (vals[i] == null)
+				continue;
+			keys[n] = keys[i];
+			vals[n] = vals[i];
+			n++;
+		}
+		modCount++;
+		root = buildBalanced(keys, vals, 0, n);
+	}
+	/*
+	 * Replaces the contents of the tree with the first n entries of keys and vals, which the
+	 * caller guarantees are sorted, distinct and non-null. Used by AVLTreeSerializer.
+	 */
+	void loadSorted(Object[] keys, Object[] vals, int n) {
+		modCount++;
+		root = buildBalanced(keys, vals, 0, n);
+	}
+	/*
+	 * Builds a perfectly balanced subtree from keys[lo, hi), which must be sorted and distinct.
+	 */
+	@SuppressWarnings("unchecked")
+	private Node buildBalanced(Object[] keys, Object[] vals, int lo, int hi) {
+		if (lo >= hi)
+			return null;
+		int mid = (lo + hi) >>> 1;
+		K key = (K) keys[mid];
+		Node node = newNode(key, (T) vals[mid], prefixOf(key));
+		node.left = buildBalanced(keys, vals, lo, mid);
+		node.right = buildBalanced(keys, vals, mid + 1, hi);
+		node.height = 1 + Math.max(height(node.left), height(node.right));
+		node.size = hi - lo;
+		return node;
+	}
+
+	
+	
+	/*
+	 * Result of splitting a subtree around a key: the keys below it, the node holding
+	 * the key (if any) and the keys above it.
+	 */
+	private class Split {
+		Node left, found, right;
+	}
+	
+	/*
+	 * Joins two subtrees and a middle node, where every key in left is smaller than
+	 * mid.key and every key in right is larger. Runs in O(|height(left) - height(right)|).
+	 */
+	private Node join(Node left, Node mid, Node right) {
+		if (height(left) > height(right) + 1) {
+			left.right = join(left.right, mid, right);
+			return balance(left);
+		}
+		if (height(right) > height(left) + 1) {
+			right.left = join(left, mid, right.left);
+			return balance(right);
+		}
+		mid.left = left;
+		mid.right = right;
+		mid.height = 1 + Math.max(height(left), height(right));
+		mid.size = 1 + size(left) + size(right);
+		return mid;
+	}
+	/*
+	 * Joins two subtrees where every key in left is smaller than every key in right.
+	 */
+	private Node join(Node left, Node right) {
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		Node mid = minNode(right);
+		return join(left, mid, removeMin(right));
+	}
+	private Node removeMin(Node root) {
+		if (root.left == null)
+			return root.right;
+		root.left = removeMin(root.left);
+		return balance(root);
+	}
+	/*
+	 * Splits a subtree around key into result, joining the pieces back up on the way out.
+	 */
+	private void split(Node root, K key, Split result) {
+		if (root == null) {
+			result.left = result.found = result.right = null;
+			return;
+		}
+		int cmp = compare(key, root.key);
+		if (cmp < 0) {
+			split(root.left, key, result);
+			result.right = join(result.right, root, root.right);
+		}
+		else if (cmp > 0) {
+			split(root.right, key, result);
+			result.left = join(root.left, root, result.left);
+		}
+		else {
+			result.left = root.left;
+			result.found = root;
+			result.right = root.right;
+		}
+	}
+	
+	
+	
+	/**
+	 * Joins two trees and a key-value pair into one tree in O(log(n)) time. Every key
+	 * in left must be smaller than key, and every key in right must be larger. Both
+	 * trees are left empty.
+	 * 
+	 * @param left the tree holding the smaller keys
+	 * @param key the key between the two trees
+	 * @param val the value associated with key
+	 * @param right the tree holding the larger keys
+	 * @return a tree holding the entries of both trees and the given pair
+	 * @throws IllegalArgumentException if key or val is null, the keys are out of order
+	 *         or the trees are ordered differently
+	 */
+	public static <K, T> AVLTree<K, T> join(AVLTree<K, T> left, K key, T val, AVLTree<K, T> right) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		if (left == right)
+			throw new IllegalArgumentException("Cannot join a tree with itself");
+		left.checkSameOrdering(right);
+		if ((!left.isEmpty() && left.compare(left.max(), key) >= 0) || (!right.isEmpty() && left.compare(right.min(), key) <= 0))
+			throw new IllegalArgumentException("Keys are not in order");
+		AVLTree<K, T> result = left.emptyLike();
+		result.root = result.join(left.root, result.newNode(key, val, result.prefixOf(key)), right.root);
+		left.root = null;
+		right.root = null;
+		left.modCount++;
+		right.modCount++;
+		return result;
+	}
+
+
+
+	/**
+	 * Splits the tree in O(log(n)) time. This tree keeps the keys smaller than
+	 * the given key, and the returned tree receives the given key and every
+	 * larger key.
+	 * 
+	 * @param key the key to split at
+	 * @return a tree holding the keys greater than or equal to key
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public AVLTree<K, T> splitAt(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Split split = new Split();
+		split(root, key, split);
+		AVLTree<K, T> upper = emptyLike();
+		modCount++;
+		root = split.left;
+		upper.root = (split.found == null)? split.right : join(null, split.found, split.right);
+		return upper;
+	}
+
+
+
+	/**
+	 * Moves every entry of other into this tree in O(log(n)) time. All keys of one
+	 * tree must be smaller than all keys of the other. The other tree is left empty.
+	 * 
+	 * @param other the tree to move entries from
+	 * @throws IllegalArgumentException if other is null or this tree, the key ranges overlap
+	 *         or the trees are ordered differently
+	 */
+	public void concat(AVLTree<K, T> other) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		if (other == this)
+			throw new IllegalArgumentException("Cannot concatenate a tree with itself");
+		checkSameOrdering(other);
+		if (other.isEmpty())
+			return;
+		if (isEmpty())
+			root = other.root;
+		else if (compare(max(), other.min()) < 0)
+			root = join(root, other.root);
+		else if (compare(other.max(), min()) < 0)
+			root = join(other.root, root);
+		else
+			throw new IllegalArgumentException("Key ranges overlap");
+		other.root = null;
+		modCount++;
+		other.modCount++;
+	}
+
+
+
+	/**
+	 * Removes every key between lo and hi (both inclusive) in O(log(n)) time.
+	 * 
+	 * @param lo the lower bound
+	 * @param hi the upper bound
+	 * @throws IllegalArgumentException if either lo or hi is null
+	 */
+	public void removeRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		if (compare(lo, hi) > 0)
+			return;
+		Split split = new Split();
+		split(root, lo, split);
+		Node below = split.left;
+		split(split.right, hi, split);
+		root = join(below, split.right);
+		modCount++;
+	}
+
+	
+	
+	// Subproblems with more nodes than this are split across the fork/join pool
+	private static final int PARALLEL_CUTOFF = 1 << 12;
+	
+	private enum SetOp { COPY, UNION, DIFFERENCE }
+	
+	/*
+	 * One half of a set operation, run as a fork/join task.
+	 */
+	private class SetOperation extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+		
+		final SetOp op;
+		final Node a, b;
+		final BinaryOperator<T> merge;
+		
+		SetOperation(SetOp op, Node a, Node b, BinaryOperator<T> merge) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+			this.merge = merge;
+		}
+		
+		@Override
+		protected Node compute() {
+			switch (op) {
+			case COPY:
+				return copy(a);
+			case UNION:
+				return union(a, b, merge);
+			default:
+				return difference(a, b);
+			}
+		}
+	}
+	
+	private Node copy(Node root) {
+		if (root == null)
+			return null;
+		Node node = newNode(root.key, root.val, (keyPrefix == null)? 0 : ((PrefixedNode) root).prefix);
+		if (root.size > PARALLEL_CUTOFF) {
+			SetOperation left = new SetOperation(SetOp.COPY, root.left, null, null);
+			left.fork();
+			node.right = copy(root.right);
+			node.left = left.join();
+		}
+		else {
+			node.left = copy(root.left);
+			node.right = copy(root.right);
+		}
+		node.height = root.height;
+		node.size = root.size;
+		return node;
+	}
+	/*
+	 * The set operations below consume their arguments: nodes are split apart and
+	 * relinked into the result. Difference only reads its second argument.
+	 */
+	private Node union(Node a, Node b, BinaryOperator<T> merge) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		boolean parallel = parallel(a, b);
+		Split split = new Split();
+		split(b, a.key, split);
+		Node aLeft = a.left;
+		Node aRight = a.right;
+		Node left, right;
+		if (parallel) {
+			SetOperation task = new SetOperation(SetOp.UNION, aLeft, split.left, merge);
+			task.fork();
+			right = union(aRight, split.right, merge);
+			left = task.join();
+		}
+		else {
+			left = union(aLeft, split.left, merge);
+			right = union(aRight, split.right, merge);
+		}
+		if (split.found != null) {
+			a.val = merge.apply(a.val, split.found.val);
+			if (a.val == null)
+				return join(left, right);
+		}
+		return join(left, a, right);
+	}
+	private Node difference(Node a, Node b) {
+		if (a == null || b == null)
+			return a;
+		boolean parallel = parallel(a, b);
+		Split split = new Split();
+		split(a, b.key, split);
+		Node bLeft = b.left;
+		Node bRight = b.right;
+		Node left, right;
+		if (parallel) {
+			SetOperation task = new SetOperation(SetOp.DIFFERENCE, split.left, bLeft, null);
+			task.fork();
+			right = difference(split.right, bRight);
+			left = task.join();
+		}
+		else {
+			left = difference(split.left, bLeft);
+			right = difference(split.right, bRight);
+		}
+		return join(left, right);
+	}
+	/*
+	 * The work of a set operation grows with the smaller input, as the larger one is only
+	 * split along the paths to the smaller one's keys, so only fork when both are large.
+	 */
+	private boolean parallel(Node a, Node b) {
+		return Math.min(a.size, b.size) > PARALLEL_CUTOFF >>> 3;
+	}
+	/*
+	 * Runs a set operation on the common fork/join pool, or on the calling thread when it
+	 * is too small to fork, which saves small batches the hand-off to a pool thread.
+	 */
+	private Node setOperation(SetOp op, Node a, Node b, BinaryOperator<T> merge) {
+		SetOperation task = new SetOperation(op, a, b, merge);
+		boolean large = (op == SetOp.COPY)? size(a) > PARALLEL_CUTOFF : a != null && b != null && parallel(a, b);
+		return large? ForkJoinPool.commonPool().invoke(task) : task.compute();
+	}
+	private Node copyOf(Node root) {
+		return setOperation(SetOp.COPY, root, null, null);
+	}
+	
+	
+	
+	/**
+	 * Returns a copy of the tree that shares no nodes with it, in O(n) time.
+	 * Large trees are copied in parallel on the common fork/join pool.
+	 * 
+	 * @return a copy of the tree
+	 */
+	public AVLTree<K, T> copy() {
+		AVLTree<K, T> result = emptyLike();
+		result.root = copyOf(root);
+		return result;
+	}
+
+
+
+	/**
+	 * Returns a new tree holding every key in this tree or in other. Keys in both
+	 * trees get the value merge(value in this tree, value in other), and are left
+	 * out if that is null. Neither tree is modified, so the result cannot share
+	 * their nodes and this takes O(n + m) time, copying both; addAll(other, merge)
+	 * merges other into this tree in O(m log(n/m + 1)) instead. Large inputs are
+	 * processed in parallel on the common fork/join pool.
+	 * 
+	 * @param other the other tree
+	 * @param merge the function combining the values of keys in both trees
+	 * @return the union of the two trees
+	 * @throws IllegalArgumentException if other or merge is null, or the trees are
+	 *         ordered differently
+	 */
+	public AVLTree<K, T> union(AVLTree<K, T> other, BinaryOperator<T> merge) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		if (merge == null)
+			throw new IllegalArgumentException("Merge function is null");
+		checkSameOrdering(other);
+		AVLTree<K, T> result = emptyLike();
+		result.root = setOperation(SetOp.UNION, copyOf(root), copyOf(other.root), merge);
+		return result;
+	}
+
+
+
+	/**
+	 * Returns a new tree holding the keys of this tree that are also in other,
+	 * with their values from this tree. Neither tree is modified. The keys of the
+	 * smaller tree are looked up in the larger one as a sorted batch, like getAll,
+	 * and the matches built into a balanced tree, which takes O(m log(n/m + 1))
+	 * time for trees of sizes m <= n.
+	 * 
+	 * @param other the other tree
+	 * @return the intersection of the two trees
+	 * @throws IllegalArgumentException if other is null or ordered differently
+	 */
+	@SuppressWarnings("unchecked")
+	public AVLTree<K, T> intersection(AVLTree<K, T> other) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		checkSameOrdering(other);
+		boolean thisSmaller = size(root) <= size(other.root);
+		Node small = thisSmaller? root : other.root;
+		Node large = thisSmaller? other.root : root;
+		int m = size(small);
+		Object[] keys = new Object[m];
+		Object[] vals = new Object[m];
+		Object[] found = new Object[m];
+		collect(small, keys, vals, 0);
+		if (m > PARALLEL_CUTOFF)
+			ForkJoinPool.commonPool().invoke(new BatchLookup(large, (K[]) keys, 0, m, (T[]) found));
+		else
+			getAll(large, (K[]) keys, 0, m, (T[]) found);
+		int count = 0;
+		for (int i = 0; i < m; i++) {
+			if (found[i] != null) {
+				keys[count] = keys[i];
+				vals[count++] = thisSmaller? vals[i] : found[i];
+			}
+		}
+		AVLTree<K, T> result = emptyLike();
+		result.root = buildBalanced(keys, vals, 0, count);
+		return result;
+	}
+	/*
+	 * Stores the entries of a subtree in keys and vals from index i in ascending
+	 * order, and returns the index after the last one.
+	 */
+	private int collect(Node root, Object[] keys, Object[] vals, int i) {
+		if (root == null)
+			return i;
+		i = collect(root.left, keys, vals, i);
+		keys[i] = root.key;
+		vals[i++] = root.val;
+		return collect(root.right, keys, vals, i);
+	}
+
+
+
+	/**
+	 * Returns a new tree holding the entries of this tree whose keys are not in
+	 * other. Neither tree is modified; other is only read, but this tree is copied
+	 * first, so this takes O(n + m) time. removeAll(other) removes the keys from
+	 * this tree in O(m log(n/m + 1)) instead. Large inputs are processed in
+	 * parallel on the common fork/join pool.
+	 * 
+	 * @param other the other tree
+	 * @return the difference of the two trees
+	 * @throws IllegalArgumentException if other is null or ordered differently
+	 */
+	public AVLTree<K, T> difference(AVLTree<K, T> other) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		checkSameOrdering(other);
+		AVLTree<K, T> result = emptyLike();
+		result.root = setOperation(SetOp.DIFFERENCE, copyOf(root), other.root, null);
+		return result;
+	}
+	
+	
+	
+	/**
+	 * Looks up a sorted batch of keys in one traversal, storing the value of
+	 * keys[i] in out[i], or null if it is absent. The batch is split across
+	 * subtrees by binary search, so nodes shared by the paths to several keys
+	 * are visited once. Large batches are processed in parallel on the common
+	 * fork/join pool.
+	 * 
+	 * @param sortedKeys the keys, in ascending order; duplicates are allowed
+	 * @param out receives the values; must be at least as long as sortedKeys
+	 * @throws IllegalArgumentException if a key is null, the keys are not sorted
+	 *         or out is too short
+	 */
+	public void getAll(K[] sortedKeys, T[] out) {
+		checkSorted(sortedKeys);
+		if (out == null || out.length < sortedKeys.length)
+			throw new IllegalArgumentException("Output array is too short");
+		if (sortedKeys.length > PARALLEL_CUTOFF)
+			ForkJoinPool.commonPool().invoke(new BatchLookup(root, sortedKeys, 0, sortedKeys.length, out));
+		else
+			getAll(root, sortedKeys, 0, sortedKeys.length, out);
+	}
+	private void getAll(Node root, K[] keys, int lo, int hi, T[] out) {
+		if (lo >= hi)
+			return;
+		if (root == null) {
+			Arrays.fill(out, lo, hi, null);
+			return;
+		}
+		int mid = lowerBound(keys, lo, hi, root.key);
+		int end = mid;
+		while (end < hi && compare(keys[end], root.key) == 0)
+			out[end++] = root.val;
+		if (mid - lo + hi - end > PARALLEL_CUTOFF) {
+			BatchLookup left = new BatchLookup(root.left, keys, lo, mid, out);
+			left.fork();
+			getAll(root.right, keys, end, hi, out);
+			left.join();
+		}
+		else {
+			getAll(root.left, keys, lo, mid, out);
+			getAll(root.right, keys, end, hi, out);
+		}
+	}
+	
+	/*
+	 * One part of a batch lookup, run as a fork/join task.
+	 */
+	private class BatchLookup extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final Node root;
+		final K[] keys;
+		final int lo, hi;
+		final T[] out;
+		
+		BatchLookup(Node root, K[] keys, int lo, int hi, T[] out) {
+			this.root = root;
+			this.keys = keys;
+			this.lo = lo;
+			this.hi = hi;
+			this.out = out;
+		}
+		
+		@Override
+		protected void compute() {
+			getAll(root, keys, lo, hi, out);
+		}
+	}
+
+
+
+	/**
+	 * Returns whether every key of a sorted batch is in the tree, checking the
+	 * batch in one traversal like getAll.
+	 * 
+	 * @param sortedKeys the keys, in ascending order; duplicates are allowed
+	 * @return true if all of the keys are in the tree
+	 * @throws IllegalArgumentException if a key is null or the keys are not sorted
+	 */
+	public boolean containsAll(K[] sortedKeys) {
+		checkSorted(sortedKeys);
+		return containsAll(root, sortedKeys, 0, sortedKeys.length);
+	}
+	private boolean containsAll(Node root, K[] keys, int lo, int hi) {
+		if (lo >= hi)
+			return true;
+		if (root == null)
+			return false;
+		int mid = lowerBound(keys, lo, hi, root.key);
+		int end = mid;
+		while (end < hi && compare(keys[end], root.key) == 0)
+			end++;
+		return containsAll(root.left, keys, lo, mid) && containsAll(root.right, keys, end, hi);
+	}
+
+
+
+	/**
+	 * Adds a sorted batch of key-value pairs. The batch is built into a balanced
+	 * tree and merged with a join-based union, which splits it across the
+	 * subtrees and rebalances each touched node once instead of once per key.
+	 * As with add, a null value removes its key. If a key appears more than once
+	 * the last value wins. Large batches are merged in parallel on the common
+	 * fork/join pool, and smaller ones on the calling thread.
+	 * 
+	 * @param sortedKeys the keys, in ascending order
+	 * @param vals the values, matching sortedKeys
+	 * @throws IllegalArgumentException if a key is null, the keys are not sorted
+	 *         or vals is shorter than sortedKeys
+	 */
+	public void addAll(K[] sortedKeys, T[] vals) {
+		checkSorted(sortedKeys);
+		if (vals == null || vals.length < sortedKeys.length)
+			throw new IllegalArgumentException("Value array is too short");
+		int n = sortedKeys.length;
+		Object[] addKeys = new Object[n];
+		Object[] addVals = new Object[n];
+		Object[] removeKeys = new Object[n];
+		int adds = 0, removes = 0;
+		for (int i = 0; i < n; i++) {
+			if (i + 1 < n && compare(sortedKeys[i], sortedKeys[i + 1]) == 0)
+				continue;
+			if (vals[i] == null)
+				removeKeys[removes++] = sortedKeys[i];
+			else {
+				addKeys[adds] = sortedKeys[i];
+				addVals[adds++] = vals[i];
+			}
+		}
+		Node additions = buildBalanced(addKeys, addVals, 0, adds);
+		Node removals = buildBalanced(removeKeys, new Object[removes], 0, removes);
+		root = setOperation(SetOp.UNION, root, additions, (x, y) -> y);
+		root = setOperation(SetOp.DIFFERENCE, root, removals, null);
+		modCount++;
+	}
+
+
+
+	/**
+	 * Removes a sorted batch of keys with a join-based difference, splitting
+	 * the batch across subtrees and rebalancing each touched node once.
+	 * 
+	 * @param sortedKeys the keys, in ascending order; duplicates are allowed
+	 * @throws IllegalArgumentException if a key is null or the keys are not sorted
+	 */
+	public void removeAll(K[] sortedKeys) {
+		checkSorted(sortedKeys);
+		int n = sortedKeys.length;
+		Object[] keys = new Object[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (i + 1 < n && compare(sortedKeys[i], sortedKeys[i + 1]) == 0)
+				continue;
+			keys[count++] = sortedKeys[i];
+		}
+		Node removals = buildBalanced(keys, new Object[count], 0, count);
+		root = setOperation(SetOp.DIFFERENCE, root, removals, null);
+		modCount++;
+	}
+
+
+
+	/**
+	 * Moves every entry of other into this tree with a join-based union, which
+	 * splits this tree only along the paths to other's keys and so takes
+	 * O(m log(n/m + 1)) time for trees of sizes m <= n. Keys in both trees get
+	 * the value merge(value in this tree, value in other), and are removed if
+	 * that is null. Other's nodes are relinked into this tree, so other is left
+	 * empty, as with concat. Large inputs are merged in parallel on the common
+	 * fork/join pool.
+	 * 
+	 * @param other the tree to move entries from
+	 * @param merge the function combining the values of keys in both trees
+	 * @throws IllegalArgumentException if other or merge is null, other is this
+	 *         tree or the trees are ordered differently
+	 */
+	public void addAll(AVLTree<K, T> other, BinaryOperator<T> merge) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		if (merge == null)
+			throw new IllegalArgumentException("Merge function is null");
+		if (other == this)
+			throw new IllegalArgumentException("Cannot merge a tree with itself");
+		checkSameOrdering(other);
+		root = setOperation(SetOp.UNION, root, other.root, merge);
+		other.root = null;
+		modCount++;
+		other.modCount++;
+	}
+
+
+
+	/**
+	 * Removes every key of other from this tree with a join-based difference in
+	 * O(m log(n/m + 1)) time for trees of sizes m <= n. Other is not modified.
+	 * 
+	 * @param other the tree whose keys to remove
+	 * @throws IllegalArgumentException if other is null or ordered differently
+	 */
+	public void removeAll(AVLTree<K, T> other) {
+		if (other == null)
+			throw new IllegalArgumentException("Tree is null");
+		checkSameOrdering(other);
+		if (other == this) {
+			clear();
+			return;
+		}
+		root = setOperation(SetOp.DIFFERENCE, root, other.root, null);
+		modCount++;
+	}
+	private void checkSorted(K[] keys) {
+		if (keys == null)
+			throw new IllegalArgumentException("Keys are null");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == null)
+				throw new IllegalArgumentException("Key is null");
+			if (i > 0 && compare(keys[i - 1], keys[i]) > 0)
+				throw new IllegalArgumentException("Keys are not sorted");
+		}
+	}
+	// First index in keys[lo, hi) whose key is >= key
+	private int lowerBound(K[] keys, int lo, int hi, K key) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(keys[mid], key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	
+	
+	/**
+	 * Returns an iterator over the entries of the tree in ascending key order.
+	 * The iterator is fail-fast: if the tree is changed other than through its
+	 * remove method, it throws ConcurrentModificationException.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, T>> iterator() {
+		return new EntryIterator(null, false, null, false, false);
+	}
+
+
+
+	/**
+	 * Returns an iterator over the entries of the tree in descending key order.
+	 * The iterator is fail-fast and supports remove.
+	 * 
+	 * @return a descending iterator
+	 */
+	public Iterator<Map.Entry<K, T>> descendingIterator() {
+		return new EntryIterator(null, false, null, false, true);
+	}
+
+
+
+	/**
+	 * Returns an iterator over the entries with keys between lo and hi in
+	 * ascending key order. The start is found in O(log(n)) time and the
+	 * entries are then produced one at a time. The iterator is fail-fast and
+	 * supports remove.
+	 * 
+	 * @param lo the low end of the range
+	 * @param loInclusive whether a key equal to lo is included
+	 * @param hi the high end of the range
+	 * @param hiInclusive whether a key equal to hi is included
+	 * @return an iterator over the range
+	 * @throws IllegalArgumentException if lo or hi is null
+	 */
+	public Iterator<Map.Entry<K, T>> entries(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		return new EntryIterator(lo, loInclusive, hi, hiInclusive, false);
+	}
+	/*
+	 * Iterator over a range in either direction, where a null bound leaves that side open.
+	 * Used by the views of AVLNavigableMap.
+	 */
+	Iterator<Map.Entry<K, T>> entries(K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+		return new EntryIterator(lo, loInclusive, hi, hiInclusive, descending);
+	}
+	/*
+	 * The entry with the largest key below key if below is set, or the smallest key above it
+	 * otherwise, including key itself if inclusive. A null key stands for the far end, giving
+	 * the largest or smallest entry. Returns null if there is none.
+	 */
+	Map.Entry<K, T> nearest(K key, boolean below, boolean inclusive) {
+		Node node;
+		if (root == null)
+			node = null;
+		else if (key == null)
+			node = below? maxNode(root) : minNode(root);
+		else
+			node = below? below(key, inclusive) : above(key, inclusive);
+		return (node == null)? null : new AbstractMap.SimpleImmutableEntry<K, T>(node.key, node.val);
+	}
+
+
+
+	/*
+	 * In-order iterator over an optionally bounded range, keeping the unvisited ancestors of
+	 * the next node on an explicit stack. Each step pops one node and pushes the spine of its
+	 * other subtree, which is amortized O(1). A null bound means the range is open on that side.
+	 * remove() deletes the last key returned and seeks past it again in O(log(n)), as the
+	 * rebalancing may have rotated the nodes on the stack.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, T>> {
+		private final Node[] stack;
+		private int depth;
+		private final K end;
+		private final boolean endInclusive;
+		private final boolean descending;
+		private int expectedModCount = modCount;
+		private K lastKey;
+
+		@SuppressWarnings("unchecked")
+		EntryIterator(K lo, boolean loInclusive, K hi, boolean hiInclusive, boolean descending) {
+			this.stack = (Node[]) new AVLTree<?, ?>.Node[MAX_HEIGHT];
+			this.descending = descending;
+			this.end = descending? lo : hi;
+			this.endInclusive = descending? loInclusive : hiInclusive;
+			if (descending)
+				seek(hi, hiInclusive);
+			else
+				seek(lo, loInclusive);
+			if (depth > 0 && pastEnd(stack[depth - 1]))
+				depth = 0;
+		}
+
+		/*
+		 * Ascending iterator starting at the node of the given rank, without an end bound.
+		 */
+		@SuppressWarnings("unchecked")
+		EntryIterator(int rank) {
+			this.stack = (Node[]) new AVLTree<?, ?>.Node[MAX_HEIGHT];
+			this.descending = false;
+			this.end = null;
+			this.endInclusive = false;
+			Node current = root;
+			while (current != null) {
+				int leftSize = size(current.left);
+				if (rank < leftSize) {
+					stack[depth++] = current;
+					current = current.left;
+				}
+				else if (rank > leftSize) {
+					rank -= leftSize + 1;
+					current = current.right;
+				}
+				else {
+					stack[depth++] = current;
+					break;
+				}
+			}
+		}
+
+		/*
+		 * Pushes the path to the first node at or past start, leaving it on top of the stack.
+		 */
+		private void seek(K start, boolean inclusive) {
+			long prefix = (start == null)? 0 : prefixOf(start);
+			Node current = root;
+			while (current != null) {
+				int cmp = (start == null)? (descending? 1 : -1) : compare(start, prefix, current);
+				if (descending)
+					cmp = -cmp;
+				if (cmp < 0 || (cmp == 0 && inclusive)) {
+					stack[depth++] = current;
+					current = descending? current.right : current.left;
+				}
+				else
+					current = descending? current.left : current.right;
+			}
+		}
+
+		private boolean pastEnd(Node node) {
+			if (end == null)
+				return false;
+			int cmp = compare(node.key, end);
+			if (descending)
+				cmp = -cmp;
+			return cmp > 0 || (cmp == 0 && !endInclusive);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth > 0;
+		}
+
+		@Override
+		public Map.Entry<K, T> next() {
+			Node node = nextNode();
+			return new AbstractMap.SimpleImmutableEntry<K, T>(node.key, node.val);
+		}
+
+		Node nextNode() {
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			if (depth == 0)
+				throw new NoSuchElementException();
+			Node node = stack[--depth];
+			stack[depth] = null;
+			Node current = descending? node.left : node.right;
+			while (current != null) {
+				stack[depth++] = current;
+				current = descending? current.right : current.left;
+			}
+			if (depth > 0 && pastEnd(stack[depth - 1]))
+				depth = 0;
+			lastKey = node.key;
+			return node;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null)
+				throw new IllegalStateException();
+			if (modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			AVLTree.this.remove(lastKey);
+			while (depth > 0)
+				stack[--depth] = null;
+			seek(lastKey, false);
+			if (depth > 0 && pastEnd(stack[depth - 1]))
+				depth = 0;
+			lastKey = null;
+			expectedModCount = modCount;
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns a spliterator over the entries of the tree in ascending key order.
+	 * It is SIZED and SUBSIZED and splits at the roots of subtrees.
+	 */
+	@Override
+	public Spliterator<Map.Entry<K, T>> spliterator() {
+		return new NodeSpliterator<Map.Entry<K, T>>(ENTRIES, 0, size());
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the entries of the tree in ascending key
+	 * order. The stream splits by subtree for parallel use. The tree must not be
+	 * changed while the stream is in use.
+	 * 
+	 * @return a stream of the entries
+	 */
+	public Stream<Map.Entry<K, T>> entryStream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the entries with keys between lo and hi in
+	 * ascending key order.
+	 * 
+	 * @param lo the low end of the range
+	 * @param loInclusive whether a key equal to lo is included
+	 * @param hi the high end of the range
+	 * @param hiInclusive whether a key equal to hi is included
+	 * @return a stream of the entries in the range
+	 * @throws IllegalArgumentException if lo or hi is null
+	 */
+	public Stream<Map.Entry<K, T>> entryStream(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return StreamSupport.stream(rangeSpliterator(ENTRIES, lo, loInclusive, hi, hiInclusive), false);
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the keys of the tree in ascending order.
+	 * 
+	 * @return a stream of the keys
+	 */
+	public Stream<K> keyStream() {
+		return StreamSupport.stream(new NodeSpliterator<K>(KEYS, 0, size()), false);
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the keys between lo and hi in ascending order.
+	 * 
+	 * @param lo the low end of the range
+	 * @param loInclusive whether a key equal to lo is included
+	 * @param hi the high end of the range
+	 * @param hiInclusive whether a key equal to hi is included
+	 * @return a stream of the keys in the range
+	 * @throws IllegalArgumentException if lo or hi is null
+	 */
+	public Stream<K> keyStream(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return StreamSupport.stream(rangeSpliterator(KEYS, lo, loInclusive, hi, hiInclusive), false);
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the values of the tree in ascending key order.
+	 * 
+	 * @return a stream of the values
+	 */
+	public Stream<T> valueStream() {
+		return StreamSupport.stream(new NodeSpliterator<T>(VALUES, 0, size()), false);
+	}
+
+
+
+	/**
+	 * Returns a sequential stream of the values whose keys are between lo and
+	 * hi, in ascending key order.
+	 * 
+	 * @param lo the low end of the range
+	 * @param loInclusive whether a key equal to lo is included
+	 * @param hi the high end of the range
+	 * @param hiInclusive whether a key equal to hi is included
+	 * @return a stream of the values in the range
+	 * @throws IllegalArgumentException if lo or hi is null
+	 */
+	public Stream<T> valueStream(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return StreamSupport.stream(rangeSpliterator(VALUES, lo, loInclusive, hi, hiInclusive), false);
+	}
+	private <R> NodeSpliterator<R> rangeSpliterator(int kind, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		int from = rank(lo, root);
+		if (!loInclusive && contains(lo))
+			from++;
+		int to = rank(hi, root);
+		if (hiInclusive && contains(hi))
+			to++;
+		return new NodeSpliterator<R>(kind, from, Math.max(from, to));
+	}
+
+
+
+	private static final int ENTRIES = 0, KEYS = 1, VALUES = 2;
+
+	/*
+	 * Spliterator over the nodes with ranks in [from, to), producing entries, keys or values.
+	 * A split happens at the topmost node whose rank lies strictly inside the range, found in
+	 * O(log(n)) from the subtree sizes: the new spliterator takes the ranks below that node
+	 * and this one keeps the node and the ranks above it. The first split of the whole tree
+	 * therefore hands off the left subtree of the root, and later ones split at the roots of
+	 * its subtrees, which AVL balance keeps close to halves. Traversal seeks to the first
+	 * rank in O(log(n)) and then uses the in-order iterator.
+	 */
+	private class NodeSpliterator<R> implements Spliterator<R> {
+		private final int kind;
+		private int from;
+		private final int to;
+		private EntryIterator nodes;
+
+		NodeSpliterator(int kind, int from, int to) {
+			this.kind = kind;
+			this.from = from;
+			this.to = to;
+		}
+
+		@SuppressWarnings("unchecked")
+		private R element(Node node) {
+			if (kind == KEYS)
+				return (R) node.key;
+			if (kind == VALUES)
+				return (R) node.val;
+			return (R) new AbstractMap.SimpleImmutableEntry<K, T>(node.key, node.val);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super R> action) {
+			if (action == null)
+				throw new NullPointerException();
+			if (from >= to)
+				return false;
+			if (nodes == null)
+				nodes = new EntryIterator(from);
+			from++;
+			action.accept(element(nodes.nextNode()));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super R> action) {
+			if (action == null)
+				throw new NullPointerException();
+			if (from >= to)
+				return;
+			if (nodes == null)
+				nodes = new EntryIterator(from);
+			EntryIterator nodes = this.nodes;
+			int count = to - from;
+			from = to;
+			for (int i = 0; i < count; i++)
+				action.accept(element(nodes.nextNode()));
+		}
+
+		@Override
+		public Spliterator<R> trySplit() {
+			int mid = splitRank(from, to);
+			if (mid < 0)
+				return null;
+			NodeSpliterator<R> prefix = new NodeSpliterator<R>(kind, from, mid);
+			prefix.nodes = nodes;
+			nodes = null;
+			from = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return to - from;
+		}
+
+		/*
+		 * Returns the rank of the topmost node with from < rank < to, or -1 if there is none.
+		 */
+		private int splitRank(int from, int to) {
+			Node current = root;
+			int base = 0;								// rank of the first node in current's subtree
+			while (current != null) {
+				int rank = base + size(current.left);
+				if (rank <= from) {
+					base = rank + 1;
+					current = current.right;
+				}
+				else if (rank >= to)
+					current = current.left;
+				else
+					return rank;
+			}
+			return -1;
+		}
+
+		@Override
+		public int characteristics() {
+			int characteristics = ORDERED | SIZED | SUBSIZED | NONNULL;
+			if (kind != VALUES)
+				characteristics |= SORTED | DISTINCT;
+			return characteristics;
+		}
+
+		@Override
+		public Comparator<? super R> getComparator() {
+			if (kind == VALUES)
+				throw new IllegalStateException();
+			if (kind == KEYS) {
+				@SuppressWarnings("unchecked")
+				Comparator<? super R> keys = (Comparator<? super R>) comparator;
+				return keys;
+			}
+			Comparator<Map.Entry<K, T>> entries = (a, b) -> compare(a.getKey(), b.getKey());
+			@SuppressWarnings("unchecked")
+			Comparator<? super R> byKey = (Comparator<? super R>) entries;
+			return byKey;
+		}
+	}
+	
+	
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeTo(sb);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * Writes the entries of the tree to out in ascending key order, one
+	 * "key: value" line per entry, in O(n) time. Only the iterator's stack is
+	 * held in memory besides the output itself.
+	 * 
+	 * @param out where to write the entries
+	 * @throws IOException if out throws it
+	 */
+	public void writeTo(Appendable out) throws IOException {
+		EntryIterator it = new EntryIterator(null, false, null, false, false);
+		while (it.hasNext())
+			out.append(it.nextNode().toString()).append('\n');
+	}
+
+
+
+	/**
+	 * Writes the tree in Graphviz DOT format, one statement per line. Nodes are
+	 * numbered in pre-order and edges are labelled L or R.
+	 * 
+	 * @param out where to write the graph
+	 * @throws IOException if out throws it
+	 */
+	@SuppressWarnings("unchecked")
+	public void writeDot(Appendable out) throws IOException {
+		out.append("digraph AVLTree {\n");
+		Node[] stack = (Node[]) new AVLTree<?, ?>.Node[MAX_HEIGHT + 1];
+		int[] parents = new int[MAX_HEIGHT + 1];
+		boolean[] isLeft = new boolean[MAX_HEIGHT + 1];
+		int depth = 0;
+		int id = 0;
+		if (root != null) {
+			stack[depth] = root;
+			parents[depth++] = -1;
+		}
+		while (depth > 0) {
+			Node node = stack[--depth];
+			int parent = parents[depth];
+			boolean left = isLeft[depth];
+			stack[depth] = null;
+			out.append("  n").append(Integer.toString(id)).append(" [label=\"");
+			appendEscaped(out, node.toString());
+			out.append("\"];\n");
+			if (parent >= 0)
+				out.append("  n").append(Integer.toString(parent)).append(" -> n").append(Integer.toString(id))
+						.append(left? " [label=\"L\"];\n" : " [label=\"R\"];\n");
+			if (node.right != null) {
+				stack[depth] = node.right;
+				parents[depth] = id;
+				isLeft[depth++] = false;
+			}
+			if (node.left != null) {
+				stack[depth] = node.left;
+				parents[depth] = id;
+				isLeft[depth++] = true;
+			}
+			id++;
+		}
+		out.append("}\n");
+	}
+	private void appendEscaped(Appendable out, String label) throws IOException {
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\');
+			out.append(c);
+		}
+	}
+
+
+	
+	/*
+	 * The drawing is 2^depth labels wide, so the no-argument printers stop after
+	 * PRINT_DEPTH levels and mark the nodes cut off below with "...".
+	 */
+	static final int PRINT_DEPTH = 8;
+
+	public void printTree() {
+		printTree(System.out, 0, PRINT_DEPTH);
 	}
 	public void printKeyTree() {
-		toTreeString(root, 1);
+		printTree(System.out, 1, PRINT_DEPTH);
 	}
 	public void printValTree() {
-		toTreeString(root, 2);
+		printTree(System.out, 2, PRINT_DEPTH);
+	}
+	private void printTree(Appendable out, int ctrl, int maxDepth) {
+		try {
+			toTreeString(root, ctrl, maxDepth, out);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+
+	/**
+	 * Draws the top maxDepth levels of the tree to out, a line at a time.
+	 * Nodes whose children are cut off are marked with "...". The drawing is
+	 * as wide as 2^maxDepth labels, so keep maxDepth small for large trees.
+	 * 
+	 * @param out where to draw the tree
+	 * @param maxDepth the number of levels to draw
+	 * @throws IOException if out throws it
+	 * @throws IllegalArgumentException if maxDepth is less than 1
+	 */
+	public void printTree(Appendable out, int maxDepth) throws IOException {
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("Depth " + maxDepth + " is less than 1");
+		toTreeString(root, 0, maxDepth, out);
+	}
+
+
+
+	/**
+	 * Draws the top maxDepth levels of the subtree rooted at the given key.
+	 * 
+	 * @param out where to draw the subtree
+	 * @param key the key at the root of the subtree
+	 * @param maxDepth the number of levels to draw
+	 * @throws IOException if out throws it
+	 * @throws IllegalArgumentException if key is null or maxDepth is less than 1
+	 * @throws NoSuchElementException if the key is not in the tree
+	 */
+	public void printSubtree(Appendable out, K key, int maxDepth) throws IOException {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (maxDepth < 1)
+			throw new IllegalArgumentException("Depth " + maxDepth + " is less than 1");
+		Node node = getNode(key);
+		if (node == null)
+			throw new NoSuchElementException("Key is not in the tree");
+		toTreeString(node, 0, maxDepth, out);
 	}
 	/**
 	 * Binary tree printer
@@ -380,7 +2330,7 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 	 * @author MightyPork
 	 * https://stackoverflow.com/a/29704252
 	 */
-	private void toTreeString(Node root, int ctrl)
+	private void toTreeString(Node root, int ctrl, int maxDepth, Appendable out) throws IOException
 	{
 		List<List<String>> lines = new ArrayList<List<String>>();
 
@@ -392,7 +2342,7 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 
 		int widest = 0;
 
-		while (nn != 0) {
+		while (nn != 0 && lines.size() < maxDepth) {
 			List<String> line = new ArrayList<String>();
 
 			nn = 0;
@@ -411,6 +2361,8 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 						aa = n.getKeyString();
 					else
 						aa = n.getValString();
+					if (lines.size() == maxDepth - 1 && (n.left != null || n.right != null))
+						aa += " ...";
 					line.add(aa);
 					if (aa.length() > widest) widest = aa.length();
 
@@ -433,6 +2385,7 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 		}
 
 		int perpiece = lines.get(lines.size() - 1).size() * (widest + 4);
+		StringBuilder text = new StringBuilder();
 		for (int i = 0; i < lines.size(); i++) {
 			List<String> line = lines.get(i);
 			int hpw = (int) Math.floor(perpiece / 2f) - 1;
@@ -449,25 +2402,26 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 							if (j < line.size() && line.get(j) != null) c = '└';
 						}
 					}
-					System.out.print(c);
+					text.append(c);
 
 					// lines and spaces
 					if (line.get(j) == null) {
 						for (int k = 0; k < perpiece - 1; k++) {
-							System.out.print(" ");
+							text.append(" ");
 						}
 					} else {
 
 						for (int k = 0; k < hpw; k++) {
-							System.out.print(j % 2 == 0 ? " " : "─");
+							text.append(j % 2 == 0 ? " " : "─");
 						}
-						System.out.print(j % 2 == 0 ? "┌" : "┐");
+						text.append(j % 2 == 0 ? "┌" : "┐");
 						for (int k = 0; k < hpw; k++) {
-							System.out.print(j % 2 == 0 ? "─" : " ");
+							text.append(j % 2 == 0 ? "─" : " ");
 						}
 					}
 				}
-				System.out.println();
+				out.append(text).append('\n');
+				text.setLength(0);
 			}
 
 			// print line of numbers
@@ -480,14 +2434,15 @@ public class AVLTree<K extends Comparable<K>, T extends Comparable<T>> implement
 
 				// a number
 				for (int k = 0; k < gap1; k++) {
-					System.out.print(" ");
+					text.append(" ");
 				}
-				System.out.print(f);
+				text.append(f);
 				for (int k = 0; k < gap2; k++) {
-					System.out.print(" ");
+					text.append(" ");
 				}
 			}
-			System.out.println();
+			out.append(text).append('\n');
+			text.setLength(0);
 
 			perpiece /= 2;
 
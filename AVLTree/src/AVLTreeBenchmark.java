@@ -0,0 +1,909 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+
+/*
+ * Simple timing harness for AVLTree operations.
+ *
+ * Each benchmark is run a few times to let the JIT warm up before the
+ * reported measurement. Results are printed as total milliseconds and
+ * nanoseconds per operation.
+ */
+public class AVLTreeBenchmark {
+
+	static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) {
+		int maxSize = (args.length > 0)? Integer.parseInt(args[0]) : 1000000;
+		benchDrainMin();
+		benchPointOps(maxSize);
+		benchFootprint(maxSize);
+		benchBulkLoad(maxSize);
+		benchSetOperations(maxSize);
+		benchParallelStream(maxSize * 10);
+		benchSerialization(maxSize);
+		benchGroupCommit(20000, 32);
+		benchBatchOperations(maxSize);
+		benchFrozenLookups(maxSize * 10);
+		benchMetricsOverhead(maxSize);
+		benchKeyPrefixes(maxSize);
+		benchUpdates(maxSize);
+		benchVersionedScans(maxSize, 8);
+		benchShardedIngestion(maxSize, 32);
+		benchConcurrentThroughput(100000, 64);
+	}
+
+
+
+	/*
+	 * Drains a tree of random keys with the same min()/removeMin() loop used by
+	 * AVLTreeTester.testDeleteMin. With O(log n) min and removeMin the cost per
+	 * removed key should grow only logarithmically as n grows.
+	 */
+	public static void benchDrainMin() {
+		System.out.println("Draining tree with min() + removeMin():");
+		for (int n = 1000; n <= 1000000; n *= 10) {
+			long nanos = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				AVLTree<Integer, String> tree = makeRandomTree(n);
+				int count = tree.size();
+				long start = System.nanoTime();
+				while (!tree.isEmpty()) {
+					tree.min();
+					tree.removeMin();
+				}
+				nanos = (System.nanoTime() - start) / count;
+			}
+			report(n, nanos);
+		}
+	}
+
+
+
+	/*
+	 * Times add, get, contains and remove of n random keys on AVLTree, with
+	 * java.util.TreeMap as a baseline for the same key sequence.
+	 */
+	public static void benchPointOps(int maxSize) {
+		for (int n = 1000; n <= maxSize; n *= 10) {
+			int[] keys = randomKeys(n);
+			long add = 0, get = 0, contains = 0, remove = 0;
+			long mapPut = 0, mapGet = 0, mapContains = 0, mapRemove = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+				long start = System.nanoTime();
+				for (int key : keys)
+					tree.add(key, "a");
+				add = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					tree.get(key);
+				get = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					tree.contains(key);
+				contains = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					tree.remove(key);
+				remove = (System.nanoTime() - start) / n;
+
+				TreeMap<Integer, String> map = new TreeMap<Integer, String>();
+				start = System.nanoTime();
+				for (int key : keys)
+					map.put(key, "a");
+				mapPut = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					map.get(key);
+				mapGet = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					map.containsKey(key);
+				mapContains = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				for (int key : keys)
+					map.remove(key);
+				mapRemove = (System.nanoTime() - start) / n;
+			}
+			System.out.println("Point operations, n = " + n + " (ns/op, AVLTree vs TreeMap):");
+			System.out.printf("  add      %8d %8d%n", add, mapPut);
+			System.out.printf("  get      %8d %8d%n", get, mapGet);
+			System.out.printf("  contains %8d %8d%n", contains, mapContains);
+			System.out.printf("  remove   %8d %8d%n", remove, mapRemove);
+		}
+	}
+
+
+
+	/*
+	 * Estimates heap bytes per entry for a long-to-long mapping of n random keys,
+	 * comparing boxed AVLTree and TreeMap with the array-backed LongLongAVLTree
+	 * and the off-heap OffHeapAVLTree.
+	 */
+	public static void benchFootprint(int n) {
+		int[] keys = randomKeys(n);
+		System.out.println("Heap footprint, n = " + n + " (bytes/entry):");
+
+		long before = usedHeap();
+		AVLTree<Long, Long> boxed = new AVLTree<Long, Long>();
+		for (int key : keys)
+			boxed.add((long) key, (long) key);
+		System.out.printf("  AVLTree<Long, Long>  %6d%n", (usedHeap() - before) / boxed.size());
+		boxed = null;
+
+		before = usedHeap();
+		TreeMap<Long, Long> map = new TreeMap<Long, Long>();
+		for (int key : keys)
+			map.put((long) key, (long) key);
+		System.out.printf("  TreeMap<Long, Long>  %6d%n", (usedHeap() - before) / map.size());
+		map = null;
+
+		before = usedHeap();
+		LongLongAVLTree primitive = new LongLongAVLTree(n);
+		for (int key : keys)
+			primitive.add(key, key);
+		System.out.printf("  LongLongAVLTree      %6d%n", (usedHeap() - before) / primitive.size());
+		primitive = null;
+
+		before = usedHeap();
+		OffHeapAVLTree offHeap = new OffHeapAVLTree();
+		for (int key : keys)
+			offHeap.add((long) key, (long) key);
+		System.out.printf("  OffHeapAVLTree       %6d (plus %d off-heap)%n",
+				(usedHeap() - before) / offHeap.size(), offHeap.reservedBytes() / offHeap.size());
+		offHeap.close();
+	}
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+
+	/*
+	 * Compares loading n sorted entries with bulkLoad against adding them one at a
+	 * time, as AVLTreeDriver.fillFull does.
+	 */
+	public static void benchBulkLoad(int maxSize) {
+		System.out.println("Loading sorted entries (ns/entry, bulkLoad vs add):");
+		for (int n = 1000; n <= maxSize; n *= 10) {
+			TreeMap<Integer, String> entries = new TreeMap<Integer, String>();
+			for (int i = 0; i < n; i++)
+				entries.put(i, "a");
+			long bulk = 0, incremental = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+				long start = System.nanoTime();
+				tree.bulkLoad(entries.entrySet().iterator());
+				bulk = (System.nanoTime() - start) / n;
+
+				tree = new AVLTree<Integer, String>();
+				start = System.nanoTime();
+				for (Map.Entry<Integer, String> entry : entries.entrySet())
+					tree.add(entry.getKey(), entry.getValue());
+				incremental = (System.nanoTime() - start) / n;
+			}
+			System.out.printf("  n = %-9d %8d %8d%n", n, bulk, incremental);
+		}
+	}
+
+
+
+	/*
+	 * Times union, intersection and difference of two random trees of n keys each,
+	 * against building the union by probing and adding one key at a time. Run with
+	 * -Djava.util.concurrent.ForkJoinPool.common.parallelism=1 for a single-threaded
+	 * baseline of the set operations.
+	 */
+	public static void benchSetOperations(int maxSize) {
+		System.out.println("Set operations on two trees of n keys (ms), parallelism "
+				+ ForkJoinPool.commonPool().getParallelism() + ":");
+		System.out.println("                  union intersect    differ  add loop");
+		for (int n = 1000; n <= maxSize; n *= 10) {
+			int[] aKeys = randomKeys(n);
+			int[] bKeys = randomKeys(n + 1);
+			AVLTree<Integer, String> a = new AVLTree<Integer, String>();
+			AVLTree<Integer, String> b = new AVLTree<Integer, String>();
+			for (int i = 0; i < n; i++) {
+				a.add(aKeys[i], "a");
+				b.add(bKeys[i], "b");
+			}
+			long union = 0, intersection = 0, difference = 0, loop = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				long start = System.nanoTime();
+				a.union(b, (x, y) -> y);
+				union = System.nanoTime() - start;
+				start = System.nanoTime();
+				a.intersection(b);
+				intersection = System.nanoTime() - start;
+				start = System.nanoTime();
+				a.difference(b);
+				difference = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				AVLTree<Integer, String> merged = new AVLTree<Integer, String>();
+				for (int key : aKeys)
+					merged.add(key, "a");
+				for (int key : bKeys)
+					if (!merged.contains(key))
+						merged.add(key, "b");
+				loop = System.nanoTime() - start;
+			}
+			System.out.printf("  n = %-9d %9.2f %9.2f %9.2f %9.2f%n", n,
+					union / 1e6, intersection / 1e6, difference / 1e6, loop / 1e6);
+		}
+	}
+
+
+	/*
+	 * Sums the values of a tree with entryStream().mapToLong(...).sum(), sequentially
+	 * and in parallel, with the entry set stream of java.util.TreeMap as a baseline.
+	 * Parallel speedup is bounded by the parallelism of the common pool.
+	 */
+	public static void benchParallelStream(int maxSize) {
+		System.out.println("Summing values with a stream (ms), parallelism "
+				+ ForkJoinPool.commonPool().getParallelism() + ":");
+		System.out.println("                 sequential  parallel   TreeMap  parallel");
+		for (int n = 1000000; n <= maxSize; n *= 10) {
+			AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+			TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < n; i++) {
+				tree.add(i, i);
+				map.put(i, i);
+			}
+			long sequential = 0, parallel = 0, mapSequential = 0, mapParallel = 0;
+			long sum = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				long start = System.nanoTime();
+				sum += tree.entryStream().mapToLong(e -> e.getValue()).sum();
+				sequential = System.nanoTime() - start;
+				start = System.nanoTime();
+				sum += tree.entryStream().parallel().mapToLong(e -> e.getValue()).sum();
+				parallel = System.nanoTime() - start;
+				start = System.nanoTime();
+				sum += map.entrySet().stream().mapToLong(e -> e.getValue()).sum();
+				mapSequential = System.nanoTime() - start;
+				start = System.nanoTime();
+				sum += map.entrySet().parallelStream().mapToLong(e -> e.getValue()).sum();
+				mapParallel = System.nanoTime() - start;
+			}
+			if (sum != 16L * n * (n - 1) / 2)
+				throw new AssertionError("Wrong sum");
+			System.out.printf("  n = %-9d %9.2f %9.2f %9.2f %9.2f%n", n,
+					sequential / 1e6, parallel / 1e6, mapSequential / 1e6, mapParallel / 1e6);
+		}
+	}
+
+
+	/*
+	 * Writes and reads n random Long entries through a temporary file with
+	 * AVLTreeSerializer, plain and compressed, and with Java serialization of a
+	 * java.util.TreeMap holding the same entries as a baseline.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void benchSerialization(int maxSize) {
+		System.out.println("Snapshot write / read (ms) and file size (MB):");
+		System.out.println("                  write      read      size");
+		AVLTreeSerializer<Long, Long> plain = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG);
+		AVLTreeSerializer<Long, Long> compressed = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG, true);
+		try {
+			Path file = Files.createTempFile("avltree", ".bench");
+			try {
+				for (int n = 1000; n <= maxSize; n *= 10) {
+					AVLTree<Long, Long> tree = new AVLTree<Long, Long>();
+					TreeMap<Long, Long> map = new TreeMap<Long, Long>();
+					Random rnd = new Random(n);
+					for (int i = 0; i < n; i++) {
+						long key = rnd.nextInt(n * 4);
+						tree.add(key, (long) i);
+						map.put(key, (long) i);
+					}
+					System.out.println("  n = " + n);
+					for (int kind = 0; kind < 3; kind++) {
+						long write = 0, read = 0;
+						for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+							long start = System.nanoTime();
+							if (kind == 2) {
+								try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+									out.writeObject(map);
+								}
+							}
+							else
+								((kind == 0)? plain : compressed).write(tree, file);
+							write = System.nanoTime() - start;
+							start = System.nanoTime();
+							int size;
+							if (kind == 2) {
+								try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+									size = ((TreeMap<Long, Long>) in.readObject()).size();
+								}
+							}
+							else
+								size = ((kind == 0)? plain : compressed).read(file).size();
+							read = System.nanoTime() - start;
+							if (size != map.size())
+								throw new AssertionError("Wrong size");
+						}
+						System.out.printf("    %-11s %9.2f %9.2f %9.2f%n", new String[] { "serializer", "compressed", "TreeMap" }[kind],
+								write / 1e6, read / 1e6, Files.size(file) / 1e6);
+					}
+				}
+			}
+			finally {
+				Files.delete(file);
+			}
+		}
+		catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/*
+	 * Adds n keys to a DurableAVLTree from 1 to maxThreads concurrent writers. Each add
+	 * waits for its log record to be forced, so throughput depends on how many records
+	 * group commit fits into each fsync, which grows with the number of writers.
+	 */
+	public static void benchGroupCommit(int n, int maxThreads) {
+		System.out.println("DurableAVLTree adds with group commit, " + n + " keys:");
+		System.out.println("  writers     ops/s  records/fsync");
+		try {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				Path dir = Files.createTempDirectory("avltree");
+				DurableAVLTree<Long, Long> tree = DurableAVLTree.open(dir, AVLTreeSerializer.LONG, AVLTreeSerializer.LONG);
+				Thread[] writers = new Thread[threads];
+				int perThread = n / threads;
+				long start = System.nanoTime();
+				for (int t = 0; t < threads; t++) {
+					long base = (long) t * perThread;
+					writers[t] = new Thread(() -> {
+						for (long i = 0; i < perThread; i++)
+							tree.add(base + i, i);
+					});
+					writers[t].start();
+				}
+				for (Thread writer : writers)
+					writer.join();
+				long nanos = System.nanoTime() - start;
+				long records = (long) perThread * threads;
+				System.out.printf("  %7d %9.0f %14.1f%n", threads, records * 1e9 / nanos, (double) records / tree.syncCount());
+				tree.close();
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+					for (Path file : files)
+						Files.delete(file);
+				}
+				Files.delete(dir);
+			}
+		}
+		catch (IOException | InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/*
+	 * Looks up, adds and removes sorted batches of keys in a tree of n keys with getAll,
+	 * addAll and removeAll, against calling get, add and remove once per key.
+	 */
+	public static void benchBatchOperations(int maxSize) {
+		System.out.println("Sorted batches on a tree of n keys, batch vs per-key (ns per key):");
+		System.out.println("                          getAll       get    addAll       add removeAll    remove");
+		for (int n = 100000; n <= maxSize; n *= 10) {
+			AVLTree<Integer, String> base = makeRandomTree(n);
+			for (int batch = 100; batch <= n / 10; batch *= 10) {
+				Integer[] keys = new Integer[batch];
+				Random rnd = new Random(batch);
+				for (int i = 0; i < batch; i++)
+					keys[i] = rnd.nextInt();
+				Arrays.sort(keys);
+				String[] vals = new String[batch];
+				Arrays.fill(vals, "b");
+				long getAll = 0, get = 0, addAll = 0, add = 0, removeAll = 0, remove = 0;
+				for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+					AVLTree<Integer, String> a = base.union(new AVLTree<Integer, String>(), (x, y) -> x);
+					AVLTree<Integer, String> b = base.union(new AVLTree<Integer, String>(), (x, y) -> x);
+					long start = System.nanoTime();
+					a.getAll(keys, vals.clone());
+					getAll = System.nanoTime() - start;
+					start = System.nanoTime();
+					for (Integer key : keys)
+						b.get(key);
+					get = System.nanoTime() - start;
+					start = System.nanoTime();
+					a.addAll(keys, vals);
+					addAll = System.nanoTime() - start;
+					start = System.nanoTime();
+					for (Integer key : keys)
+						b.add(key, "b");
+					add = System.nanoTime() - start;
+					start = System.nanoTime();
+					a.removeAll(keys);
+					removeAll = System.nanoTime() - start;
+					start = System.nanoTime();
+					for (Integer key : keys)
+						b.remove(key);
+					remove = System.nanoTime() - start;
+				}
+				System.out.printf("  n = %-8d batch %-7d %9d %9d %9d %9d %9d %9d%n", n, batch, getAll / batch, get / batch,
+						addAll / batch, add / batch, removeAll / batch, remove / batch);
+			}
+		}
+	}
+
+
+	/*
+	 * Looks up random keys in a tree of n keys and in its frozen van Emde Boas copy, with
+	 * java.util.TreeMap as a baseline. The gap should widen as the tree outgrows the caches.
+	 */
+	public static void benchFrozenLookups(int maxSize) {
+		System.out.println("Random lookups (ns per get):");
+		System.out.println("                    AVLTree    frozen   TreeMap");
+		for (int n = 100000; n <= maxSize; n *= 10) {
+			AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+			TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+			Random rnd = new Random(n);
+			for (int i = 0; i < n; i++) {
+				int key = rnd.nextInt();
+				tree.add(key, i);
+				map.put(key, i);
+			}
+			FrozenAVLTree<Integer, Integer> frozen = tree.freeze();
+			Integer[] queries = new Integer[1000000];
+			for (int i = 0; i < queries.length; i++)
+				queries[i] = (i % 2 == 0)? tree.select(rnd.nextInt(tree.size())) : rnd.nextInt();
+
+			long avl = 0, flat = 0, treeMap = 0;
+			long found = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (Integer key : queries)
+					if (tree.get(key) != null)
+						found++;
+				avl = (System.nanoTime() - start) / queries.length;
+				start = System.nanoTime();
+				for (Integer key : queries)
+					if (frozen.get(key) != null)
+						found++;
+				flat = (System.nanoTime() - start) / queries.length;
+				start = System.nanoTime();
+				for (Integer key : queries)
+					if (map.get(key) != null)
+						found++;
+				treeMap = (System.nanoTime() - start) / queries.length;
+			}
+			if (found == 0)
+				throw new AssertionError("Nothing found");
+			System.out.printf("  n = %-10d %9d %9d %9d%n", n, avl, flat, treeMap);
+		}
+	}
+
+
+
+	/*
+	 * Times add, get and remove of n random keys with metrics as set by -Davltree.metrics.
+	 * Run once with and once without the flag: without it the times should match a build
+	 * with no instrumentation at all, since the guarded hooks are compiled away.
+	 */
+	public static void benchMetricsOverhead(int n) {
+		System.out.println("Point operations with metrics " + (AVLTreeMetrics.ENABLED? "enabled" : "disabled") + ", n = " + n + " (ns/op):");
+		int[] keys = randomKeys(n);
+		long add = 0, get = 0, remove = 0;
+		AVLTree<Integer, String> tree = null;
+		for (int round = 0; round <= WARMUP_ROUNDS * 3; round++) {
+			tree = new AVLTree<Integer, String>();
+			long start = System.nanoTime();
+			for (int key : keys)
+				tree.add(key, "a");
+			add = (System.nanoTime() - start) / n;
+			start = System.nanoTime();
+			for (int key : keys)
+				tree.get(key);
+			get = (System.nanoTime() - start) / n;
+			start = System.nanoTime();
+			for (int key : keys)
+				tree.remove(key);
+			remove = (System.nanoTime() - start) / n;
+		}
+		System.out.printf("  add %d  get %d  remove %d%n", add, get, remove);
+		if (AVLTreeMetrics.ENABLED)
+			System.out.print(tree.metrics().snapshot());
+	}
+
+
+
+	/*
+	 * Looks up random UUID keys and long URL-like string keys in trees of n keys, with and
+	 * without stored key prefixes, and in java.util.TreeMap. A prefix saves loading the key
+	 * object at every node whose prefix differs, which is most of them for UUIDs; the URLs
+	 * all start with "https://", so their 8-char string prefixes only help after that.
+	 */
+	public static void benchKeyPrefixes(int n) {
+		Random rnd = new Random(n);
+		UUID[] uuids = new UUID[n];
+		for (int i = 0; i < n; i++)
+			uuids[i] = new UUID(rnd.nextLong(), rnd.nextLong());
+		String[] urls = new String[n];
+		String[] hosts = { "www.example.com", "static.example.org", "api.example.net", "cdn.example.io" };
+		for (int i = 0; i < n; i++)
+			urls[i] = "https://" + hosts[rnd.nextInt(hosts.length)] + "/catalog/products/category-" + rnd.nextInt(100)
+					+ "/item-" + Long.toHexString(rnd.nextLong()) + "?ref=search&page=" + rnd.nextInt(50);
+		String[] shortUrls = new String[n];
+		for (int i = 0; i < n; i++)
+			shortUrls[i] = urls[i].substring("https://".length());
+
+		System.out.println("Lookups by key type, n = " + n + " (ns per get):");
+		System.out.println("                 natural  prefixed   TreeMap");
+		reportKeyPrefixes("UUID", uuids, AVLTree.KeyPrefix.UUIDS);
+		reportKeyPrefixes("URL", urls, AVLTree.KeyPrefix.STRINGS);
+		reportKeyPrefixes("URL w/o scheme", shortUrls, AVLTree.KeyPrefix.STRINGS);
+	}
+	static <K extends Comparable<K>> void reportKeyPrefixes(String name, K[] keys, AVLTree.KeyPrefix<K> prefix) {
+		AVLTree<K, Integer> natural = new AVLTree<K, Integer>();
+		AVLTree<K, Integer> prefixed = new AVLTree<K, Integer>(null, prefix);
+		TreeMap<K, Integer> map = new TreeMap<K, Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			natural.add(keys[i], i);
+			prefixed.add(keys[i], i);
+			map.put(keys[i], i);
+		}
+		K[] queries = Arrays.copyOf(keys, keys.length);
+		Collections.shuffle(Arrays.asList(queries), new Random(1));
+		long plain = 0, withPrefix = 0, treeMap = 0;
+		long found = 0;
+		for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (K key : queries)
+				if (natural.get(key) != null)
+					found++;
+			plain = (System.nanoTime() - start) / queries.length;
+			start = System.nanoTime();
+			for (K key : queries)
+				if (prefixed.get(key) != null)
+					found++;
+			withPrefix = (System.nanoTime() - start) / queries.length;
+			start = System.nanoTime();
+			for (K key : queries)
+				if (map.get(key) != null)
+					found++;
+			treeMap = (System.nanoTime() - start) / queries.length;
+		}
+		if (found == 0)
+			throw new AssertionError("Nothing found");
+		System.out.printf("  %-14s %9d %9d %9d%n", name, plain, withPrefix, treeMap);
+	}
+
+
+
+	/*
+	 * Counts n random keys drawn from n / 10 distinct ones, a read-modify-write per key,
+	 * first with the contains, get and add calls this needed before and then with a single
+	 * merge. Comparisons are counted with a counting comparator in a separate pass so the
+	 * counting does not skew the times.
+	 */
+	public static void benchUpdates(int n) {
+		int[] keys = new int[n];
+		Random rnd = new Random(n);
+		for (int i = 0; i < n; i++)
+			keys[i] = rnd.nextInt(Math.max(1, n / 10));
+		long[] comparisons = new long[1];
+		Comparator<Integer> counting = (a, b) -> {
+			comparisons[0]++;
+			return a.compareTo(b);
+		};
+
+		System.out.println("Counting " + n + " keys over " + (n / 10) + " distinct:");
+		System.out.println("                      ns/op  comparisons/op");
+		long multiCall = 0, merge = 0;
+		for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+			multiCall = countKeys(new AVLTree<Integer, Integer>(), keys, false);
+			merge = countKeys(new AVLTree<Integer, Integer>(), keys, true);
+		}
+		comparisons[0] = 0;
+		countKeys(new AVLTree<Integer, Integer>(counting), keys, false);
+		long multiCallComparisons = comparisons[0];
+		comparisons[0] = 0;
+		countKeys(new AVLTree<Integer, Integer>(counting), keys, true);
+		long mergeComparisons = comparisons[0];
+		System.out.printf("  contains/get/add %9d %15.1f%n", multiCall / n, (double) multiCallComparisons / n);
+		System.out.printf("  merge            %9d %15.1f%n", merge / n, (double) mergeComparisons / n);
+	}
+	private static long countKeys(AVLTree<Integer, Integer> tree, int[] keys, boolean merge) {
+		long start = System.nanoTime();
+		if (merge) {
+			for (int key : keys)
+				tree.merge(key, 1, Integer::sum);
+		}
+		else {
+			for (int key : keys) {
+				if (tree.contains(key))
+					tree.add(key, tree.get(key) + 1);
+				else
+					tree.add(key, 1);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+
+
+	/*
+	 * Measures the throughput of one thread adding and removing random keys among n while 0,
+	 * 1 and maxScanners threads scan the whole tree over and over. VersionedAVLTree scans a
+	 * pinned version without blocking the writer; the baseline AVLTree holds the read lock of
+	 * a ReentrantReadWriteLock for each scan, which the writer must wait out.
+	 */
+	public static void benchVersionedScans(int n, int maxScanners) {
+		System.out.println("Point writes during full scans over " + n + " keys (million writes/s, scans/s):");
+		System.out.println("  scanners  Versioned     scans  read-write lock     scans");
+		for (int scanners = 0; scanners <= maxScanners; scanners = (scanners == 0)? 1 : scanners * 8) {
+			VersionedAVLTree<Integer, Integer> versioned = new VersionedAVLTree<Integer, Integer>();
+			AVLTree<Integer, Integer> locked = new AVLTree<Integer, Integer>();
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			for (int i = 0; i < n; i += 2) {
+				versioned.add(i, i);
+				locked.add(i, i);
+			}
+			double[] v = writesDuringScans(scanners, n, key -> {
+				if ((key & 1) == 0)
+					versioned.add(key, key);
+				else
+					versioned.remove(key);
+			}, () -> {
+				long sum = 0;
+				try (VersionedAVLTree<Integer, Integer>.ReadView view = versioned.openView()) {
+					for (Map.Entry<Integer, Integer> entry : view)
+						sum += entry.getValue();
+				}
+				return sum;
+			});
+			double[] l = writesDuringScans(scanners, n, key -> {
+				lock.writeLock().lock();
+				try {
+					if ((key & 1) == 0)
+						locked.add(key, key);
+					else
+						locked.remove(key);
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+			}, () -> {
+				long sum = 0;
+				lock.readLock().lock();
+				try {
+					for (Map.Entry<Integer, Integer> entry : locked)
+						sum += entry.getValue();
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+				return sum;
+			});
+			System.out.printf("  %8d  %9.2f  %8.1f  %15.2f  %8.1f%n", scanners, v[0], v[1], l[0], l[1]);
+		}
+	}
+	static double[] writesDuringScans(int scanners, int n, IntConsumer write, LongSupplier scan) {
+		final long millis = 500;
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicLong scans = new AtomicLong();
+		AtomicLong checksum = new AtomicLong();		// keeps the scans from being optimized away
+		Thread[] scanThreads = new Thread[scanners];
+		for (int t = 0; t < scanners; t++) {
+			scanThreads[t] = new Thread(() -> {
+				while (!done.get()) {
+					checksum.addAndGet(scan.getAsLong());
+					scans.incrementAndGet();
+				}
+			});
+			scanThreads[t].start();
+		}
+		Random rnd = new Random(scanners);
+		long writes = 0;
+		long start = System.nanoTime();
+		long end = start + millis * 1000000;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 100; i++)
+				write.accept(rnd.nextInt(n));
+			writes += 100;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		done.set(true);
+		for (Thread thread : scanThreads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return new double[] { writes / seconds / 1e6, scans.get() / seconds };
+	}
+
+
+
+	/*
+	 * Inserts n random keys split evenly among 1 to maxThreads writer threads, into a
+	 * ShardedAVLTree with 32 shards bounded by a sample of the keys, an AVLTree guarded by
+	 * synchronized and ConcurrentSkipListMap. With a core per writer the sharded tree should
+	 * scale until the writers outnumber the cores or the shards.
+	 */
+	public static void benchShardedIngestion(int n, int maxThreads) {
+		System.out.println("Ingesting " + n + " random keys (million inserts/s):");
+		System.out.println("  threads   Sharded  synchronized  SkipList");
+		int[] keys = randomKeys(n);
+		List<Integer> sample = new ArrayList<Integer>();
+		for (int i = 0; i < n; i += Math.max(1, n / 4096))
+			sample.add(keys[i]);
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double sharded = 0, synced = 0, skip = 0;
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				ShardedAVLTree<Integer, Integer> shardedTree = new ShardedAVLTree<Integer, Integer>(32, sample);
+				sharded = ingest(threads, keys, key -> shardedTree.add(key, key));
+				AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+				synced = ingest(threads, keys, key -> {
+					synchronized (tree) {
+						tree.add(key, key);
+					}
+				});
+				ConcurrentSkipListMap<Integer, Integer> skipList = new ConcurrentSkipListMap<Integer, Integer>();
+				skip = ingest(threads, keys, key -> skipList.put(key, key));
+			}
+			System.out.printf("  %7d  %8.2f  %12.2f  %8.2f%n", threads, sharded, synced, skip);
+		}
+	}
+	static double ingest(int threads, int[] keys, IntConsumer insert) {
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int from = (int) ((long) t * keys.length / threads);
+			final int to = (int) ((long) (t + 1) * keys.length / threads);
+			writers[t] = new Thread(() -> {
+				for (int i = from; i < to; i++)
+					insert.accept(keys[i]);
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread writer : writers)
+			writer.start();
+		for (Thread writer : writers) {
+			try {
+				writer.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return keys.length / ((System.nanoTime() - start) / 1e3);
+	}
+
+
+
+	/*
+	 * Measures throughput of a 90% get / 10% add-or-remove mix over n keys with 1 to
+	 * maxThreads threads, for ConcurrentAVLTree, an AVLTree guarded by synchronized
+	 * and ConcurrentSkipListMap.
+	 */
+	public static void benchConcurrentThroughput(int n, int maxThreads) {
+		System.out.println("Concurrent 90/10 read/write mix over " + n + " keys (million ops/s):");
+		System.out.println("  threads  Concurrent  synchronized  SkipList");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			ConcurrentAVLTree<Integer, Integer> concurrent = new ConcurrentAVLTree<Integer, Integer>();
+			AVLTree<Integer, Integer> synced = new AVLTree<Integer, Integer>();
+			ConcurrentSkipListMap<Integer, Integer> skipList = new ConcurrentSkipListMap<Integer, Integer>();
+			for (int i = 0; i < n; i += 2) {
+				concurrent.add(i, i);
+				synced.add(i, i);
+				skipList.put(i, i);
+			}
+			double c = throughput(threads, n, (key, write) -> {
+				if (!write)
+					concurrent.get(key);
+				else if ((key & 1) == 0)
+					concurrent.add(key, key);
+				else
+					concurrent.remove(key);
+			});
+			double s = throughput(threads, n, (key, write) -> {
+				synchronized (synced) {
+					if (!write)
+						synced.get(key);
+					else if ((key & 1) == 0)
+						synced.add(key, key);
+					else
+						synced.remove(key);
+				}
+			});
+			double k = throughput(threads, n, (key, write) -> {
+				if (!write)
+					skipList.get(key);
+				else if ((key & 1) == 0)
+					skipList.put(key, key);
+				else
+					skipList.remove(key);
+			});
+			System.out.printf("  %7d  %10.2f  %12.2f  %8.2f%n", threads, c, s, k);
+		}
+	}
+	interface Operation {
+		void run(int key, boolean write);
+	}
+	static double throughput(int threads, int n, Operation op) {
+		final long millis = 300;
+		AtomicLong ops = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			workers[t] = new Thread(() -> {
+				Random rnd = new Random(seed);
+				long count = 0;
+				long end = System.nanoTime() + millis * 1000000;
+				while (System.nanoTime() < end) {
+					for (int i = 0; i < 100; i++)
+						op.run(rnd.nextInt(n), rnd.nextInt(10) == 0);
+					count += 100;
+				}
+				ops.addAndGet(count);
+			});
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return ops.get() / (millis * 1000.0);
+	}
+
+
+
+	static int[] randomKeys(int n) {
+		Random rnd = new Random(n);
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = rnd.nextInt();
+		}
+		return keys;
+	}
+
+	static AVLTree<Integer, String> makeRandomTree(int n) {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		Random rnd = new Random(n);
+		for (int i = 0; i < n; i++) {
+			tree.add(rnd.nextInt(), "a");
+		}
+		return tree;
+	}
+
+	static void report(int n, long nanosPerOp) {
+		double log2n = Math.log(n) / Math.log(2);
+		System.out.printf("  n = %-9d %8d ns/op  %8.2f ns/op per log2(n)%n", n, nanosPerOp, nanosPerOp / log2n);
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Management interface of AVLTreeMetrics, as seen from JConsole or any other JMX client.
+ *
+ * Per-operation attributes are maps from the operation name (GET, CONTAINS, ADD, REMOVE,
+ * UPDATE) to a value; latencies are in nanoseconds.
+ */
+
+import java.util.Map;
+
+public interface AVLTreeMetricsMXBean {
+
+	public long getComparisons();
+
+	public long getNodesVisited();
+
+	public long getSingleRotations();
+
+	public long getDoubleRotations();
+
+	public Map<String, Long> getRotationsByCase();
+
+	public Map<String, Long> getOperationCounts();
+
+	public Map<String, Double> getMeanNodesVisited();
+
+	public Map<String, Long> getMedianNanos();
+
+	public Map<String, Long> getP99Nanos();
+
+	public Map<String, Long> getMaxNanos();
+
+	public void reset();
+
+}
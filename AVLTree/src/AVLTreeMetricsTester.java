@@ -0,0 +1,117 @@
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AVLTreeMetricsTester {
+
+	@Test
+	public void testHistogramPrecision() {
+		AVLTreeMetrics.LatencyHistogram h = new AVLTreeMetrics.LatencyHistogram();
+		assertEquals(0, h.valueAtQuantile(0.5));
+
+		for (long v = 1; v <= 1000; v++) {
+			h.record(v);
+		}
+		assertEquals(1000, h.count());
+		assertEquals(1000, h.max());
+		assertEquals(1000, h.valueAtQuantile(1.0));
+		assertEquals(1, h.valueAtQuantile(0.0));
+		long median = h.valueAtQuantile(0.5);
+		assertTrue(median >= 500 && median <= 500 * 1.125);
+		long p99 = h.valueAtQuantile(0.99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+
+		for (int i = 0; i < 10000; i++) {
+			long v = new Random(i).nextLong() >>> 1;
+			int bucket = AVLTreeMetrics.LatencyHistogram.bucket(v);
+			long highest = AVLTreeMetrics.LatencyHistogram.highestInBucket(bucket);
+			assertTrue(highest >= v);
+			assertTrue(highest - v <= v / 8);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHistogramRejectsBadQuantile() {
+		new AVLTreeMetrics.LatencyHistogram().valueAtQuantile(1.5);
+	}
+
+	@Test
+	public void testDisabledMetricsStayZero() {
+		assumeTrue(!AVLTreeMetrics.ENABLED);
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		for (int i = 0; i < 100; i++) {
+			tree.add(i, i);
+			tree.get(i);
+		}
+		AVLTreeMetrics.Snapshot snapshot = tree.metrics().snapshot();
+		assertEquals(0, snapshot.comparisons());
+		assertEquals(0, snapshot.count(AVLTreeMetrics.Operation.ADD));
+	}
+
+	/*
+	 * Runs only with -Davltree.metrics=true.
+	 */
+	@Test
+	public void testCountersAndRotations() {
+		assumeTrue(AVLTreeMetrics.ENABLED);
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+
+		// Ascending inserts only ever need right-right rotations
+		for (int i = 0; i < 1023; i++) {
+			tree.add(i, i);
+		}
+		AVLTreeMetrics.Snapshot snapshot = tree.metrics().snapshot();
+		assertEquals(1023, snapshot.count(AVLTreeMetrics.Operation.ADD));
+		assertEquals(1013, snapshot.rotations(AVLTreeMetrics.Rotation.RIGHT_RIGHT));
+		assertEquals(0, snapshot.doubleRotations());
+		assertEquals(snapshot.nodesVisited(AVLTreeMetrics.Operation.ADD), snapshot.comparisons());
+
+		tree.metrics().reset();
+		for (int i = 0; i < 1023; i++) {
+			tree.get(i);
+		}
+		tree.contains(5000);
+		tree.remove(5000);
+		snapshot = tree.metrics().snapshot();
+		assertEquals(1023, snapshot.count(AVLTreeMetrics.Operation.GET));
+		assertEquals(1, snapshot.count(AVLTreeMetrics.Operation.CONTAINS));
+		assertEquals(1, snapshot.count(AVLTreeMetrics.Operation.REMOVE));
+		assertEquals(0, snapshot.singleRotations());
+		double meanGet = snapshot.meanNodesVisited(AVLTreeMetrics.Operation.GET);
+		assertTrue(meanGet > 8 && meanGet <= tree.height());
+		assertTrue(snapshot.latency(AVLTreeMetrics.Operation.GET).max() > 0);
+
+		// Each of the four cases on a three node tree
+		int[][] orders = { { 3, 2, 1 }, { 1, 2, 3 }, { 3, 1, 2 }, { 1, 3, 2 } };
+		for (int c = 0; c < orders.length; c++) {
+			AVLTree<Integer, Integer> small = new AVLTree<Integer, Integer>();
+			for (int key : orders[c]) {
+				small.add(key, key);
+			}
+			AVLTreeMetrics.Rotation rotation = AVLTreeMetrics.Rotation.values()[c];
+			assertEquals(1, small.metrics().snapshot().rotations(rotation));
+			assertEquals(c >= 2, small.metrics().getDoubleRotations() == 1);
+		}
+	}
+
+	@Test
+	public void testMBeanRegistration() {
+		assumeTrue(AVLTreeMetrics.ENABLED);
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		tree.add(1, 1);
+		AVLTreeMetrics metrics = tree.metrics();
+		javax.management.ObjectName name = metrics.register("test");
+		try {
+			assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+			assertEquals(Long.valueOf(1), metrics.getOperationCounts().get("ADD"));
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertFalse(java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+}
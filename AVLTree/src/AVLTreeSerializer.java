@@ -0,0 +1,527 @@
+/*
+ * Reads and writes the contents of an AVLTree in a compact, versioned binary format.
+ *
+ * Entries are written in the order of the tree, grouped into blocks of about 64 KiB. Each block
+ * carries its entry count, its raw and stored lengths and a CRC32 of its raw bytes, and may be
+ * compressed with Deflater. Because the entries arrive sorted, reading rebuilds a perfectly
+ * balanced tree in O(n) time without any rotations.
+ *
+ * Keys and values are encoded by pluggable codecs. When both codecs have a fixed width, as the
+ * built-in numeric codecs do, entries are copied straight between the tree and a ByteBuffer
+ * instead of going through DataOutput and DataInput.
+ *
+ * Format (big-endian):
+ *   header:  magic "AVLTSER1", int version, int flags, long entry count
+ *   block:   int entries, int raw length, int stored length, int CRC32, stored bytes
+ *   end:     a block header with 0 entries
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class AVLTreeSerializer<K, T> {
+
+
+	/**
+	 * Encodes and decodes keys or values of one type.
+	 */
+	public interface Codec<E> {
+		void write(E value, DataOutput out) throws IOException;
+		E read(DataInput in) throws IOException;
+	}
+
+	/**
+	 * A codec whose encoding always takes the same number of bytes, which lets
+	 * the serializer use ByteBuffer directly.
+	 */
+	public static abstract class FixedWidthCodec<E> implements Codec<E> {
+		public abstract int width();
+		public abstract void put(E value, ByteBuffer out);
+		public abstract E get(ByteBuffer in);
+	}
+
+
+
+	public static final FixedWidthCodec<Long> LONG = new FixedWidthCodec<Long>() {
+		public int width() { return 8; }
+		public void put(Long value, ByteBuffer out) { out.putLong(value); }
+		public Long get(ByteBuffer in) { return in.getLong(); }
+		public void write(Long value, DataOutput out) throws IOException { out.writeLong(value); }
+		public Long read(DataInput in) throws IOException { return in.readLong(); }
+	};
+
+	public static final FixedWidthCodec<Integer> INT = new FixedWidthCodec<Integer>() {
+		public int width() { return 4; }
+		public void put(Integer value, ByteBuffer out) { out.putInt(value); }
+		public Integer get(ByteBuffer in) { return in.getInt(); }
+		public void write(Integer value, DataOutput out) throws IOException { out.writeInt(value); }
+		public Integer read(DataInput in) throws IOException { return in.readInt(); }
+	};
+
+	public static final FixedWidthCodec<Double> DOUBLE = new FixedWidthCodec<Double>() {
+		public int width() { return 8; }
+		public void put(Double value, ByteBuffer out) { out.putDouble(value); }
+		public Double get(ByteBuffer in) { return in.getDouble(); }
+		public void write(Double value, DataOutput out) throws IOException { out.writeDouble(value); }
+		public Double read(DataInput in) throws IOException { return in.readDouble(); }
+	};
+
+	// Length-prefixed UTF-8, without the 64 KiB limit of writeUTF
+	public static final Codec<String> STRING = new Codec<String>() {
+		public void write(String value, DataOutput out) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		public String read(DataInput in) throws IOException {
+			int length = in.readInt();
+			if (length < 0)
+				throw new IOException("Corrupt string length " + length);
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+
+
+	private static final long MAGIC = 0x4156_4C54_5345_5231L;		// "AVLTSER1"
+	private static final int VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int BLOCK_HEADER_SIZE = 16;
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	private final Codec<K> keyCodec;
+	private final Codec<T> valCodec;
+	private final boolean compress;
+
+	// The ordering of the trees read, null for natural ordering
+	private final Comparator<? super K> comparator;
+	private final AVLTree.KeyPrefix<? super K> keyPrefix;
+
+
+	/**
+	 * Creates an uncompressed serializer.
+	 * 
+	 * @param keyCodec the codec for keys
+	 * @param valCodec the codec for values
+	 */
+	public AVLTreeSerializer(Codec<K> keyCodec, Codec<T> valCodec) {
+		this(keyCodec, valCodec, false);
+	}
+
+	/**
+	 * Creates a serializer that optionally compresses each block with Deflater.
+	 * Readers detect compression from the header, so any serializer with the
+	 * same codecs can read the output.
+	 * 
+	 * @param keyCodec the codec for keys
+	 * @param valCodec the codec for values
+	 * @param compress whether to compress written blocks
+	 */
+	public AVLTreeSerializer(Codec<K> keyCodec, Codec<T> valCodec, boolean compress) {
+		this(keyCodec, valCodec, compress, null, null);
+	}
+
+	/**
+	 * Creates a serializer for trees ordered by the given comparator. Trees it reads
+	 * are built with the comparator and key prefix, and their keys must be in the
+	 * comparator's order.
+	 * 
+	 * @param keyCodec the codec for keys
+	 * @param valCodec the codec for values
+	 * @param compress whether to compress written blocks
+	 * @param comparator the ordering of the keys, or null for natural ordering
+	 * @param keyPrefix the prefix function of the trees read, or null for none
+	 */
+	public AVLTreeSerializer(Codec<K> keyCodec, Codec<T> valCodec, boolean compress,
+			Comparator<? super K> comparator, AVLTree.KeyPrefix<? super K> keyPrefix) {
+		if (keyCodec == null || valCodec == null)
+			throw new IllegalArgumentException("Codec is null");
+		this.keyCodec = keyCodec;
+		this.valCodec = valCodec;
+		this.compress = compress;
+		this.comparator = comparator;
+		this.keyPrefix = keyPrefix;
+	}
+
+
+
+	/**
+	 * Writes the tree to a file, replacing any existing contents.
+	 * 
+	 * @param tree the tree to write
+	 * @param file the file to write
+	 * @throws IOException if writing fails
+	 */
+	public void write(AVLTree<K, T> tree, Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(tree, channel);
+		}
+	}
+
+
+
+	/**
+	 * Writes the tree to a channel. The tree must not be changed while it is
+	 * being written.
+	 * 
+	 * @param tree the tree to write
+	 * @param channel the channel to write to
+	 * @throws IOException if writing fails
+	 */
+	@SuppressWarnings("unchecked")
+	public void write(AVLTree<K, T> tree, WritableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(MAGIC).putInt(VERSION).putInt(compress? FLAG_COMPRESSED : 0).putLong(tree.size());
+		header.flip();
+		writeFully(channel, header);
+
+		BlockWriter out = new BlockWriter(channel);
+		try {
+			Iterator<Map.Entry<K, T>> entries = tree.iterator();
+			if (keyCodec instanceof FixedWidthCodec && valCodec instanceof FixedWidthCodec) {
+				FixedWidthCodec<K> keys = (FixedWidthCodec<K>) keyCodec;
+				FixedWidthCodec<T> vals = (FixedWidthCodec<T>) valCodec;
+				int perBlock = Math.max(1, BLOCK_SIZE / (keys.width() + vals.width()));
+				ByteBuffer block = ByteBuffer.allocate(perBlock * (keys.width() + vals.width()));
+				int count = 0;
+				while (entries.hasNext()) {
+					Map.Entry<K, T> entry = entries.next();
+					keys.put(entry.getKey(), block);
+					vals.put(entry.getValue(), block);
+					if (++count == perBlock) {
+						out.writeBlock(count, block.array(), block.position());
+						block.clear();
+						count = 0;
+					}
+				}
+				if (count > 0)
+					out.writeBlock(count, block.array(), block.position());
+			}
+			else {
+				BlockBuffer block = new BlockBuffer();
+				DataOutputStream data = new DataOutputStream(block);
+				int count = 0;
+				while (entries.hasNext()) {
+					Map.Entry<K, T> entry = entries.next();
+					keyCodec.write(entry.getKey(), data);
+					valCodec.write(entry.getValue(), data);
+					count++;
+					if (block.size() >= BLOCK_SIZE) {
+						out.writeBlock(count, block.array(), block.size());
+						block.reset();
+						count = 0;
+					}
+				}
+				if (count > 0)
+					out.writeBlock(count, block.array(), block.size());
+			}
+			out.writeBlock(0, null, 0);
+		}
+		finally {
+			out.end();
+		}
+	}
+
+
+
+	/**
+	 * Reads a tree from a file.
+	 * 
+	 * @param file the file to read
+	 * @return the tree
+	 * @throws IOException if reading fails or the file is corrupt
+	 */
+	public AVLTree<K, T> read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(channel);
+		}
+	}
+
+
+
+	/**
+	 * Reads a tree from a channel, building it balanced in O(n) time.
+	 * 
+	 * @param channel the channel to read from
+	 * @return the tree
+	 * @throws IOException if reading fails or the data is corrupt
+	 */
+	@SuppressWarnings("unchecked")
+	public AVLTree<K, T> read(ReadableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header);
+		if (header.getLong() != MAGIC)
+			throw new IOException("Not an AVLTree snapshot");
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+		boolean compressed = (header.getInt() & FLAG_COMPRESSED) != 0;
+		long total = header.getLong();
+		if (total < 0 || total > Integer.MAX_VALUE)
+			throw new IOException("Corrupt entry count " + total);
+
+		// Grown as blocks arrive, so a corrupt count cannot force a huge allocation
+		Object[] keys = new Object[(int) Math.min(total, BLOCK_SIZE)];
+		Object[] vals = new Object[keys.length];
+		int n = 0;
+		// Fixed-width blocks never exceed BLOCK_SIZE unless a single entry does
+		int maxRawLength = Integer.MAX_VALUE;
+		if (keyCodec instanceof FixedWidthCodec && valCodec instanceof FixedWidthCodec)
+			maxRawLength = Math.max(BLOCK_SIZE, ((FixedWidthCodec<K>) keyCodec).width() + ((FixedWidthCodec<T>) valCodec).width());
+		BlockReader in = new BlockReader(channel, compressed, maxRawLength);
+		try {
+			int count;
+			while ((count = in.readBlock()) > 0) {
+				if (count > total - n)
+					throw new IOException("Snapshot has more entries than its header says");
+				if (n + count > keys.length) {
+					int capacity = (int) Math.min(total, Math.max(n + count, 2L * keys.length));
+					keys = Arrays.copyOf(keys, capacity);
+					vals = Arrays.copyOf(vals, capacity);
+				}
+				if (keyCodec instanceof FixedWidthCodec && valCodec instanceof FixedWidthCodec) {
+					FixedWidthCodec<K> keyReader = (FixedWidthCodec<K>) keyCodec;
+					FixedWidthCodec<T> valReader = (FixedWidthCodec<T>) valCodec;
+					ByteBuffer block = ByteBuffer.wrap(in.raw, 0, in.rawLength);
+					if (in.rawLength != count * (keyReader.width() + valReader.width()))
+						throw new IOException("Corrupt block length " + in.rawLength);
+					for (int i = 0; i < count; i++, n++) {
+						keys[n] = keyReader.get(block);
+						vals[n] = valReader.get(block);
+						checkOrder(keys, n);
+					}
+				}
+				else {
+					DataInputStream block = new DataInputStream(new ByteArrayInputStream(in.raw, 0, in.rawLength));
+					for (int i = 0; i < count; i++, n++) {
+						keys[n] = keyCodec.read(block);
+						vals[n] = valCodec.read(block);
+						checkOrder(keys, n);
+					}
+				}
+			}
+		}
+		finally {
+			in.end();
+		}
+		if (n != total)
+			throw new IOException("Snapshot has " + n + " entries, expected " + total);
+
+		AVLTree<K, T> tree = new AVLTree<K, T>(comparator, keyPrefix);
+		tree.loadSorted(keys, vals, n);
+		return tree;
+	}
+	@SuppressWarnings("unchecked")
+	private void checkOrder(Object[] keys, int n) throws IOException {
+		if (keys[n] == null)
+			throw new IOException("Snapshot contains a null key");
+		if (n > 0 && compare((K) keys[n], (K) keys[n - 1]) <= 0)
+			throw new IOException("Snapshot keys are not in the order of the tree");
+	}
+	@SuppressWarnings("unchecked")
+	private int compare(K a, K b) {
+		return (comparator == null)? ((Comparable<? super K>) a).compareTo(b) : comparator.compare(a, b);
+	}
+
+
+
+	/*
+	 * Checksums, compresses and writes blocks of raw entry bytes.
+	 */
+	private class BlockWriter {
+		private final WritableByteChannel channel;
+		private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		private final CRC32 crc = new CRC32();
+		private final Deflater deflater;
+		private byte[] stored = new byte[BLOCK_SIZE];
+
+		BlockWriter(WritableByteChannel channel) {
+			this.channel = channel;
+			this.deflater = compress? new Deflater(Deflater.BEST_SPEED) : null;
+		}
+
+		void writeBlock(int count, byte[] raw, int length) throws IOException {
+			crc.reset();
+			if (length > 0)
+				crc.update(raw, 0, length);
+			byte[] payload = raw;
+			int storedLength = length;
+			if (deflater != null && length > 0) {
+				deflater.reset();
+				deflater.setInput(raw, 0, length);
+				deflater.finish();
+				storedLength = 0;
+				while (!deflater.finished()) {
+					if (storedLength == stored.length)
+						stored = Arrays.copyOf(stored, stored.length * 2);
+					storedLength += deflater.deflate(stored, storedLength, stored.length - storedLength);
+				}
+				payload = stored;
+			}
+			header.clear();
+			header.putInt(count).putInt(length).putInt(storedLength).putInt((int) crc.getValue());
+			header.flip();
+			writeFully(channel, header);
+			if (storedLength > 0)
+				writeFully(channel, ByteBuffer.wrap(payload, 0, storedLength));
+		}
+
+		void end() {
+			if (deflater != null)
+				deflater.end();
+		}
+	}
+
+
+
+	/*
+	 * Reads, decompresses and checks blocks, leaving the raw bytes of the last one in raw.
+	 * The lengths in a block header are not trusted for allocation: buffers grow only as
+	 * bytes actually arrive or inflate, so a corrupt length runs into the end of the data
+	 * or the checksum instead of allocating gigabytes up front.
+	 */
+	private static class BlockReader {
+		private final ReadableByteChannel channel;
+		private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		private final CRC32 crc = new CRC32();
+		private final Inflater inflater;
+		private final int maxRawLength;
+		private byte[] stored = new byte[0];
+		byte[] raw = new byte[0];
+		int rawLength;
+
+		BlockReader(ReadableByteChannel channel, boolean compressed, int maxRawLength) {
+			this.channel = channel;
+			this.inflater = compressed? new Inflater() : null;
+			this.maxRawLength = maxRawLength;
+		}
+
+		/*
+		 * Returns the number of entries in the next block, or 0 at the end marker.
+		 */
+		int readBlock() throws IOException {
+			header.clear();
+			readFully(channel, header);
+			int count = header.getInt();
+			rawLength = header.getInt();
+			int storedLength = header.getInt();
+			int checksum = header.getInt();
+			if (count < 0 || rawLength < 0 || storedLength < 0 || rawLength > maxRawLength
+					|| (inflater == null && storedLength != rawLength))
+				throw new IOException("Corrupt block header");
+			if (count == 0)
+				return 0;
+
+			if (inflater == null)
+				raw = readBytes(raw, rawLength);
+			else {
+				stored = readBytes(stored, storedLength);
+				inflater.reset();
+				inflater.setInput(stored, 0, storedLength);
+				try {
+					int n = 0;
+					while (n < rawLength) {
+						if (n == raw.length)
+							raw = Arrays.copyOf(raw, grow(n, rawLength));
+						int inflated = inflater.inflate(raw, n, Math.min(raw.length, rawLength) - n);
+						if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+							throw new IOException("Corrupt compressed block");
+						n += inflated;
+					}
+					if (!inflater.finished())
+						throw new IOException("Corrupt compressed block");
+				}
+				catch (DataFormatException e) {
+					throw new IOException("Corrupt compressed block", e);
+				}
+			}
+
+			crc.reset();
+			crc.update(raw, 0, rawLength);
+			if ((int) crc.getValue() != checksum)
+				throw new IOException("Block checksum mismatch");
+			return count;
+		}
+
+		/*
+		 * Reads length bytes into buffer, growing it as they arrive, and returns the buffer.
+		 */
+		private byte[] readBytes(byte[] buffer, int length) throws IOException {
+			int n = 0;
+			while (n < length) {
+				if (n == buffer.length)
+					buffer = Arrays.copyOf(buffer, grow(n, length));
+				int chunk = Math.min(buffer.length, length) - n;
+				readFully(channel, ByteBuffer.wrap(buffer, n, chunk));
+				n += chunk;
+			}
+			return buffer;
+		}
+
+		// Doubles a buffer holding n bytes, starting from a block, without passing length
+		private static int grow(int n, int length) {
+			return (int) Math.min(length, Math.max(BLOCK_SIZE, 2L * n));
+		}
+
+		void end() {
+			if (inflater != null)
+				inflater.end();
+		}
+	}
+
+
+
+	/*
+	 * ByteArrayOutputStream that exposes its buffer, so blocks are not copied before writing.
+	 */
+	private static class BlockBuffer extends ByteArrayOutputStream {
+		BlockBuffer() {
+			super(BLOCK_SIZE + 1024);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Snapshot is truncated");
+		}
+		buffer.flip();
+	}
+
+}
@@ -0,0 +1,181 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AVLTreeSerializerTester {
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = Files.createTempFile("avltree", ".bin");
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void testFixedWidthRoundTrip() throws IOException {
+		AVLTree<Long, Long> tree = new AVLTree<Long, Long>();
+		Random rnd = new Random();
+		for (int i = 0; i < 50000; i++) {
+			tree.add(rnd.nextLong(), rnd.nextLong());
+		}
+
+		AVLTreeSerializer<Long, Long> serializer = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG);
+		serializer.write(tree, file);
+		AVLTree<Long, Long> copy = serializer.read(file);
+
+		assertEquals(tree.size(), copy.size());
+		assertEquals(tree.toString(), copy.toString());
+		assertTrue(copy.height() <= 1 + Math.ceil(Math.log(copy.size() + 1) / Math.log(2)));
+	}
+
+	@Test
+	public void testCompressedCodecRoundTrip() throws IOException {
+		AVLTree<String, Integer> tree = new AVLTree<String, Integer>();
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 20000; i++) {
+			tree.add("key-" + i, i % 10);
+			expected.put("key-" + i, i % 10);
+		}
+
+		AVLTreeSerializer<String, Integer> serializer = new AVLTreeSerializer<String, Integer>(AVLTreeSerializer.STRING, AVLTreeSerializer.INT, true);
+		serializer.write(tree, file);
+		assertTrue(Files.size(file) < 20000 * 8);
+		AVLTree<String, Integer> copy = serializer.read(file);
+
+		assertEquals(expected.size(), copy.size());
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), copy.get(key));
+		}
+	}
+
+	@Test
+	public void testComparatorRoundTrip() throws IOException {
+		Comparator<String> reversed = Collections.reverseOrder();
+		AVLTree.KeyPrefix<String> prefix = s -> ~AVLTree.KeyPrefix.STRINGS.prefix(s);		// complement reverses unsigned order
+		AVLTree<String, Integer> tree = new AVLTree<String, Integer>(reversed, prefix);
+		for (int i = 0; i < 5000; i++) {
+			tree.add("key-" + i, i);
+		}
+
+		AVLTreeSerializer<String, Integer> serializer = new AVLTreeSerializer<String, Integer>(AVLTreeSerializer.STRING, AVLTreeSerializer.INT, true,
+				reversed, prefix);
+		serializer.write(tree, file);
+		AVLTree<String, Integer> copy = serializer.read(file);
+
+		assertSame(reversed, copy.comparator());
+		assertEquals(tree.toString(), copy.toString());
+		assertEquals("key-999", copy.min());
+		assertEquals(Integer.valueOf(1234), copy.get("key-1234"));
+
+		// Natural ordering does not match the file
+		try {
+			new AVLTreeSerializer<String, Integer>(AVLTreeSerializer.STRING, AVLTreeSerializer.INT).read(file);
+			fail();
+		}
+		catch (IOException e) {
+			assertEquals("Snapshot keys are not in the order of the tree", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEmptyTree() throws IOException {
+		AVLTreeSerializer<Long, Long> serializer = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG, true);
+		serializer.write(new AVLTree<Long, Long>(), file);
+		assertTrue(serializer.read(file).isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptBlockIsDetected() throws IOException {
+		AVLTree<Long, Long> tree = new AVLTree<Long, Long>();
+		for (long i = 0; i < 1000; i++) {
+			tree.add(i, i);
+		}
+		AVLTreeSerializer<Long, Long> serializer = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG);
+		serializer.write(tree, file);
+
+		// Flip a byte inside the first block's entries
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 42 }), 24 + 16 + 100);
+		}
+		serializer.read(file);
+	}
+
+	/*
+	 * A block header claiming a huge length must fail on the header or on the data that is
+	 * actually there, not by allocating the claimed length first.
+	 */
+	@Test
+	public void testCorruptBlockLengthIsDetected() throws IOException {
+		AVLTree<String, Integer> strings = new AVLTree<String, Integer>();
+		AVLTree<Long, Long> longs = new AVLTree<Long, Long>();
+		for (int i = 0; i < 1000; i++) {
+			strings.add("key-" + i, i);
+			longs.add((long) i, (long) i);
+		}
+		for (boolean compress : new boolean[] { false, true }) {
+			AVLTreeSerializer<Long, Long> fixed = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG, compress);
+			fixed.write(longs, file);
+			corruptFirstBlockHeader();
+			try {
+				fixed.read(file);
+				fail();
+			}
+			catch (IOException e) {
+				assertEquals("Corrupt block header", e.getMessage());
+			}
+
+			AVLTreeSerializer<String, Integer> codec = new AVLTreeSerializer<String, Integer>(AVLTreeSerializer.STRING, AVLTreeSerializer.INT, compress);
+			codec.write(strings, file);
+			corruptFirstBlockHeader();
+			try {
+				codec.read(file);
+				fail();
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+	}
+	private void corruptFirstBlockHeader() throws IOException {
+		// Both lengths of the first block, which follow its entry count
+		ByteBuffer lengths = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE - 8).putInt(Integer.MAX_VALUE - 8);
+		lengths.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(lengths, 24 + 4);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFileIsDetected() throws IOException {
+		AVLTree<Long, Long> tree = new AVLTree<Long, Long>();
+		for (long i = 0; i < 1000; i++) {
+			tree.add(i, i);
+		}
+		AVLTreeSerializer<Long, Long> serializer = new AVLTreeSerializer<Long, Long>(AVLTreeSerializer.LONG, AVLTreeSerializer.LONG);
+		serializer.write(tree, file);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 20);
+		}
+		serializer.read(file);
+	}
+
+}
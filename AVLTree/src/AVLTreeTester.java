@@ -1,6 +1,23 @@
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -237,6 +254,30 @@ public class AVLTreeTester {
 		}
 	}
 
+	@Test
+	public void testPollFirstAndLast() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+
+		assertNull(tree.pollFirst());
+		assertNull(tree.pollLast());
+
+		for (int i = 0; i < 1000; i++) {
+			tree.add(i, "v" + i);
+		}
+		for (int i = 0; i < 500; i++) {
+			Map.Entry<Integer, String> first = tree.pollFirst();
+			assertEquals(Integer.valueOf(i), first.getKey());
+			assertEquals("v" + i, first.getValue());
+
+			Map.Entry<Integer, String> last = tree.pollLast();
+			assertEquals(Integer.valueOf(999 - i), last.getKey());
+			assertEquals("v" + (999 - i), last.getValue());
+
+			assertEquals(998 - 2 * i, tree.size());
+		}
+		assertTrue(tree.isEmpty());
+	}
+
 	@Test
 	public void testMin() {
 		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
@@ -291,6 +332,340 @@ public class AVLTreeTester {
 		tree.clear();
 		assertTrue(tree.isEmpty());
 	}
+
+	@Test
+	public void testRankAndSelect() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		Random rnd = new Random();
+
+		assertEquals(0, tree.rank(5));
+
+		for (int i = 0; i < 1000; i++) {
+			tree.add(i * 2, randomWord());
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, tree.rank(i * 2));
+			assertEquals(i + 1, tree.rank(i * 2 + 1));
+			assertEquals(Integer.valueOf(i * 2), tree.select(i));
+		}
+
+		for (int i = 0; i < 500; i++) {
+			tree.remove(rnd.nextInt(2000));
+			int r = rnd.nextInt(tree.size());
+			assertEquals(r, tree.rank(tree.select(r)));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSelectOutOfRange() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		tree.add(1, "a");
+		tree.select(1);
+	}
+
+	@Test
+	public void testCountRange() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+
+		assertEquals(0, tree.countRange(0, 10));
+
+		for (int i = 0; i < 100; i++) {
+			tree.add(i, randomWord());
+		}
+		assertEquals(100, tree.countRange(0, 99));
+		assertEquals(11, tree.countRange(10, 20));
+		assertEquals(1, tree.countRange(5, 5));
+		assertEquals(0, tree.countRange(20, 10));
+		assertEquals(10, tree.countRange(-50, 9));
+		assertEquals(10, tree.countRange(90, 500));
+	}
+
+	@Test
+	public void testMedian() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+
+		tree.add(1, "a");
+		assertEquals(Integer.valueOf(1), tree.median());
+
+		tree.add(2, "b");
+		assertEquals(Integer.valueOf(1), tree.median());
+
+		tree.add(3, "c");
+		assertEquals(Integer.valueOf(2), tree.median());
+
+		tree.clear();
+		for (int i = 0; i < 1001; i++) {
+			tree.add(i, randomWord());
+		}
+		assertEquals(Integer.valueOf(500), tree.median());
+	}
+
+	@Test
+	public void testBulkLoadSorted() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> entries = new TreeMap<Integer, String>();
+
+		tree.add(-1, "gone");
+		for (int i = 0; i < 1000; i++) {
+			entries.put(i, randomWord());
+		}
+		tree.bulkLoad(entries.entrySet().iterator());
+
+		assertEquals(1000, tree.size());
+		assertFalse(tree.contains(-1));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(entries.get(i), tree.get(i));
+		}
+		// 1000 keys fit in a perfectly balanced tree of height 10
+		assertEquals(10, tree.height());
+		assertEquals(Integer.valueOf(500), tree.select(500));
+
+		tree.add(1000, "a");
+		tree.remove(0);
+		assertEquals(1000, tree.size());
+	}
+
+	@Test
+	public void testBulkLoadUnsorted() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(3, "c"));
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(1, "a"));
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(2, "b"));
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(1, "z"));
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(4, "d"));
+		entries.add(new AbstractMap.SimpleEntry<Integer, String>(4, null));
+		tree.bulkLoad(entries.iterator());
+
+		assertEquals(3, tree.size());
+		assertEquals("z", tree.get(1));
+		assertEquals("b", tree.get(2));
+		assertEquals("c", tree.get(3));
+		assertFalse(tree.contains(4));
+		assertEquals(2, tree.height());
+	}
+
+	@Test
+	public void testSplitAt() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		for (int i = 0; i < 1000; i++) {
+			tree.add(i, "v" + i);
+		}
+
+		AVLTree<Integer, String> upper = tree.splitAt(600);
+		assertEquals(600, tree.size());
+		assertEquals(400, upper.size());
+		assertEquals(Integer.valueOf(599), tree.max());
+		assertEquals(Integer.valueOf(600), upper.min());
+		assertEquals("v600", upper.get(600));
+		assertHeightBalanced(tree);
+		assertHeightBalanced(upper);
+
+		AVLTree<Integer, String> empty = tree.splitAt(5000);
+		assertTrue(empty.isEmpty());
+		assertEquals(600, tree.size());
+
+		upper = tree.splitAt(-5);
+		assertTrue(tree.isEmpty());
+		assertEquals(600, upper.size());
+	}
+
+	@Test
+	public void testConcatAndJoin() {
+		AVLTree<Integer, String> low = new AVLTree<Integer, String>();
+		AVLTree<Integer, String> high = new AVLTree<Integer, String>();
+		for (int i = 0; i < 10; i++) {
+			low.add(i, "a");
+		}
+		for (int i = 100; i < 1000; i++) {
+			high.add(i, "b");
+		}
+
+		AVLTree<Integer, String> joined = AVLTree.join(low, 50, "c", high);
+		assertEquals(911, joined.size());
+		assertTrue(low.isEmpty());
+		assertTrue(high.isEmpty());
+		assertEquals("c", joined.get(50));
+		assertHeightBalanced(joined);
+
+		AVLTree<Integer, String> other = new AVLTree<Integer, String>();
+		for (int i = -500; i < 0; i++) {
+			other.add(i, "d");
+		}
+		joined.concat(other);
+		assertTrue(other.isEmpty());
+		assertEquals(1411, joined.size());
+		assertEquals(Integer.valueOf(-500), joined.min());
+		assertEquals(Integer.valueOf(999), joined.max());
+		assertHeightBalanced(joined);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConcatOverlappingRanges() {
+		AVLTree<Integer, String> a = new AVLTree<Integer, String>();
+		AVLTree<Integer, String> b = new AVLTree<Integer, String>();
+		a.add(1, "a");
+		a.add(5, "a");
+		b.add(3, "b");
+		a.concat(b);
+	}
+
+	@Test
+	public void testRemoveRange() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 2000; i++) {
+			int key = rnd.nextInt(10000);
+			tree.add(key, "a");
+			expected.put(key, "a");
+		}
+
+		for (int i = 0; i < 20; i++) {
+			int lo = rnd.nextInt(10000);
+			int hi = lo + rnd.nextInt(1000);
+			tree.removeRange(lo, hi);
+			expected.subMap(lo, true, hi, true).clear();
+			assertEquals(expected.size(), tree.size());
+			assertEquals(0, tree.countRange(lo, hi));
+			assertHeightBalanced(tree);
+		}
+		for (int key : expected.keySet()) {
+			assertTrue(tree.contains(key));
+		}
+	}
+
+	@Test
+	public void testSetOperations() {
+		AVLTree<Integer, String> a = new AVLTree<Integer, String>();
+		AVLTree<Integer, String> b = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> aMap = new TreeMap<Integer, String>();
+		TreeMap<Integer, String> bMap = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(40000);
+			a.add(key, "a");
+			aMap.put(key, "a");
+			key = rnd.nextInt(40000);
+			b.add(key, "b");
+			bMap.put(key, "b");
+		}
+
+		AVLTree<Integer, String> union = a.union(b, (x, y) -> x + y);
+		AVLTree<Integer, String> intersection = a.intersection(b);
+		AVLTree<Integer, String> difference = a.difference(b);
+
+		assertEquals(aMap.size(), a.size());
+		assertEquals(bMap.size(), b.size());
+		int unionSize = 0, intersectionSize = 0, differenceSize = 0;
+		for (int key = 0; key < 40000; key++) {
+			boolean inA = aMap.containsKey(key);
+			boolean inB = bMap.containsKey(key);
+			if (inA || inB) {
+				unionSize++;
+				assertEquals(inA && inB ? "ab" : inA ? "a" : "b", union.get(key));
+			}
+			if (inA && inB) {
+				intersectionSize++;
+				assertEquals("a", intersection.get(key));
+			}
+			if (inA && !inB) {
+				differenceSize++;
+				assertEquals("a", difference.get(key));
+			}
+			assertEquals(inA, a.contains(key));
+			assertEquals(inB, b.contains(key));
+		}
+		assertEquals(unionSize, union.size());
+		assertEquals(intersectionSize, intersection.size());
+		assertEquals(differenceSize, difference.size());
+		assertHeightBalanced(union);
+		assertHeightBalanced(intersection);
+		assertHeightBalanced(difference);
+
+		// The smaller tree may be either side of an intersection
+		AVLTree<Integer, String> small = new AVLTree<Integer, String>();
+		for (int key = 0; key < 40000; key += 97) {
+			small.add(key, "s");
+		}
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>(aMap);
+		expected.keySet().retainAll(small.keyStream().collect(Collectors.toSet()));
+		assertEquals(new ArrayList<Integer>(expected.keySet()), a.intersection(small).keyStream().collect(Collectors.toList()));
+		assertEquals(expected.size(), small.intersection(a).size());
+		for (int key : expected.keySet()) {
+			assertEquals("a", a.intersection(small).get(key));
+			assertEquals("s", small.intersection(a).get(key));
+		}
+	}
+
+	@Test
+	public void testInPlaceSetOperations() {
+		AVLTree<Integer, String> a = new AVLTree<Integer, String>();
+		AVLTree<Integer, String> b = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(40000);
+			a.add(key, "a");
+			expected.put(key, "a");
+		}
+		for (int i = 0; i < 500; i++) {
+			b.add(rnd.nextInt(40000), "b");
+		}
+		AVLTree<Integer, String> removed = new AVLTree<Integer, String>();
+		for (int key : b.keyStream().collect(Collectors.toList())) {
+			expected.merge(key, "b", (x, y) -> x + y);
+			if (rnd.nextBoolean())
+				removed.add(key, "r");
+		}
+
+		a.addAll(b, (x, y) -> x + y);
+		assertTrue(b.isEmpty());
+		a.removeAll(removed);
+		assertEquals(0, a.intersection(removed).size());
+		for (int key : removed.keyStream().collect(Collectors.toList())) {
+			expected.remove(key);
+		}
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(a.iterator()));
+		assertHeightBalanced(a);
+	}
+
+	@Test
+	public void testMatchesTreeMap() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(500);
+			switch (rnd.nextInt(4)) {
+			case 0:
+			case 1:
+				String word = randomWord();
+				tree.add(key, word);
+				expected.put(key, word);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMin();
+					expected.pollFirstEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.get(key), tree.get(key));
+			assertEquals(expected.containsKey(key), tree.contains(key));
+			if (!expected.isEmpty()) {
+				assertEquals(expected.firstKey(), tree.min());
+				assertEquals(expected.lastKey(), tree.max());
+			}
+		}
+		assertHeightBalanced(tree);
+	}
 	
 	
 	
@@ -298,6 +673,450 @@ public class AVLTreeTester {
 	
 	
 
+	@Test
+	public void testIterators() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 500; i++) {
+			int key = rnd.nextInt(1000);
+			String word = randomWord();
+			tree.add(key, word);
+			expected.put(key, word);
+		}
+
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(tree.iterator()));
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.descendingMap().entrySet()), toList(tree.descendingIterator()));
+
+		for (int i = 0; i < 200; i++) {
+			int lo = rnd.nextInt(1100) - 50;
+			int hi = lo + rnd.nextInt(300);
+			boolean loInclusive = rnd.nextBoolean();
+			boolean hiInclusive = rnd.nextBoolean();
+			assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.subMap(lo, loInclusive, hi, hiInclusive).entrySet()),
+					toList(tree.entries(lo, loInclusive, hi, hiInclusive)));
+		}
+		assertFalse(tree.entries(10, false, 10, false).hasNext());
+		assertFalse(new AVLTree<Integer, String>().iterator().hasNext());
+	}
+	private List<Map.Entry<Integer, String>> toList(Iterator<Map.Entry<Integer, String>> it) {
+		List<Map.Entry<Integer, String>> list = new ArrayList<Map.Entry<Integer, String>>();
+		while (it.hasNext())
+			list.add(it.next());
+		return list;
+	}
+
+	@Test
+	public void testFloorCeilingLowerHigher() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		for (int key = 0; key < 100; key += 3) {
+			tree.add(key, "v");
+			expected.put(key, "v");
+		}
+
+		for (int key = -5; key < 110; key++) {
+			assertEquals(expected.floorKey(key), tree.floor(key));
+			assertEquals(expected.lowerKey(key), tree.lower(key));
+			assertEquals(expected.ceilingKey(key), tree.ceiling(key));
+			assertEquals(expected.higherKey(key), tree.higher(key));
+		}
+	}
+
+	@Test
+	public void testStreams() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(100000);
+			String word = randomWord();
+			tree.add(key, word);
+			expected.put(key, word);
+		}
+
+		assertEquals(new ArrayList<Integer>(expected.keySet()), tree.keyStream().parallel().collect(Collectors.toList()));
+		assertEquals(new ArrayList<String>(expected.values()), tree.valueStream().parallel().collect(Collectors.toList()));
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), tree.entryStream().parallel().collect(Collectors.toList()));
+		long sum = 0;
+		for (int key : expected.keySet())
+			sum += key;
+		assertEquals(sum, tree.entryStream().parallel().mapToLong(e -> e.getKey()).sum());
+
+		for (int i = 0; i < 50; i++) {
+			int lo = rnd.nextInt(100000);
+			int hi = lo + rnd.nextInt(20000);
+			boolean loInclusive = rnd.nextBoolean();
+			boolean hiInclusive = rnd.nextBoolean();
+			assertEquals(new ArrayList<Integer>(expected.subMap(lo, loInclusive, hi, hiInclusive).keySet()),
+					tree.keyStream(lo, loInclusive, hi, hiInclusive).parallel().collect(Collectors.toList()));
+		}
+		assertEquals(0, tree.keyStream(5, true, 4, true).count());
+	}
+
+	@Test
+	public void testSpliteratorSplitsAtSubtreeRoots() {
+		AVLTree<Integer, String> big = makeBigTree();
+		Spliterator<Map.Entry<Integer, String>> all = big.spliterator();
+		assertTrue(all.hasCharacteristics(Spliterator.SORTED | Spliterator.ORDERED | Spliterator.DISTINCT
+				| Spliterator.SIZED | Spliterator.SUBSIZED));
+		assertEquals(big.size(), all.getExactSizeIfKnown());
+		Spliterator<Map.Entry<Integer, String>> lower = all.trySplit();
+		assertEquals(big.size(), lower.getExactSizeIfKnown() + all.getExactSizeIfKnown());
+		assertTrue(Math.min(lower.getExactSizeIfKnown(), all.getExactSizeIfKnown()) > big.size() / 4);
+
+		// Ascending inserts of 2^10 - 1 keys build a perfect tree rooted at 511
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		for (int i = 0; i < 1023; i++) {
+			tree.add(i, "v" + i);
+		}
+		Spliterator<Map.Entry<Integer, String>> right = tree.spliterator();
+		Spliterator<Map.Entry<Integer, String>> left = right.trySplit();
+		assertEquals(511, left.getExactSizeIfKnown());
+		assertEquals(512, right.getExactSizeIfKnown());
+
+		// The root and the left subtree of its right child, then that child and its right subtree
+		Spliterator<Map.Entry<Integer, String>> middle = right.trySplit();
+		assertEquals(256, middle.getExactSizeIfKnown());
+		assertEquals(256, right.getExactSizeIfKnown());
+		middle.tryAdvance(e -> assertEquals(Integer.valueOf(511), e.getKey()));
+		right.tryAdvance(e -> assertEquals(Integer.valueOf(767), e.getKey()));
+
+		// A split of a range splits at the topmost node inside it
+		Spliterator<Map.Entry<Integer, String>> leftLeft = left.trySplit();
+		assertEquals(255, leftLeft.getExactSizeIfKnown());
+		left.tryAdvance(e -> assertEquals(Integer.valueOf(255), e.getKey()));
+		Spliterator<Integer> one = tree.keyStream(3, true, 3, true).spliterator();
+		assertNull(one.trySplit());
+	}
+
+	@Test
+	public void testWriters() throws IOException {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		for (int i = 1; i <= 3; i++) {
+			tree.add(i, "v" + i);
+		}
+		assertEquals("1: v1\n2: v2\n3: v3\n", tree.toString());
+
+		StringBuilder dot = new StringBuilder();
+		tree.writeDot(dot);
+		assertEquals("digraph AVLTree {\n"
+				+ "  n0 [label=\"2: v2\"];\n"
+				+ "  n1 [label=\"1: v1\"];\n"
+				+ "  n0 -> n1 [label=\"L\"];\n"
+				+ "  n2 [label=\"3: v3\"];\n"
+				+ "  n0 -> n2 [label=\"R\"];\n"
+				+ "}\n", dot.toString());
+	}
+
+	@Test
+	public void testPrintTreeDepthLimited() throws IOException {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		for (int i = 0; i < 100000; i++) {
+			tree.add(i, "v");
+		}
+
+		StringBuilder out = new StringBuilder();
+		tree.printTree(out, 3);
+		String[] lines = out.toString().split("\n");
+		assertEquals(5, lines.length);
+		assertFalse(lines[0].contains("..."));
+		assertTrue(lines[4].contains("..."));
+
+		out.setLength(0);
+		tree.printSubtree(out, tree.max(), 4);
+		assertEquals(1, out.toString().split("\n").length);
+
+		// The no-argument printers stop at a fixed depth instead of drawing all 17 levels
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(bytes, true, "UTF-8"));
+		try {
+			tree.printKeyTree();
+		}
+		finally {
+			System.setOut(stdout);
+		}
+		lines = bytes.toString("UTF-8").split("\n");
+		assertEquals(2 * AVLTree.PRINT_DEPTH - 1, lines.length);
+		assertTrue(lines[lines.length - 1].contains("..."));
+	}
+
+	@Test
+	public void testBatchOperations() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(100000);
+			tree.add(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+
+		Integer[] keys = new Integer[10000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = rnd.nextInt(100000);
+		}
+		Arrays.sort(keys);
+		String[] out = new String[keys.length];
+		tree.getAll(keys, out);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(expected.get(keys[i]), out[i]);
+		}
+		Integer[] present = expected.keySet().toArray(new Integer[0]);
+		assertTrue(tree.containsAll(present));
+		assertFalse(tree.containsAll(new Integer[] { -1, present[0] }));
+
+		String[] vals = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			vals[i] = (i % 5 == 0)? null : "batch" + i;
+			expected.put(keys[i], vals[i]);
+			if (vals[i] == null)
+				expected.remove(keys[i]);
+		}
+		tree.addAll(keys, vals);
+		assertEquals(expected.size(), tree.size());
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(tree.iterator()));
+		assertHeightBalanced(tree);
+
+		Integer[] removals = Arrays.copyOf(present, present.length / 2);
+		tree.removeAll(removals);
+		for (Integer key : removals) {
+			expected.remove(key);
+		}
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(tree.iterator()));
+		assertHeightBalanced(tree);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBatchRequiresSortedKeys() {
+		makeBigTree().getAll(new Integer[] { 2, 1 }, new String[2]);
+	}
+
+	@Test
+	public void testComparator() {
+		// Keys and values that are not Comparable
+		Comparator<int[]> byFirst = (a, b) -> Integer.compare(b[0], a[0]);
+		AVLTree<int[], Object> tree = new AVLTree<int[], Object>(byFirst);
+		for (int i = 0; i < 100; i++) {
+			tree.add(new int[] { i }, new Object());
+		}
+		assertEquals(byFirst, tree.comparator());
+		assertEquals(100, tree.size());
+		assertEquals(99, tree.min()[0]);
+		assertEquals(0, tree.max()[0]);
+		assertTrue(tree.contains(new int[] { 42 }));
+		assertEquals(50, tree.ceiling(new int[] { 50 })[0]);
+		assertEquals(49, tree.higher(new int[] { 50 })[0]);
+
+		AVLTree<Integer, String> reversed = new AVLTree<Integer, String>(Collections.reverseOrder());
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>(Collections.reverseOrder());
+		Random rnd = new Random();
+		for (int i = 0; i < 1000; i++) {
+			int key = rnd.nextInt(500);
+			reversed.add(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(reversed.iterator()));
+		assertEquals(expected.firstKey(), reversed.select(0));
+		AVLTree<Integer, String> upper = reversed.splitAt(250);
+		assertEquals(Collections.reverseOrder(), upper.comparator());
+		assertEquals(expected.headMap(250).size(), reversed.size());
+		reversed.concat(upper);
+		assertEquals(expected.size(), reversed.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetOperationsRequireSameOrdering() {
+		makeBigTree().union(new AVLTree<Integer, String>(Collections.reverseOrder()), (x, y) -> x);
+	}
+
+	@Test
+	public void testKeyPrefixes() {
+		Random rnd = new Random();
+		String alphabet = "ab\u00fe\u00ff\u0100\u4e2d";
+		AVLTree<String, Integer> strings = new AVLTree<String, Integer>(null, AVLTree.KeyPrefix.STRINGS);
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int len = rnd.nextInt(12); len > 0; len--) {
+				sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+			}
+			String key = sb.toString();
+			if (rnd.nextInt(4) == 0) {
+				strings.remove(key);
+				expected.remove(key);
+			}
+			else {
+				strings.add(key, i);
+				expected.put(key, i);
+			}
+		}
+		assertEquals(expected.size(), strings.size());
+		for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), strings.get(entry.getKey()));
+			assertEquals(expected.headMap(entry.getKey()).size(), strings.rank(entry.getKey()));
+		}
+		assertEquals(new ArrayList<Map.Entry<String, Integer>>(expected.entrySet()), new ArrayList<Map.Entry<String, Integer>>(strings.entryStream().collect(Collectors.toList())));
+		AVLTree<String, Integer> copy = strings.union(new AVLTree<String, Integer>(null, AVLTree.KeyPrefix.STRINGS), (x, y) -> x);
+		assertEquals(expected.lastKey(), copy.max());
+
+		Comparator<byte[]> unsigned = (a, b) -> {
+			for (int i = 0; i < Math.min(a.length, b.length); i++) {
+				int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+				if (cmp != 0)
+					return cmp;
+			}
+			return Integer.compare(a.length, b.length);
+		};
+		AVLTree<byte[], Integer> bytes = new AVLTree<byte[], Integer>(unsigned, AVLTree.KeyPrefix.UNSIGNED_BYTES);
+		TreeMap<byte[], Integer> expectedBytes = new TreeMap<byte[], Integer>(unsigned);
+		AVLTree<UUID, Integer> uuids = new AVLTree<UUID, Integer>(null, AVLTree.KeyPrefix.UUIDS);
+		TreeMap<UUID, Integer> expectedUuids = new TreeMap<UUID, Integer>();
+		for (int i = 0; i < 2000; i++) {
+			byte[] key = new byte[rnd.nextInt(12)];
+			rnd.nextBytes(key);
+			if (key.length > 0)
+				key[0] &= 0x81;
+			bytes.add(key, i);
+			expectedBytes.put(key, i);
+			UUID uuid = new UUID(rnd.nextInt(4) - 2, rnd.nextLong());
+			uuids.add(uuid, i);
+			expectedUuids.put(uuid, i);
+		}
+		assertEquals(expectedBytes.size(), bytes.size());
+		for (byte[] key : expectedBytes.keySet()) {
+			assertEquals(expectedBytes.get(key), bytes.get(key));
+		}
+		assertEquals(new ArrayList<UUID>(expectedUuids.keySet()), uuids.keyStream().collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testSingleDescentUpdates() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(1000);
+			String value = "v" + rnd.nextInt(10);
+			switch (rnd.nextInt(5)) {
+			case 0:
+				assertEquals(expected.compute(key, (k, v) -> (v == null || v.length() > 6)? value : null),
+						tree.compute(key, (k, v) -> (v == null || v.length() > 6)? value : null));
+				break;
+			case 1:
+				assertEquals(expected.merge(key, value, (a, b) -> a.length() > 8? null : a + b),
+						tree.merge(key, value, (a, b) -> a.length() > 8? null : a + b));
+				break;
+			case 2:
+				assertEquals(expected.putIfAbsent(key, value), tree.putIfAbsent(key, value));
+				break;
+			case 3:
+				assertEquals(expected.replace(key, value), tree.replace(key, value));
+				break;
+			default:
+				assertEquals(expected.remove(key), tree.removeAndGet(key));
+				break;
+			}
+		}
+		assertEquals(expected.size(), tree.size());
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(tree.iterator()));
+		assertHeightBalanced(tree);
+	}
+
+	@Test
+	public void testSingleDescentComparisons() {
+		int[] comparisons = new int[1];
+		Comparator<Integer> counting = (a, b) -> {
+			comparisons[0]++;
+			return a.compareTo(b);
+		};
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>(counting);
+		for (int i = 0; i < 1023; i++) {
+			tree.add(i, 0);
+		}
+
+		// A merge into a present key costs one descent, not the three of contains, get and add
+		for (int i = 0; i < 1023; i++) {
+			comparisons[0] = 0;
+			tree.merge(i, 1, Integer::sum);
+			assertTrue(comparisons[0] <= tree.height());
+		}
+		comparisons[0] = 0;
+		assertNull(tree.putIfAbsent(5000, 1));
+		assertTrue(comparisons[0] <= tree.height());
+		assertEquals(Integer.valueOf(1), tree.removeAndGet(5000));
+		assertEquals(Integer.valueOf(1), tree.get(1022));
+		assertEquals(1023, tree.size());
+	}
+
+	@Test
+	public void testSingleDescentUpdateArguments() {
+		AVLTree<Integer, String> tree = makeBigTree();
+		try {
+			tree.compute(1, (k, v) -> {
+				tree.add(-1, "x");
+				return "y";
+			});
+			fail();
+		}
+		catch (ConcurrentModificationException e) {
+			// expected
+		}
+		assertFalse(tree.contains(-1));
+		try {
+			tree.merge(1, null, String::concat);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			tree.putIfAbsent(null, "x");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertHeightBalanced(tree);
+	}
+
+	/*
+	 * Writes from inside the function that leave the shape of the tree alone would
+	 * go unnoticed by modCount but still overwrite the path the update is holding.
+	 */
+	@Test
+	public void testUpdateRejectsReentrantWrites() {
+		AVLTree<Integer, String> tree = makeBigTree();
+		List<BiFunction<Integer, String, String>> writes = Arrays.asList(
+				(k, v) -> { tree.add(500, "x"); return "y"; },
+				(k, v) -> { tree.remove(-5); return "y"; },
+				(k, v) -> tree.compute(500, (k2, v2) -> v2),
+				(k, v) -> { tree.removeMin(); return "y"; },
+				(k, v) -> { tree.removeAll(new Integer[] { 0, 1, 2 }); return "y"; });
+		for (BiFunction<Integer, String, String> write : writes) {
+			tree.add(500, "a");
+			try {
+				tree.compute(-5, write);
+				fail();
+			}
+			catch (ConcurrentModificationException e) {
+				// expected
+			}
+			tree.add(-5, "z");
+			assertEquals("z", tree.get(-5));
+			tree.remove(-5);
+			assertHeightBalanced(tree);
+		}
+		assertEquals("a", tree.get(500));
+	}
+
+	private void assertHeightBalanced(AVLTree<Integer, String> tree) {
+		// An AVL tree with n nodes has height less than 1.45 * log2(n + 2)
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+	}
+
 	private AVLTree<Integer, String> makeBigTree() {
 		AVLTree<Integer, String> tree = new AVLTree<>();
 		Random rnd = new Random();
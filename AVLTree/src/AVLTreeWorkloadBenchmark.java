@@ -0,0 +1,395 @@
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Workload benchmarks for AVLTree, with java.util.TreeMap and ConcurrentSkipListMap as baselines.
+ * AVLMap is AVLNavigableMap driven through the same NavigableMap calls as the baselines.
+ *
+ * Part one times every BinarySearchTreeInterface operation for sequential, random, Zipfian and
+ * sawtooth key patterns at sizes from 10^3 up to the size given on the command line (default
+ * 10^6; pass 10000000 for 10^7). Part two runs the YCSB core workloads A-F on a preloaded tree.
+ *
+ * Each measurement is repeated WARMUP_ROUNDS times before the reported run, like AVLTreeBenchmark.
+ * Results are nanoseconds and bytes allocated per operation; allocation is read from the
+ * per-thread counters of com.sun.management.ThreadMXBean and shows n/a on JVMs without them.
+ *
+ * The same workloads run under JMH, with its GC profiler for allocation, from the benchmarks
+ * in jmh/ (see pom.xml); this class is for when JMH is not at hand.
+ */
+public class AVLTreeWorkloadBenchmark {
+
+	static final int WARMUP_ROUNDS = 3;
+	static final int QUERIES = 1000000;
+
+	public static void main(String[] args) {
+		int maxSize = (args.length > 0)? Integer.parseInt(args[0]) : 1000000;
+		for (Pattern pattern : Pattern.values()) {
+			for (int n = 1000; n <= maxSize; n *= 10)
+				benchOperations(pattern, n);
+		}
+		for (Mix mix : Mix.values())
+			benchMix(mix, Math.min(maxSize, 1000000));
+	}
+
+
+
+	/*
+	 * The structures under test, behind one set of operations.
+	 */
+	interface Structure {
+		void add(Long key, Long val);
+		Long get(Long key);
+		boolean contains(Long key);
+		void remove(Long key);
+		Long min();
+		Long max();
+		void removeMin();
+		void removeMax();
+		int size();
+		int height();				// -1 where the structure has no height
+		long scan(Long from, int count);
+	}
+
+	static Structure avlTree() {
+		AVLTree<Long, Long> tree = new AVLTree<Long, Long>();
+		return new Structure() {
+			public void add(Long key, Long val) { tree.add(key, val); }
+			public Long get(Long key) { return tree.get(key); }
+			public boolean contains(Long key) { return tree.contains(key); }
+			public void remove(Long key) { tree.remove(key); }
+			public Long min() { return tree.min(); }
+			public Long max() { return tree.max(); }
+			public void removeMin() { tree.removeMin(); }
+			public void removeMax() { tree.removeMax(); }
+			public int size() { return tree.size(); }
+			public int height() { return tree.height(); }
+			public long scan(Long from, int count) {
+				long sum = 0;
+				Iterator<Map.Entry<Long, Long>> it = tree.entries(from, true, Long.MAX_VALUE, true);
+				for (int i = 0; i < count && it.hasNext(); i++)
+					sum += it.next().getValue();
+				return sum;
+			}
+		};
+	}
+
+	static Structure navigableMap(NavigableMap<Long, Long> map) {
+		return new Structure() {
+			public void add(Long key, Long val) { map.put(key, val); }
+			public Long get(Long key) { return map.get(key); }
+			public boolean contains(Long key) { return map.containsKey(key); }
+			public void remove(Long key) { map.remove(key); }
+			public Long min() { return map.firstKey(); }
+			public Long max() { return map.lastKey(); }
+			public void removeMin() { map.pollFirstEntry(); }
+			public void removeMax() { map.pollLastEntry(); }
+			public int size() { return map.size(); }
+			public int height() { return -1; }
+			public long scan(Long from, int count) {
+				long sum = 0;
+				Iterator<Long> it = map.tailMap(from, true).values().iterator();
+				for (int i = 0; i < count && it.hasNext(); i++)
+					sum += it.next();
+				return sum;
+			}
+		};
+	}
+
+	static final String[] NAMES = { "AVLTree", "AVLMap", "TreeMap", "SkipList" };
+
+	static Structure create(int kind) {
+		switch (kind) {
+		case 0:
+			return avlTree();
+		case 1:
+			return navigableMap(new AVLNavigableMap<Long, Long>());
+		case 2:
+			return navigableMap(new TreeMap<Long, Long>());
+		default:
+			return navigableMap(new ConcurrentSkipListMap<Long, Long>());
+		}
+	}
+
+
+
+	/*
+	 * Orders in which n distinct keys are inserted and then queried.
+	 */
+	enum Pattern {
+		SEQUENTIAL, RANDOM, ZIPFIAN, SAWTOOTH;
+
+		/*
+		 * Returns the n distinct keys in insertion order.
+		 */
+		Long[] keys(int n) {
+			Long[] keys = new Long[n];
+			int period = Math.max(1, (int) Math.ceil(Math.sqrt(n)));		// period * period >= n, so the keys are distinct
+			for (int i = 0; i < n; i++) {
+				if (this == SAWTOOTH)				// ascending runs that restart a little higher each time
+					keys[i] = (long) (i % period) * period + i / period;
+				else
+					keys[i] = (long) i;
+			}
+			if (this == RANDOM || this == ZIPFIAN)
+				shuffle(keys, new Random(n));
+			return keys;
+		}
+
+		/*
+		 * Returns QUERIES lookups into keys: in insertion order, or drawn from a Zipfian
+		 * distribution over them for ZIPFIAN.
+		 */
+		Long[] queries(Long[] keys) {
+			Long[] queries = new Long[QUERIES];
+			Zipfian zipf = (this == ZIPFIAN)? new Zipfian(keys.length, new Random(keys.length)) : null;
+			for (int i = 0; i < QUERIES; i++)
+				queries[i] = keys[(zipf == null)? i % keys.length : (int) zipf.next()];
+			return queries;
+		}
+	}
+
+	static void shuffle(Long[] keys, Random rnd) {
+		for (int i = keys.length - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+			Long tmp = keys[i];
+			keys[i] = keys[j];
+			keys[j] = tmp;
+		}
+	}
+
+
+
+	/*
+	 * Zipfian ranks in [0, n), rank 0 most frequent, as generated by YCSB's ZipfianGenerator
+	 * (Gray et al., "Quickly Generating Billion-Record Synthetic Databases").
+	 */
+	static class Zipfian {
+		static final double THETA = 0.99;
+		final long n;
+		final double alpha, zetan, eta;
+		final Random rnd;
+
+		Zipfian(long n, Random rnd) {
+			this.n = n;
+			this.rnd = rnd;
+			double zeta2 = 1 + Math.pow(0.5, THETA);
+			double zeta = 0;
+			for (long i = 1; i <= n; i++)
+				zeta += 1 / Math.pow(i, THETA);
+			zetan = zeta;
+			alpha = 1 / (1 - THETA);
+			eta = (1 - Math.pow(2.0 / n, 1 - THETA)) / (1 - zeta2 / zetan);
+		}
+
+		long next() {
+			double u = rnd.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)
+				return 0;
+			if (uz < 1 + Math.pow(0.5, THETA))
+				return Math.min(1, n - 1);
+			return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+
+
+	/*
+	 * Times each operation on each structure for one key pattern and size.
+	 */
+	public static void benchOperations(Pattern pattern, int n) {
+		Long[] keys = pattern.keys(n);
+		Long[] queries = pattern.queries(keys);
+		String[] ops = { "add", "get", "contains", "remove", "min", "max", "removeMin", "removeMax", "size", "height" };
+		long[][] nanos = new long[ops.length][NAMES.length];
+		long[][] bytes = new long[ops.length][NAMES.length];
+		long sink = 0;
+
+		for (int kind = 0; kind < NAMES.length; kind++) {
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				Meter meter = new Meter();
+				Structure s = create(kind);
+				for (Long key : keys)
+					s.add(key, key);
+				meter.stop(nanos[0], bytes[0], kind, n);
+
+				meter = new Meter();
+				for (Long key : queries)
+					if (s.get(key) != null)
+						sink++;
+				meter.stop(nanos[1], bytes[1], kind, QUERIES);
+				meter = new Meter();
+				for (Long key : queries)
+					if (s.contains(key))
+						sink++;
+				meter.stop(nanos[2], bytes[2], kind, QUERIES);
+
+				meter = new Meter();
+				for (int i = 0; i < QUERIES; i++)
+					sink += s.min();
+				meter.stop(nanos[4], bytes[4], kind, QUERIES);
+				meter = new Meter();
+				for (int i = 0; i < QUERIES; i++)
+					sink += s.max();
+				meter.stop(nanos[5], bytes[5], kind, QUERIES);
+				meter = new Meter();
+				for (int i = 0; i < QUERIES; i++)
+					sink += s.size();
+				meter.stop(nanos[8], bytes[8], kind, QUERIES);
+				meter = new Meter();
+				for (int i = 0; i < QUERIES; i++)
+					sink += s.height();
+				meter.stop(nanos[9], bytes[9], kind, QUERIES);
+
+				meter = new Meter();
+				for (Long key : keys)
+					s.remove(key);
+				meter.stop(nanos[3], bytes[3], kind, n);
+
+				for (Long key : keys)
+					s.add(key, key);
+				meter = new Meter();
+				for (int i = 0; i < n / 2; i++)
+					s.removeMin();
+				meter.stop(nanos[6], bytes[6], kind, n / 2);
+				meter = new Meter();
+				while (s.size() > 0)
+					s.removeMax();
+				meter.stop(nanos[7], bytes[7], kind, n - n / 2);
+			}
+		}
+		if (sink == 42)
+			System.out.print("");
+
+		System.out.printf("%s keys, n = %d (ns/op, B/op):%n", pattern, n);
+		printTable(ops, nanos, bytes);
+	}
+
+
+
+	/*
+	 * The YCSB core workloads, with Zipfian key choice over the loaded records except for
+	 * D, which reads the most recently inserted records.
+	 */
+	enum Mix {
+		A("update heavy", 50, 50, 0, 0, 0),
+		B("read mostly", 95, 5, 0, 0, 0),
+		C("read only", 100, 0, 0, 0, 0),
+		D("read latest", 95, 0, 5, 0, 0),
+		E("short ranges", 0, 0, 5, 95, 0),
+		F("read-modify-write", 50, 0, 0, 0, 50);
+
+		final String description;
+		final int read, update, insert, scan, readModifyWrite;
+
+		Mix(String description, int read, int update, int insert, int scan, int readModifyWrite) {
+			this.description = description;
+			this.read = read;
+			this.update = update;
+			this.insert = insert;
+			this.scan = scan;
+			this.readModifyWrite = readModifyWrite;
+		}
+	}
+
+	public static void benchMix(Mix mix, int n) {
+		long[][] nanos = new long[1][NAMES.length];
+		long[][] bytes = new long[1][NAMES.length];
+		long sink = 0;
+		for (int kind = 0; kind < NAMES.length; kind++) {
+			for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+				Structure s = create(kind);
+				Long[] keys = Pattern.RANDOM.keys(n);
+				for (Long key : keys)
+					s.add(key, key);
+				Random rnd = new Random(round);
+				Zipfian zipf = new Zipfian(n, rnd);
+				long inserted = n;
+
+				Meter meter = new Meter();
+				for (int i = 0; i < QUERIES; i++) {
+					int dice = rnd.nextInt(100);
+					Long key = (mix == Mix.D)? Long.valueOf(inserted - 1 - Math.min(zipf.next(), inserted - 1))
+							: keys[(int) zipf.next()];
+					if ((dice -= mix.read) < 0) {
+						Long val = s.get(key);
+						if (val != null)
+							sink += val;
+					}
+					else if ((dice -= mix.update) < 0)
+						s.add(key, (long) i);
+					else if ((dice -= mix.insert) < 0)
+						s.add(inserted, inserted++);
+					else if ((dice -= mix.scan) < 0)
+						sink += s.scan(key, 1 + rnd.nextInt(100));
+					else {
+						Long val = s.get(key);
+						s.add(key, (val == null)? 0 : val + 1);
+					}
+				}
+				meter.stop(nanos[0], bytes[0], kind, QUERIES);
+			}
+		}
+		if (sink == 42)
+			System.out.print("");
+
+		System.out.printf("YCSB workload %s (%s), n = %d (ns/op, B/op):%n", mix, mix.description, n);
+		printTable(new String[] { "mix" }, nanos, bytes);
+	}
+
+
+
+	/*
+	 * Measures time and, where supported, bytes allocated by the current thread.
+	 */
+	static class Meter {
+		static final com.sun.management.ThreadMXBean THREADS = threads();
+		final long startNanos = System.nanoTime();
+		final long startBytes = allocated();
+
+		void stop(long[] nanos, long[] bytes, int kind, long ops) {
+			long elapsed = System.nanoTime() - startNanos;
+			long allocated = allocated() - startBytes;
+			nanos[kind] = elapsed / Math.max(1, ops);
+			bytes[kind] = (startBytes < 0)? -1 : allocated / Math.max(1, ops);
+		}
+
+		static long allocated() {
+			if (THREADS == null)
+				return -1;
+			return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		static com.sun.management.ThreadMXBean threads() {
+			try {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+				if (!threads.isThreadAllocatedMemorySupported())
+					return null;
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+			catch (ClassCastException | UnsupportedOperationException e) {
+				return null;
+			}
+		}
+	}
+
+	static void printTable(String[] ops, long[][] nanos, long[][] bytes) {
+		System.out.printf("  %-10s", "");
+		for (String name : NAMES)
+			System.out.printf(" %9s %6s", name, "B/op");
+		System.out.println();
+		for (int op = 0; op < ops.length; op++) {
+			System.out.printf("  %-10s", ops[op]);
+			for (int kind = 0; kind < NAMES.length; kind++)
+				System.out.printf(" %9d %6s", nanos[op][kind], (bytes[op][kind] < 0)? "n/a" : Long.toString(bytes[op][kind]));
+			System.out.println();
+		}
+	}
+
+}
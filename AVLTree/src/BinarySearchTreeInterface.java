@@ -5,6 +5,7 @@
  * https://algs4.cs.princeton.edu/code/edu/princeton/cs/algs4/AVLTreeST.java.html
  */
 
+import java.util.function.BiFunction;
 
 public interface BinarySearchTreeInterface<K, T> {
 
@@ -78,6 +79,115 @@ public interface BinarySearchTreeInterface<K, T> {
     public void remove(K key);
     
 
+    /**
+     * Replaces the value of key with fn(key, old value), where the old value is
+     * null if the key is absent. If fn returns null the key is removed, or stays
+     * absent.
+     * 
+     * The default implementation calls get and then add or remove, so it is not atomic.
+     * 
+     * @param key the key
+     * @param fn computes the new value from the key and the old value
+     * @return the new value, or null if the key is now absent
+     * @throws IllegalArgumentException if key or fn is null
+     */
+    public default T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+        if (fn == null)
+            throw new IllegalArgumentException("Function is null");
+        T old = get(key);
+        T val = fn.apply(key, old);
+        if (val != null)
+            add(key, val);
+        else if (old != null)
+            remove(key);
+        return val;
+    }
+    
+
+    /**
+     * Associates key with val if it is absent, and otherwise with fn(old value,
+     * val). If fn returns null the key is removed.
+     * 
+     * The default implementation calls get and then add or remove, so it is not atomic.
+     * 
+     * @param key the key
+     * @param val the value to add or merge in
+     * @param fn combines the old value with val
+     * @return the new value, or null if the key was removed
+     * @throws IllegalArgumentException if key, val or fn is null
+     */
+    public default T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+        if (val == null)
+            throw new IllegalArgumentException("Value is null");
+        if (fn == null)
+            throw new IllegalArgumentException("Function is null");
+        T old = get(key);
+        T merged = (old == null)? val : fn.apply(old, val);
+        if (merged != null)
+            add(key, merged);
+        else
+            remove(key);
+        return merged;
+    }
+    
+
+    /**
+     * Adds the key-value pair only if key is absent.
+     * 
+     * The default implementation calls get and then add, so it is not atomic.
+     * 
+     * @param key the key
+     * @param val the value
+     * @return the value already associated with key, or null if it was added
+     * @throws IllegalArgumentException if key or val is null
+     */
+    public default T putIfAbsent(K key, T val) {
+        if (val == null)
+            throw new IllegalArgumentException("Value is null");
+        T old = get(key);
+        if (old == null)
+            add(key, val);
+        return old;
+    }
+    
+
+    /**
+     * Replaces the value of key only if key is present.
+     * 
+     * The default implementation calls get and then add, so it is not atomic.
+     * 
+     * @param key the key
+     * @param val the new value
+     * @return the old value, or null if key is absent and nothing changed
+     * @throws IllegalArgumentException if key or val is null
+     */
+    public default T replace(K key, T val) {
+        if (val == null)
+            throw new IllegalArgumentException("Value is null");
+        T old = get(key);
+        if (old != null)
+            add(key, val);
+        return old;
+    }
+    
+
+    /**
+     * Removes key and returns the value it had.
+     * 
+     * The default implementation calls get and then remove, so it is not atomic.
+     * 
+     * @param key the key
+     * @return the removed value, or null if key was absent
+     * @throws IllegalArgumentException if key is null
+     */
+    public default T removeAndGet(K key) {
+        T old = get(key);
+        if (old != null)
+            remove(key);
+        return old;
+    }
+    
+
     /**
      * Removes the smallest key and associated value from the tree.
      * 
@@ -111,5 +221,48 @@ public interface BinarySearchTreeInterface<K, T> {
      */
     public K max();
 
-	
+
+    /**
+     * Returns the number of keys in the tree strictly less than the given key.
+     *
+     * @param key the key
+     * @return the number of keys in the tree strictly less than key
+     * @throws IllegalArgumentException if key is null
+     */
+    public int rank(K key);
+
+
+    /**
+     * Returns the key of the given rank, that is the key such that exactly
+     * rank other keys in the tree are smaller.
+     *
+     * @param rank the rank, between 0 and size() - 1
+     * @return the key of the given rank
+     * @throws IllegalArgumentException if rank is not between 0 and size() - 1
+     */
+    public K select(int rank);
+
+
+    /**
+     * Returns the number of keys in the tree between lo and hi, both inclusive.
+     *
+     * @param lo the lower bound
+     * @param hi the upper bound
+     * @return the number of keys in the tree between lo and hi (inclusive),
+     *         or 0 if lo is greater than hi
+     * @throws IllegalArgumentException if either lo or hi is null
+     */
+    public int countRange(K lo, K hi);
+
+
+    /**
+     * Returns the median key of the tree. For an even number of keys this is
+     * the lower of the two middle keys.
+     *
+     * @return the median key of the tree
+     * @throws NoSuchElementException if the tree is empty
+     */
+    public K median();
+
+
 }
@@ -0,0 +1,830 @@
+/*
+ * A thread-safe AVL self-balancing binary search tree that stores key-value pairs, after the
+ * optimistic concurrent AVL tree of Bronson, Casper, Chafi and Olukotun.
+ *
+ * Reads take no locks. They descend hand over hand: after reading a child, a reader checks that
+ * the version of the node it came from has not changed, so the key it is looking for is still
+ * in range below that child. A node's version changes only when a rotation moves it down, which
+ * shrinks the range of keys below it, or when it is unlinked, so a read is disturbed only by
+ * changes to the nodes on its own path. A reader that meets a node in the middle of a rotation
+ * waits for the rotating writer to release the node, then retries from the node above.
+ *
+ * Writers lock only the nodes they change: an insert locks the parent of the new leaf, an
+ * overwrite or removal locks the node, and a rotation locks the parent, the node and the child
+ * and grandchild it moves, always from the top down, so writers cannot deadlock. Removing a key
+ * leaves its node in place as a routing node with no value, which is unlinked as soon as it has
+ * fewer than two children. Balance is relaxed: heights are repaired and rotations made after
+ * each change, walking up from it, so the tree is a strict AVL tree whenever no write is in
+ * progress.
+ *
+ * Subtree sizes would make every write update the root, so the tree keeps only a count of its
+ * entries. rank, select, countRange and median walk the entries they count, in O(log(n) + k)
+ * time for k entries, and like the iterators of ConcurrentSkipListMap they are only weakly
+ * consistent while writes are in progress.
+ */
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class ConcurrentAVLTree<K extends Comparable<K>, T> implements BinarySearchTreeInterface<K, T> {
+
+
+	private class Node {
+		final K key;
+		volatile T val;					// null in a routing node
+		volatile int height;
+		volatile long version;
+		volatile Node left, right, parent;
+
+		public Node(K key, T val, Node parent) {
+			this.key = key;
+			this.val = val;
+			this.parent = parent;
+			height = 1;
+		}
+	}
+
+	// Node versions: UNLINKED for good once a node leaves the tree, and otherwise a count of the
+	// rotations that moved the node down, shifted past the bit set while one is in progress
+	private static final long UNLINKED = 1;
+	private static final long SHRINKING = 2;
+
+	private static long beginShrink(long version) {
+		return version | SHRINKING;
+	}
+	private static long endShrink(long version) {
+		return (version | SHRINKING | UNLINKED) + 1;
+	}
+
+	// Returned by an attempt that has to be retried from the node above
+	private static final Object RETRY = new Object();
+
+	// How long a reader spins on a rotating node before blocking on its lock
+	private static final int SPINS = 100;
+
+	// Results of nodeCondition other than a repaired height
+	private static final int UNLINK_REQUIRED = -1;
+	private static final int REBALANCE_REQUIRED = -2;
+	private static final int NOTHING_REQUIRED = -3;
+
+
+
+	// Never rotated or unlinked; the root is its right child
+	private final Node holder = new Node(null, null, null);
+	private final AtomicInteger count = new AtomicInteger();
+
+
+	public ConcurrentAVLTree() {
+	}
+
+
+
+	private Node child(Node node, int dir) {
+		return (dir < 0)? node.left : node.right;
+	}
+
+	/*
+	 * Waits until a rotation moving node down has finished. The rotating writer holds the lock
+	 * on node throughout, so after a short spin this blocks on the lock.
+	 */
+	private void waitUntilNotShrinking(Node node) {
+		for (int spins = 0; spins < SPINS; spins++) {
+			if ((node.version & SHRINKING) == 0)
+				return;
+		}
+		synchronized (node) {
+			// released once the rotation is done
+		}
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+
+
+	@Override
+	public int size() {
+		return count.get();
+	}
+
+
+
+	@Override
+	public int height() {
+		return height(holder.right);
+	}
+	private int height(Node root) {
+		if (root == null)
+			return 0;
+		return root.height;
+	}
+
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return (T) attemptGet(key, holder, 1, holder.version);
+	}
+	/*
+	 * Searches for key below node, reached with the given version, in direction dir. Returns
+	 * RETRY if node has changed since.
+	 */
+	private Object attemptGet(K key, Node node, int dir, long nodeVersion) {
+		while (true) {
+			Node child = child(node, dir);
+			if (node.version != nodeVersion)
+				return RETRY;
+			if (child == null)
+				return null;
+			int cmp = key.compareTo(child.key);
+			if (cmp == 0)
+				return child.val;
+			long childVersion = child.version;
+			if ((childVersion & SHRINKING) != 0)
+				waitUntilNotShrinking(child);
+			else if (childVersion != UNLINKED && child == child(node, dir)) {
+				if (node.version != nodeVersion)
+					return RETRY;
+				Object result = attemptGet(key, child, cmp, childVersion);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+
+
+
+	@Override
+	public boolean contains(K key) {
+		return get(key) != null;
+	}
+
+
+
+	@Override
+	public void add(K key, T val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		update(key, (k, old) -> val, false);
+	}
+
+
+
+	@Override
+	public void remove(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		update(key, (k, old) -> null, false);
+	}
+
+
+
+	/*
+	 * Every write is an update: one optimistic descent to the key, then fn is applied with
+	 * the node it changes locked, so the compound updates are atomic, unlike the interface
+	 * defaults, and fn is applied exactly once. fn must not change the tree.
+	 */
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, fn, true);
+	}
+
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, (k, old) -> (old == null)? val : fn.apply(old, val), true);
+	}
+
+	@Override
+	public T putIfAbsent(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? val : old, false);
+	}
+
+	@Override
+	public T replace(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? null : val, false);
+	}
+
+	@Override
+	public T removeAndGet(K key) {
+		return update(key, (k, old) -> null, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T update(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return (T) attemptUpdate(key, fn, returnNew, holder, 1, holder.version);
+	}
+	private Object attemptUpdate(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew,
+			Node node, int dir, long nodeVersion) {
+		while (true) {
+			Node child = child(node, dir);
+			if (node.version != nodeVersion)
+				return RETRY;
+			Object result = RETRY;
+			if (child == null)
+				result = attemptInsert(key, fn, returnNew, node, dir, nodeVersion);
+			else {
+				int cmp = key.compareTo(child.key);
+				if (cmp == 0)
+					result = attemptChange(key, fn, returnNew, child);
+				else {
+					long childVersion = child.version;
+					if ((childVersion & SHRINKING) != 0)
+						waitUntilNotShrinking(child);
+					else if (childVersion != UNLINKED && child == child(node, dir)) {
+						if (node.version != nodeVersion)
+							return RETRY;
+						result = attemptUpdate(key, fn, returnNew, child, cmp, childVersion);
+					}
+				}
+			}
+			if (result != RETRY)
+				return result;
+		}
+	}
+	/*
+	 * Applies fn to an absent key, and links a new leaf for it below node if the result is
+	 * not null.
+	 */
+	private Object attemptInsert(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew,
+			Node node, int dir, long nodeVersion) {
+		T val;
+		synchronized (node) {
+			if (node.version != nodeVersion || child(node, dir) != null)
+				return RETRY;
+			val = fn.apply(key, null);
+			if (val == null)
+				return null;
+			count.incrementAndGet();								// before the leaf is visible, so size never goes negative
+			Node leaf = new Node(key, val, node);
+			if (dir < 0)
+				node.left = leaf;
+			else
+				node.right = leaf;
+		}
+		fixHeightAndRebalance(node);
+		return returnNew? val : null;
+	}
+	/*
+	 * Applies fn to the key of node. A null result turns node into a routing node, which is
+	 * unlinked right away if it has fewer than two children.
+	 */
+	private Object attemptChange(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew, Node node) {
+		T old, val;
+		synchronized (node) {
+			if (node.version == UNLINKED)
+				return RETRY;
+			old = node.val;
+			val = fn.apply(key, old);
+			if (val == old)
+				return val;
+			if (old == null)
+				count.incrementAndGet();
+			node.val = val;
+			if (val == null)
+				count.decrementAndGet();
+		}
+		if (val == null)
+			fixHeightAndRebalance(node);
+		return returnNew? val : old;
+	}
+
+
+
+	@Override
+	public void removeMin() {
+		if (extreme(-1, true) == null)
+			throw new NoSuchElementException("Tree is empty");
+	}
+
+
+
+	@Override
+	public void removeMax() {
+		if (extreme(1, true) == null)
+			throw new NoSuchElementException("Tree is empty");
+	}
+
+
+
+	@Override
+	public K min() {
+		K min = extreme(-1, false);
+		if (min == null)
+			throw new NoSuchElementException("Tree is empty");
+		return min;
+	}
+
+
+
+	@Override
+	public K max() {
+		K max = extreme(1, false);
+		if (max == null)
+			throw new NoSuchElementException("Tree is empty");
+		return max;
+	}
+
+
+
+	/*
+	 * Returns the smallest key if dir is negative and the largest otherwise, removing it if
+	 * remove is set, or null if the tree is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private K extreme(int dir, boolean remove) {
+		while (true) {
+			Node root = holder.right;
+			if (root == null)
+				return null;
+			long rootVersion = root.version;
+			if ((rootVersion & SHRINKING) != 0)
+				waitUntilNotShrinking(root);
+			else if (rootVersion != UNLINKED && root == holder.right) {
+				Object result = attemptExtreme(dir, remove, root, rootVersion);
+				if (result != RETRY)
+					return (K) result;
+			}
+		}
+	}
+	private Object attemptExtreme(int dir, boolean remove, Node node, long nodeVersion) {
+		while (true) {
+			Node child = child(node, dir);
+			if (node.version != nodeVersion)
+				return RETRY;
+			if (child == null)
+				return remove? attemptRemoveExtreme(dir, node, nodeVersion) : attemptReadExtreme(node, nodeVersion);
+			long childVersion = child.version;
+			if ((childVersion & SHRINKING) != 0)
+				waitUntilNotShrinking(child);
+			else if (childVersion != UNLINKED && child == child(node, dir)) {
+				if (node.version != nodeVersion)
+					return RETRY;
+				Object result = attemptExtreme(dir, remove, child, childVersion);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+	/*
+	 * node has no child in the direction searched, so unless it is a routing node about to be
+	 * unlinked, it holds the extreme key.
+	 */
+	private Object attemptReadExtreme(Node node, long nodeVersion) {
+		T val = node.val;
+		if (node.version != nodeVersion)
+			return RETRY;
+		if (val == null) {
+			fixHeightAndRebalance(node);
+			return RETRY;
+		}
+		return node.key;
+	}
+	private Object attemptRemoveExtreme(int dir, Node node, long nodeVersion) {
+		synchronized (node) {
+			if (node.version != nodeVersion || child(node, dir) != null)
+				return RETRY;
+			if (node.val != null) {
+				node.val = null;
+				count.decrementAndGet();
+				nodeVersion = 0;
+			}
+		}
+		fixHeightAndRebalance(node);
+		return (nodeVersion == 0)? node.key : RETRY;
+	}
+
+
+
+	/*
+	 * Repairs heights and balance from node up, as far as the change made below node requires.
+	 */
+	private void fixHeightAndRebalance(Node node) {
+		while (node != null && node.parent != null) {
+			int condition = nodeCondition(node);
+			if (condition == NOTHING_REQUIRED || node.version == UNLINKED)
+				return;
+			if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized (node) {
+					node = fixHeight(node);
+				}
+			}
+			else {
+				Node parent = node.parent;
+				synchronized (parent) {
+					if (parent.version != UNLINKED && node.parent == parent) {
+						synchronized (node) {
+							node = rebalance(parent, node);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns the repaired height of node if only that is wrong, or what else it needs.
+	 * Reads without locks, so the answer may be out of date by the time it is acted on.
+	 */
+	private int nodeCondition(Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.val == null)
+			return UNLINK_REQUIRED;
+		int hL = height(left);
+		int hR = height(right);
+		if (hL - hR < -1 || hL - hR > 1)
+			return REBALANCE_REQUIRED;
+		int repaired = 1 + Math.max(hL, hR);
+		return (node.height != repaired)? repaired : NOTHING_REQUIRED;
+	}
+
+	/*
+	 * Repairs the height of node and returns the next node to fix, or null if none. Called
+	 * with node locked.
+	 */
+	private Node fixHeight(Node node) {
+		int condition = nodeCondition(node);
+		switch (condition) {
+		case REBALANCE_REQUIRED:
+		case UNLINK_REQUIRED:
+			return node;
+		case NOTHING_REQUIRED:
+			return null;
+		default:
+			node.height = condition;
+			return node.parent;
+		}
+	}
+
+	/*
+	 * Unlinks, rotates or repairs the height of node, returning the next node to fix, or null
+	 * if none. Called with parent and node locked.
+	 */
+	private Node rebalance(Node parent, Node node) {
+		Node left = node.left;
+		Node right = node.right;
+		if ((left == null || right == null) && node.val == null)
+			return unlink(parent, node)? fixHeight(parent) : node;
+		int h = node.height;
+		int hL = height(left);
+		int hR = height(right);
+		int repaired = 1 + Math.max(hL, hR);
+		if (hL - hR > 1)
+			return rebalanceToRight(parent, node, left, hR);
+		if (hL - hR < -1)
+			return rebalanceToLeft(parent, node, right, hL);
+		if (repaired != h) {
+			node.height = repaired;
+			return fixHeight(parent);
+		}
+		return null;
+	}
+
+	/*
+	 * Splices a routing node with at most one child out of the tree. Called with parent and
+	 * node locked.
+	 */
+	private boolean unlink(Node parent, Node node) {
+		Node parentLeft = parent.left;
+		if (parentLeft != node && parent.right != node)
+			return false;
+		Node left = node.left;
+		Node right = node.right;
+		if (left != null && right != null)
+			return false;
+		Node splice = (left != null)? left : right;
+		if (parentLeft == node)
+			parent.left = splice;
+		else
+			parent.right = splice;
+		if (splice != null)
+			splice.parent = parent;
+		node.version = UNLINKED;
+		return true;
+	}
+
+
+
+	/*
+	 * The rotations below are called with parent and node locked, and lock the nodes they move
+	 * up. Each marks the nodes it moves down as shrinking for its duration, and returns the
+	 * next node to fix, or null if none.
+	 */
+	private Node rebalanceToRight(Node parent, Node node, Node left, int hR) {
+		synchronized (left) {
+			int hL = left.height;
+			if (hL - hR <= 1)
+				return node;											// changed since; look again
+			Node leftRight = left.right;
+			int hLL = height(left.left);
+			int hLR = height(leftRight);
+			if (hLL >= hLR)
+				return rotateRight(parent, node, left, hR, hLL, leftRight, hLR);
+			synchronized (leftRight) {
+				hLR = leftRight.height;
+				if (hLL >= hLR)
+					return rotateRight(parent, node, left, hR, hLL, leftRight, hLR);
+				int hLRL = height(leftRight.left);
+				int balance = hLL - hLRL;
+				if (balance >= -1 && balance <= 1 && !((hLL == 0 || hLRL == 0) && left.val == null))
+					return rotateRightOverLeft(parent, node, left, hR, hLL, leftRight, hLRL);
+			}
+			// left would end up unbalanced or a childless routing node, so rotate it first
+			return rebalanceToLeft(node, left, leftRight, hLL);
+		}
+	}
+	private Node rebalanceToLeft(Node parent, Node node, Node right, int hL) {
+		synchronized (right) {
+			int hR = right.height;
+			if (hL - hR >= -1)
+				return node;
+			Node rightLeft = right.left;
+			int hRR = height(right.right);
+			int hRL = height(rightLeft);
+			if (hRR >= hRL)
+				return rotateLeft(parent, node, right, hL, hRR, rightLeft, hRL);
+			synchronized (rightLeft) {
+				hRL = rightLeft.height;
+				if (hRR >= hRL)
+					return rotateLeft(parent, node, right, hL, hRR, rightLeft, hRL);
+				int hRLR = height(rightLeft.right);
+				int balance = hRR - hRLR;
+				if (balance >= -1 && balance <= 1 && !((hRR == 0 || hRLR == 0) && right.val == null))
+					return rotateLeftOverRight(parent, node, right, hL, hRR, rightLeft, hRLR);
+			}
+			return rebalanceToRight(node, right, rightLeft, hRR);
+		}
+	}
+
+	private Node rotateRight(Node parent, Node node, Node left, int hR, int hLL, Node leftRight, int hLR) {
+		long version = node.version;
+		Node parentLeft = parent.left;
+		node.version = beginShrink(version);
+
+		node.left = leftRight;
+		if (leftRight != null)
+			leftRight.parent = node;
+		left.right = node;
+		node.parent = left;
+		if (parentLeft == node)
+			parent.left = left;
+		else
+			parent.right = left;
+		left.parent = parent;
+
+		int hNode = 1 + Math.max(hLR, hR);
+		node.height = hNode;
+		left.height = 1 + Math.max(hLL, hNode);
+		node.version = endShrink(version);
+
+		// node is now the deepest of the nodes touched; fix what can be fixed with these locks
+		if (hLR - hR < -1 || hLR - hR > 1)
+			return node;
+		if ((leftRight == null || hR == 0) && node.val == null)
+			return node;
+		if (hLL - hNode < -1 || hLL - hNode > 1)
+			return left;
+		if (hLL == 0 && left.val == null)
+			return left;
+		return fixHeight(parent);
+	}
+	private Node rotateLeft(Node parent, Node node, Node right, int hL, int hRR, Node rightLeft, int hRL) {
+		long version = node.version;
+		Node parentLeft = parent.left;
+		node.version = beginShrink(version);
+
+		node.right = rightLeft;
+		if (rightLeft != null)
+			rightLeft.parent = node;
+		right.left = node;
+		node.parent = right;
+		if (parentLeft == node)
+			parent.left = right;
+		else
+			parent.right = right;
+		right.parent = parent;
+
+		int hNode = 1 + Math.max(hL, hRL);
+		node.height = hNode;
+		right.height = 1 + Math.max(hNode, hRR);
+		node.version = endShrink(version);
+
+		if (hRL - hL < -1 || hRL - hL > 1)
+			return node;
+		if ((rightLeft == null || hL == 0) && node.val == null)
+			return node;
+		if (hRR - hNode < -1 || hRR - hNode > 1)
+			return right;
+		if (hRR == 0 && right.val == null)
+			return right;
+		return fixHeight(parent);
+	}
+
+	private Node rotateRightOverLeft(Node parent, Node node, Node left, int hR, int hLL, Node leftRight, int hLRL) {
+		long version = node.version;
+		long leftVersion = left.version;
+		Node parentLeft = parent.left;
+		Node leftRightLeft = leftRight.left;
+		Node leftRightRight = leftRight.right;
+		int hLRR = height(leftRightRight);
+		node.version = beginShrink(version);
+		left.version = beginShrink(leftVersion);
+
+		node.left = leftRightRight;
+		if (leftRightRight != null)
+			leftRightRight.parent = node;
+		left.right = leftRightLeft;
+		if (leftRightLeft != null)
+			leftRightLeft.parent = left;
+		leftRight.left = left;
+		left.parent = leftRight;
+		leftRight.right = node;
+		node.parent = leftRight;
+		if (parentLeft == node)
+			parent.left = leftRight;
+		else
+			parent.right = leftRight;
+		leftRight.parent = parent;
+
+		int hNode = 1 + Math.max(hLRR, hR);
+		node.height = hNode;
+		int hLeft = 1 + Math.max(hLL, hLRL);
+		left.height = hLeft;
+		leftRight.height = 1 + Math.max(hLeft, hNode);
+		node.version = endShrink(version);
+		left.version = endShrink(leftVersion);
+
+		if (hLRR - hR < -1 || hLRR - hR > 1)
+			return node;
+		if ((leftRightRight == null || hR == 0) && node.val == null)
+			return node;
+		if (hLeft - hNode < -1 || hLeft - hNode > 1)
+			return leftRight;
+		return fixHeight(parent);
+	}
+	private Node rotateLeftOverRight(Node parent, Node node, Node right, int hL, int hRR, Node rightLeft, int hRLR) {
+		long version = node.version;
+		long rightVersion = right.version;
+		Node parentLeft = parent.left;
+		Node rightLeftLeft = rightLeft.left;
+		Node rightLeftRight = rightLeft.right;
+		int hRLL = height(rightLeftLeft);
+		node.version = beginShrink(version);
+		right.version = beginShrink(rightVersion);
+
+		node.right = rightLeftLeft;
+		if (rightLeftLeft != null)
+			rightLeftLeft.parent = node;
+		right.left = rightLeftRight;
+		if (rightLeftRight != null)
+			rightLeftRight.parent = right;
+		rightLeft.right = right;
+		right.parent = rightLeft;
+		rightLeft.left = node;
+		node.parent = rightLeft;
+		if (parentLeft == node)
+			parent.left = rightLeft;
+		else
+			parent.right = rightLeft;
+		rightLeft.parent = parent;
+
+		int hNode = 1 + Math.max(hL, hRLL);
+		node.height = hNode;
+		int hRight = 1 + Math.max(hRLR, hRR);
+		right.height = hRight;
+		rightLeft.height = 1 + Math.max(hNode, hRight);
+		node.version = endShrink(version);
+		right.version = endShrink(rightVersion);
+
+		if (hRLL - hL < -1 || hRLL - hL > 1)
+			return node;
+		if ((rightLeftLeft == null || hL == 0) && node.val == null)
+			return node;
+		if (hRight - hNode < -1 || hRight - hNode > 1)
+			return rightLeft;
+		return fixHeight(parent);
+	}
+
+
+
+	@Override
+	public int rank(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return count(holder.right, null, key, false);
+	}
+	/*
+	 * Counts the entries below node with keys from lo up to hi, where a null bound is open
+	 * and lo is inclusive. Whole subtrees inside the range are counted without comparisons.
+	 */
+	private int count(Node node, K lo, K hi, boolean hiInclusive) {
+		int count = 0;
+		while (node != null) {
+			if (lo != null && node.key.compareTo(lo) < 0) {
+				node = node.right;
+				continue;
+			}
+			if (hi != null) {
+				int cmp = node.key.compareTo(hi);
+				if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+					node = node.left;
+					continue;
+				}
+			}
+			// node is in range, so everything to its right is above lo
+			if (node.val != null)
+				count++;
+			count += count(node.left, lo, null, false);
+			node = node.right;
+			lo = null;
+		}
+		return count;
+	}
+
+
+
+	@Override
+	public K select(int rank) {
+		K key = (rank < 0)? null : selectOrNull(rank);
+		if (key == null)
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		return key;
+	}
+	// The key with the given rank, found by walking the entries in order, or null if there are too few
+	private K selectOrNull(int rank) {
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		Node node = holder.right;
+		while (node != null || !stack.isEmpty()) {
+			if (node != null) {
+				stack.push(node);
+				node = node.left;
+			}
+			else {
+				node = stack.pop();
+				if (node.val != null && rank-- == 0)
+					return node.key;
+				node = node.right;
+			}
+		}
+		return null;
+	}
+
+
+
+	@Override
+	public int countRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		if (lo.compareTo(hi) > 0)
+			return 0;
+		return count(holder.right, lo, hi, true);
+	}
+
+
+
+	@Override
+	public K median() {
+		while (true) {
+			int size = size();
+			if (size == 0)
+				throw new NoSuchElementException("Tree is empty");
+			K median = selectOrNull((size - 1) / 2);
+			if (median != null)
+				return median;
+		}
+	}
+
+
+
+	/**
+	 * Removes every entry, smallest first. Like ConcurrentSkipListMap.clear, this is not
+	 * atomic: entries added while it runs may survive.
+	 */
+	public void clear() {
+		while (extreme(-1, true) != null) {
+			// removed the smallest entry
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ConcurrentAVLTreeTester {
+
+	@Test
+	public void testMatchesTreeMap() {
+		ConcurrentAVLTree<Integer, String> tree = new ConcurrentAVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(500);
+			switch (rnd.nextInt(4)) {
+			case 0:
+			case 1:
+				String word = "v" + rnd.nextInt();
+				tree.add(key, word);
+				expected.put(key, word);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMin();
+					expected.pollFirstEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.get(key), tree.get(key));
+			if (!expected.isEmpty()) {
+				assertEquals(expected.firstKey(), tree.min());
+				assertEquals(expected.lastKey(), tree.max());
+				int r = rnd.nextInt(expected.size());
+				assertEquals(r, tree.rank(tree.select(r)));
+			}
+		}
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+	}
+
+	/*
+	 * Many threads merging counts into a few keys must not lose an increment.
+	 */
+	@Test
+	public void testAtomicMerge() throws InterruptedException {
+		final ConcurrentAVLTree<Integer, Integer> tree = new ConcurrentAVLTree<Integer, Integer>();
+		final int threads = 4;
+		final int increments = 20000;
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(new Thread(() -> {
+				for (int i = 0; i < increments; i++) {
+					tree.merge(i % 10, 1, Integer::sum);
+				}
+			}));
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+
+		for (int key = 0; key < 10; key++) {
+			assertEquals(Integer.valueOf(threads * increments / 10), tree.get(key));
+		}
+		assertNull(tree.putIfAbsent(10, 0));
+		assertEquals(Integer.valueOf(0), tree.replace(10, 5));
+		assertEquals(Integer.valueOf(5), tree.removeAndGet(10));
+		assertNull(tree.compute(0, (k, v) -> null));
+		assertEquals(9, tree.size());
+	}
+
+	/*
+	 * Threads draining the tree from the left with removeMin and removeAndGet race on the same
+	 * node, so between them they must remove each key exactly once.
+	 */
+	@Test
+	public void testConcurrentRemoveMin() throws InterruptedException {
+		final ConcurrentAVLTree<Integer, Integer> tree = new ConcurrentAVLTree<Integer, Integer>();
+		final int keys = 50000;
+		for (int i = 0; i < keys; i++) {
+			tree.add(i, i);
+		}
+		final AtomicInteger removedMin = new AtomicInteger();
+		final AtomicIntegerArray removed = new AtomicIntegerArray(keys);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < 2; t++) {
+			workers.add(new Thread(() -> {
+				try {
+					while (true) {
+						tree.removeMin();
+						removedMin.incrementAndGet();
+					}
+				}
+				catch (NoSuchElementException e) {
+					// drained
+				}
+			}));
+			workers.add(new Thread(() -> {
+				try {
+					while (true) {
+						Integer min = tree.removeAndGet(tree.min());
+						if (min != null && removed.getAndIncrement(min) != 0)
+							failure.compareAndSet(null, "Key " + min + " removed twice");
+					}
+				}
+				catch (NoSuchElementException e) {
+					// drained
+				}
+			}));
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+
+		assertNull(failure.get());
+		int removedByKey = 0;
+		for (int i = 0; i < keys; i++) {
+			removedByKey += removed.get(i);
+		}
+		assertEquals(keys, removedMin.get() + removedByKey);
+		assertTrue(tree.isEmpty());
+		assertEquals(0, tree.height());
+	}
+
+	/*
+	 * Each writer owns the keys congruent to its index and only ever raises the version
+	 * stored for a key, so a reader must never see a value for the wrong key, and must
+	 * never see the version of a key go backwards (except to null, while it is removed).
+	 */
+	@Test
+	public void testConcurrentReadersAndWriters() throws InterruptedException {
+		final ConcurrentAVLTree<Integer, Long> tree = new ConcurrentAVLTree<Integer, Long>();
+		final int writers = 4;
+		final int readers = 4;
+		final int keys = 2000;
+		final int rounds = 20000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final long[][] finalVersions = new long[writers][keys];
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int w = 0; w < writers; w++) {
+			final int id = w;
+			threads.add(new Thread(() -> {
+				Random rnd = new Random(id);
+				long[] versions = finalVersions[id];
+				for (int i = 1; i <= rounds; i++) {
+					int key = rnd.nextInt(keys / writers) * writers + id;
+					if (rnd.nextInt(4) == 0) {
+						tree.remove(key);
+						versions[key] = -Math.abs(versions[key]);
+					}
+					else {
+						versions[key] = i;
+						tree.add(key, (long) key * rounds * 2 + i);
+					}
+				}
+			}));
+		}
+		for (int r = 0; r < readers; r++) {
+			final int id = r;
+			threads.add(new Thread(() -> {
+				Random rnd = new Random(100 + id);
+				long[] lastSeen = new long[keys];
+				while (!done.get()) {
+					int key = rnd.nextInt(keys);
+					Long val = tree.get(key);
+					if (val == null)
+						continue;
+					long version = val - (long) key * rounds * 2;
+					if (version < 1 || version > rounds)
+						failure.compareAndSet(null, "Value " + val + " read for key " + key);
+					else if (version < lastSeen[key])
+						failure.compareAndSet(null, "Version of key " + key + " went back from " + lastSeen[key] + " to " + version);
+					lastSeen[key] = Math.max(lastSeen[key], version);
+					int size = tree.size();
+					if (size < 0 || size > keys)
+						failure.compareAndSet(null, "Size " + size + " out of range");
+				}
+			}));
+		}
+
+		for (Thread t : threads)
+			t.start();
+		for (int w = 0; w < writers; w++)
+			threads.get(w).join();
+		done.set(true);
+		for (Thread t : threads)
+			t.join();
+
+		assertNull(failure.get());
+		int expectedSize = 0;
+		for (int w = 0; w < writers; w++) {
+			for (int key = w; key < keys; key += writers) {
+				long version = finalVersions[w][key];
+				if (version > 0) {
+					expectedSize++;
+					assertEquals(Long.valueOf((long) key * rounds * 2 + version), tree.get(key));
+				}
+				else
+					assertFalse(tree.contains(key));
+			}
+		}
+		assertEquals(expectedSize, tree.size());
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+	}
+
+}
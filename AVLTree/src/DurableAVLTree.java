@@ -0,0 +1,770 @@
+/*
+ * An in-memory AVLTree whose changes survive a crash, backed by a write-ahead log and checkpoints.
+ *
+ * Every add and remove is applied to the tree and appended to the log as a numbered record, and
+ * returns only once the record has been forced to disk. Forcing uses group commit: a writer that
+ * finds its record not yet durable becomes the leader, writes every record buffered so far and
+ * forces them with one fsync, while the writers that arrive meanwhile queue behind it and are
+ * usually covered by the next leader's fsync. The more concurrent writers, the more records
+ * share each fsync. If a write or fsync fails, the segment is cut back to its last good length
+ * and the records are queued again ahead of any newer ones, so the change stays applied and
+ * reaches disk, in order, with the next flush. Only if the segment cannot be cut back does the
+ * tree stop taking writes.
+ *
+ * checkpoint() copies the tree under the lock, writes the copy with AVLTreeSerializer to a new
+ * snapshot file without it, renames the file into place and then deletes the log segments and
+ * snapshot it supersedes. With a checkpoint interval, the writer whose record falls due takes
+ * one automatically; writers that fall due while it runs find their records covered by it and
+ * skip theirs. Opening a directory loads the newest snapshot and replays the log records after it, stopping at the first torn or
+ * corrupt record, which can only be the tail of the last segment.
+ *
+ * Directory layout:
+ *   checkpoint-<seq>.avl   snapshot holding every change up to and including record seq
+ *   wal-<seq>.log          log segment whose first record is at most seq
+ *
+ * Log record (big-endian): int payload length, int CRC32 of the payload, then the payload:
+ * long sequence number, byte operation, key, and for ADD the value, each written by its codec.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+public class DurableAVLTree<K extends Comparable<K>, T> implements BinarySearchTreeInterface<K, T>, Closeable {
+
+
+	private static final byte ADD = 1, REMOVE = 2, CLEAR = 3;
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+	private final Path dir;
+	private final AVLTreeSerializer.Codec<K> keyCodec;
+	private final AVLTreeSerializer.Codec<T> valCodec;
+	private final AVLTreeSerializer<K, T> serializer;
+	private final long checkpointInterval;
+	private final long segmentBytes;
+
+	// Guards tree, pending and lastSeq. Never held while waiting for logLock.
+	private final Object lock = new Object();
+	private final AVLTree<K, T> tree;
+	private RecordBuffer pending = new RecordBuffer();
+	private RecordBuffer writing = new RecordBuffer();
+	private DataOutputStream pendingData = new DataOutputStream(pending);
+	private DataOutputStream writingData = new DataOutputStream(writing);
+	private long lastSeq;
+
+	// Guards the log segment; held by the group commit leader and by checkpoint
+	private final Object logLock = new Object();
+	private FileChannel segment;
+	private final CRC32 crc = new CRC32();
+	private volatile long durableSeq;
+	private volatile long checkpointSeq;
+	private volatile long syncs;
+	private volatile long checkpoints;
+	private volatile boolean closed;
+	private volatile boolean failed;		// a failed write could not be cut back out of the log
+
+	// Held while a checkpoint is written, so only one is written at a time
+	private final Object checkpointLock = new Object();
+
+	// For tests: the next log write stops after this many bytes and fails, unless negative
+	int failNextWriteAfter = -1;
+
+
+	/**
+	 * Opens the tree stored in a directory, creating the directory if needed.
+	 * No checkpoints are taken unless checkpoint() is called.
+	 *
+	 * @param dir the directory holding the log and checkpoints
+	 * @param keyCodec the codec for keys
+	 * @param valCodec the codec for values
+	 * @return the recovered tree
+	 * @throws IOException if the directory cannot be read or a checkpoint is corrupt
+	 */
+	public static <K extends Comparable<K>, T> DurableAVLTree<K, T> open(Path dir,
+			AVLTreeSerializer.Codec<K> keyCodec, AVLTreeSerializer.Codec<T> valCodec) throws IOException {
+		return open(dir, keyCodec, valCodec, 0, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Opens the tree stored in a directory, creating the directory if needed.
+	 *
+	 * @param dir the directory holding the log and checkpoints
+	 * @param keyCodec the codec for keys
+	 * @param valCodec the codec for values
+	 * @param checkpointInterval take a checkpoint after this many records, or 0 for never
+	 * @param segmentBytes start a new log segment once the current one is this large
+	 * @return the recovered tree
+	 * @throws IOException if the directory cannot be read or a checkpoint is corrupt
+	 */
+	public static <K extends Comparable<K>, T> DurableAVLTree<K, T> open(Path dir,
+			AVLTreeSerializer.Codec<K> keyCodec, AVLTreeSerializer.Codec<T> valCodec,
+			long checkpointInterval, long segmentBytes) throws IOException {
+		if (checkpointInterval < 0 || segmentBytes <= 0)
+			throw new IllegalArgumentException("Checkpoint interval is negative or segment size is not positive");
+		Files.createDirectories(dir);
+		return new DurableAVLTree<K, T>(dir, keyCodec, valCodec, checkpointInterval, segmentBytes);
+	}
+
+	private DurableAVLTree(Path dir, AVLTreeSerializer.Codec<K> keyCodec, AVLTreeSerializer.Codec<T> valCodec,
+			long checkpointInterval, long segmentBytes) throws IOException {
+		this.dir = dir;
+		this.keyCodec = keyCodec;
+		this.valCodec = valCodec;
+		this.serializer = new AVLTreeSerializer<K, T>(keyCodec, valCodec);
+		this.checkpointInterval = checkpointInterval;
+		this.segmentBytes = segmentBytes;
+
+		// Load the newest checkpoint, dropping any left half-written by a crash
+		AVLTree<K, T> loaded = null;
+		for (Path file : list("checkpoint-", ".tmp"))
+			Files.delete(file);
+		List<Path> checkpoints = list("checkpoint-", ".avl");
+		if (!checkpoints.isEmpty()) {
+			Path newest = checkpoints.get(checkpoints.size() - 1);
+			loaded = serializer.read(newest);
+			checkpointSeq = sequenceOf(newest);
+		}
+		tree = (loaded == null)? new AVLTree<K, T>() : loaded;
+		lastSeq = checkpointSeq;
+
+		// Replay the log tail, and cut it at the first record that did not make it to disk whole
+		List<Path> segments = list("wal-", ".log");
+		for (int i = 0; i < segments.size(); i++) {
+			if (!replay(segments.get(i))) {
+				for (int j = i + 1; j < segments.size(); j++)
+					Files.delete(segments.get(j));
+				break;
+			}
+		}
+		durableSeq = lastSeq;
+		segment = openSegment(lastSeq + 1);
+	}
+
+
+
+	/*
+	 * Applies the records of one segment after the checkpoint. Returns false if the segment
+	 * ends in a torn record, after truncating it there.
+	 */
+	private boolean replay(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			long position = 0;
+			long size = channel.size();
+			while (position < size) {
+				header.clear();
+				if (size - position < RECORD_HEADER_SIZE || channel.read(header, position) < RECORD_HEADER_SIZE)
+					return truncate(channel, position);
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				if (length <= 0 || length > size - position - RECORD_HEADER_SIZE)
+					return truncate(channel, position);
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				while (payload.hasRemaining())
+					channel.read(payload, position + RECORD_HEADER_SIZE + payload.position());
+				crc.reset();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != checksum)
+					return truncate(channel, position);
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+				long seq = in.readLong();
+				if (seq > lastSeq + 1)
+					return truncate(channel, position);
+				if (seq == lastSeq + 1) {
+					apply(in.readByte(), in);
+					lastSeq = seq;
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+			return true;
+		}
+	}
+	private boolean truncate(FileChannel channel, long position) throws IOException {
+		channel.truncate(position);
+		channel.force(true);
+		return false;
+	}
+	private void apply(byte op, DataInputStream in) throws IOException {
+		if (op == ADD) {
+			K key = keyCodec.read(in);
+			tree.add(key, valCodec.read(in));
+		}
+		else if (op == REMOVE)
+			tree.remove(keyCodec.read(in));
+		else if (op == CLEAR)
+			tree.clear();
+		else
+			throw new IOException("Unknown log operation " + op);
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		synchronized (lock) {
+			return tree.isEmpty();
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (lock) {
+			return tree.size();
+		}
+	}
+
+	@Override
+	public int height() {
+		synchronized (lock) {
+			return tree.height();
+		}
+	}
+
+	@Override
+	public T get(K key) {
+		synchronized (lock) {
+			return tree.get(key);
+		}
+	}
+
+	@Override
+	public boolean contains(K key) {
+		synchronized (lock) {
+			return tree.contains(key);
+		}
+	}
+
+	@Override
+	public K min() {
+		synchronized (lock) {
+			return tree.min();
+		}
+	}
+
+	@Override
+	public K max() {
+		synchronized (lock) {
+			return tree.max();
+		}
+	}
+
+	@Override
+	public int rank(K key) {
+		synchronized (lock) {
+			return tree.rank(key);
+		}
+	}
+
+	@Override
+	public K select(int rank) {
+		synchronized (lock) {
+			return tree.select(rank);
+		}
+	}
+
+	@Override
+	public int countRange(K lo, K hi) {
+		synchronized (lock) {
+			return tree.countRange(lo, hi);
+		}
+	}
+
+	@Override
+	public K median() {
+		synchronized (lock) {
+			return tree.median();
+		}
+	}
+
+
+
+	/**
+	 * Adds a key-value pair, or removes the key if val is null, and returns once
+	 * the change is durable.
+	 *
+	 * @throws UncheckedIOException if the log cannot be written
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	@Override
+	public void add(K key, T val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (val == null) {
+			remove(key);
+			return;
+		}
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			tree.add(key, val);
+			seq = log(ADD, key, val);
+		}
+		awaitDurable(seq);
+	}
+
+	/**
+	 * Removes a key and returns once the change is durable.
+	 *
+	 * @throws UncheckedIOException if the log cannot be written
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	@Override
+	public void remove(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			if (!tree.contains(key))
+				return;
+			tree.remove(key);
+			seq = log(REMOVE, key, null);
+		}
+		awaitDurable(seq);
+	}
+
+	/*
+	 * The compound updates run under the lock in one descent of the in-memory tree, log
+	 * the result as a single ADD or REMOVE record, and return once it is durable. Nothing
+	 * is logged if the value is left as it was.
+	 */
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, fn, true);
+	}
+
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, (k, old) -> (old == null)? val : fn.apply(old, val), true);
+	}
+
+	@Override
+	public T putIfAbsent(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? val : old, false);
+	}
+
+	@Override
+	public T replace(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? null : val, false);
+	}
+
+	@Override
+	public T removeAndGet(K key) {
+		return update(key, (k, old) -> null, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T update(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Object[] oldVal = new Object[1];
+		T old, val;
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			val = tree.update(key, (k, o) -> {
+				oldVal[0] = o;
+				return fn.apply(k, o);
+			}, true);
+			old = (T) oldVal[0];
+			if (val == old)
+				return returnNew? val : old;
+			seq = (val == null)? log(REMOVE, key, null) : log(ADD, key, val);
+		}
+		awaitDurable(seq);
+		return returnNew? val : old;
+	}
+
+	@Override
+	public void removeMin() {
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			K min = tree.min();
+			tree.removeMin();
+			seq = log(REMOVE, min, null);
+		}
+		awaitDurable(seq);
+	}
+
+	@Override
+	public void removeMax() {
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			K max = tree.max();
+			tree.removeMax();
+			seq = log(REMOVE, max, null);
+		}
+		awaitDurable(seq);
+	}
+
+	/**
+	 * Removes all entries and returns once the change is durable.
+	 */
+	public void clear() {
+		long seq;
+		synchronized (lock) {
+			ensureOpen();
+			tree.clear();
+			seq = log(CLEAR, null, null);
+		}
+		awaitDurable(seq);
+	}
+
+
+
+	/*
+	 * Appends a record to the pending buffer and returns its sequence number. Called with
+	 * lock held, right after applying the change, so records are logged in the order applied.
+	 */
+	private long log(byte op, K key, T val) {
+		long seq = ++lastSeq;
+		int start = pending.size();
+		try {
+			pendingData.writeLong(0);				// header, filled in below
+			pendingData.writeLong(seq);
+			pendingData.writeByte(op);
+			if (key != null)
+				keyCodec.write(key, pendingData);
+			if (val != null)
+				valCodec.write(val, pendingData);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int length = pending.size() - start - RECORD_HEADER_SIZE;
+		crc.reset();
+		crc.update(pending.array(), start + RECORD_HEADER_SIZE, length);
+		ByteBuffer.wrap(pending.array(), start, RECORD_HEADER_SIZE).putInt(length).putInt((int) crc.getValue());
+		return seq;
+	}
+
+	/*
+	 * Group commit: waits until record seq is on disk, forcing it and everything buffered
+	 * before it with one fsync if no other writer has done so yet.
+	 */
+	private void awaitDurable(long seq) {
+		if (durableSeq >= seq)
+			return;
+		synchronized (logLock) {
+			if (durableSeq >= seq)
+				return;
+			try {
+				flushLog();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		if (checkpointInterval > 0 && seq - checkpointSeq >= checkpointInterval) {
+			try {
+				maybeCheckpoint(seq);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/*
+	 * Writes and forces every pending record. Called with logLock held.
+	 */
+	private void flushLog() throws IOException {
+		long upTo;
+		synchronized (lock) {
+			upTo = lastSeq;
+			swapBuffers();
+		}
+		writeSwapped(upTo);
+	}
+	/*
+	 * Writes and forces the records swapped out of pending, the last of which is upTo. If
+	 * that fails, the segment is cut back to its last good length, so no torn record is
+	 * left for later ones to follow, and the records are put back ahead of any logged
+	 * since, so the next flush retries them in order. Called with logLock held.
+	 */
+	private void writeSwapped(long upTo) throws IOException {
+		if (failed)
+			throw new IOException("Log is unusable after a failed write");
+		if (writing.size() > 0) {
+			long good = -1;
+			try {
+				good = segment.size();
+				ByteBuffer bytes = ByteBuffer.wrap(writing.array(), 0, writing.size());
+				if (failNextWriteAfter >= 0) {
+					bytes.limit(Math.min(bytes.limit(), failNextWriteAfter));
+					failNextWriteAfter = -1;
+					while (bytes.hasRemaining())
+						segment.write(bytes);
+					throw new IOException("Injected log write failure");
+				}
+				while (bytes.hasRemaining())
+					segment.write(bytes);
+				segment.force(false);
+			}
+			catch (IOException e) {
+				requeue(good, e);
+				throw e;
+			}
+			syncs++;
+			writing.reset();
+			durableSeq = upTo;
+			if (segment.size() >= segmentBytes) {
+				segment.close();
+				segment = openSegment(upTo + 1);
+			}
+		}
+		durableSeq = upTo;
+	}
+	private void requeue(long good, IOException cause) {
+		try {
+			if (good >= 0)
+				segment.truncate(good);
+		}
+		catch (IOException e) {
+			cause.addSuppressed(e);
+			failed = true;
+		}
+		synchronized (lock) {
+			writing.write(pending.array(), 0, pending.size());
+			swapBuffers();
+			writing.reset();
+		}
+	}
+	// Swaps the pending and writing buffers. Called with lock held.
+	private void swapBuffers() {
+		RecordBuffer full = pending;
+		pending = writing;
+		writing = full;
+		DataOutputStream fullData = pendingData;
+		pendingData = writingData;
+		writingData = fullData;
+	}
+
+
+
+	/**
+	 * Writes the whole tree to a new checkpoint, then deletes the log segments
+	 * and older checkpoints it replaces. The tree is copied while writers are
+	 * blocked and written out after they resume, so they only wait for the copy.
+	 *
+	 * @throws IOException if the checkpoint cannot be written
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			writeCheckpoint();
+		}
+	}
+	/*
+	 * Takes the automatic checkpoint due after record seq, unless a writer that got the lock
+	 * first has taken one covering seq, as it has for every other writer that was waiting.
+	 */
+	private void maybeCheckpoint(long seq) throws IOException {
+		synchronized (checkpointLock) {
+			if (seq - checkpointSeq >= checkpointInterval)
+				writeCheckpoint();
+		}
+	}
+	// Called with checkpointLock held
+	private void writeCheckpoint() throws IOException {
+		long seq;
+		AVLTree<K, T> snapshot;
+		synchronized (logLock) {
+			ensureOpen();
+			synchronized (lock) {
+				seq = lastSeq;
+				if (seq == checkpointSeq)
+					return;
+				snapshot = tree.copy();
+				swapBuffers();
+			}
+			writeSwapped(seq);
+
+			// Records after seq go to a segment of their own, so the ones before can be deleted
+			segment.close();
+			segment = openSegment(seq + 1);
+		}
+
+		Path tmp = dir.resolve(fileName("checkpoint-", seq, ".tmp"));
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			serializer.write(snapshot, channel);
+			channel.force(true);
+		}
+
+		synchronized (logLock) {
+			Path checkpoint = Files.move(tmp, dir.resolve(fileName("checkpoint-", seq, ".avl")), StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory();
+
+			// Records up to seq are now in the checkpoint, so older files can go
+			for (Path file : list("wal-", ".log")) {
+				if (sequenceOf(file) <= seq)
+					Files.delete(file);
+			}
+			for (Path file : list("checkpoint-", ".avl")) {
+				if (!file.equals(checkpoint))
+					Files.delete(file);
+			}
+			checkpointSeq = seq;
+			checkpoints++;
+		}
+	}
+
+
+
+	/**
+	 * Returns the sequence number of the last change applied to the tree.
+	 *
+	 * @return the last sequence number
+	 */
+	public long lastSequence() {
+		synchronized (lock) {
+			return lastSeq;
+		}
+	}
+
+	/**
+	 * Returns the sequence number covered by the newest checkpoint.
+	 *
+	 * @return the checkpoint sequence number, or 0 if there is none
+	 */
+	public long checkpointSequence() {
+		return checkpointSeq;
+	}
+
+	/**
+	 * Returns the number of log fsyncs so far, for measuring how many records
+	 * group commit puts in each.
+	 *
+	 * @return the number of fsyncs
+	 */
+	public long syncCount() {
+		return syncs;
+	}
+
+	/**
+	 * Returns the number of checkpoints written since the tree was opened.
+	 *
+	 * @return the number of checkpoints
+	 */
+	public long checkpointCount() {
+		return checkpoints;
+	}
+
+
+
+	/**
+	 * Forces any buffered records and closes the log. Every change that has
+	 * returned is already durable.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (logLock) {
+			if (closed)
+				return;
+			try {
+				flushLog();
+			}
+			finally {
+				synchronized (lock) {
+					closed = true;
+				}
+				segment.close();
+			}
+		}
+	}
+
+	private void ensureOpen() {
+		if (closed)
+			throw new IllegalStateException("Tree is closed");
+		if (failed)
+			throw new IllegalStateException("Log is unusable after a failed write");
+	}
+
+
+
+	private FileChannel openSegment(long firstSeq) throws IOException {
+		FileChannel channel = FileChannel.open(dir.resolve(fileName("wal-", firstSeq, ".log")),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		forceDirectory();
+		return channel;
+	}
+
+	// Makes file creations and renames in the directory durable, where the platform allows it
+	private void forceDirectory() {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch (IOException e) {
+			// not supported on this platform
+		}
+	}
+
+	private static String fileName(String prefix, long seq, String suffix) {
+		return prefix + String.format("%016x", seq) + suffix;
+	}
+
+	private static long sequenceOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseUnsignedLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')), 16);
+	}
+
+	// Files with the given prefix and suffix, oldest sequence number first
+	private List<Path> list(String prefix, String suffix) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+			for (Path file : stream)
+				files.add(file);
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+
+
+	/*
+	 * Reusable byte buffer for log records, exposing its array so records can be checksummed
+	 * and written in place.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(1 << 16);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DurableAVLTreeTester {
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("avltree");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		for (Path file : files(""))
+			Files.delete(file);
+		Files.delete(dir);
+	}
+
+	private DurableAVLTree<Long, String> open(long checkpointInterval) throws IOException {
+		return DurableAVLTree.open(dir, AVLTreeSerializer.LONG, AVLTreeSerializer.STRING, checkpointInterval, 4096);
+	}
+
+	@Test
+	public void testRecoversFromLogAndCheckpoints() throws IOException {
+		TreeMap<Long, String> expected = new TreeMap<Long, String>();
+		Random rnd = new Random();
+
+		DurableAVLTree<Long, String> tree = open(700);
+		for (int i = 0; i < 3000; i++) {
+			long key = rnd.nextInt(500);
+			if (rnd.nextInt(3) == 0) {
+				tree.remove(key);
+				expected.remove(key);
+			}
+			else {
+				tree.add(key, "v" + i);
+				expected.put(key, "v" + i);
+			}
+		}
+		assertTrue(tree.checkpointSequence() > 0);
+		tree.close();
+
+		assertEquals(1, files("checkpoint-").size());
+		tree = open(700);
+		assertEquals(expected.size(), tree.size());
+		for (long key = 0; key < 500; key++) {
+			assertEquals(expected.get(key), tree.get(key));
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testCheckpointTruncatesLog() throws IOException {
+		DurableAVLTree<Long, String> tree = open(0);
+		for (long i = 0; i < 2000; i++) {
+			tree.add(i, "value");
+		}
+		assertTrue(files("wal-").size() > 1);
+
+		tree.checkpoint();
+		assertEquals(1, files("wal-").size());
+		assertEquals(0, Files.size(files("wal-").get(0)));
+		assertEquals(2000, tree.checkpointSequence());
+
+		tree.removeMin();
+		tree.clear();
+		tree.add(5L, "five");
+		tree.close();
+
+		tree = open(0);
+		assertEquals(1, tree.size());
+		assertEquals("five", tree.get(5L));
+		assertEquals(2003, tree.lastSequence());
+		tree.close();
+	}
+
+	@Test
+	public void testCompoundUpdatesAreLogged() throws IOException {
+		DurableAVLTree<Long, String> tree = open(0);
+		assertNull(tree.putIfAbsent(1L, "a"));
+		assertEquals("a", tree.putIfAbsent(1L, "b"));
+		assertEquals("ab", tree.merge(1L, "b", String::concat));
+		assertNull(tree.replace(2L, "x"));
+		assertEquals("y", tree.compute(2L, (k, v) -> (v == null)? "y" : null));
+		assertEquals("y", tree.removeAndGet(2L));
+		assertEquals("z", tree.compute(3L, (k, v) -> "z"));
+
+		// Only the five changes are logged
+		assertEquals(5, tree.lastSequence());
+		tree.close();
+
+		tree = open(0);
+		assertEquals(2, tree.size());
+		assertEquals("ab", tree.get(1L));
+		assertNull(tree.get(2L));
+		assertEquals("z", tree.get(3L));
+		tree.close();
+	}
+
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		DurableAVLTree<Long, String> tree = open(0);
+		for (long i = 0; i < 10; i++) {
+			tree.add(i, "v" + i);
+		}
+		tree.close();
+
+		// Cut the last record in half, as a crash during the write would
+		Path segment = files("wal-").get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+
+		tree = open(0);
+		assertEquals(9, tree.size());
+		assertNull(tree.get(9L));
+		tree.add(9L, "again");
+		tree.close();
+
+		tree = open(0);
+		assertEquals(10, tree.size());
+		assertEquals("again", tree.get(9L));
+		tree.close();
+	}
+
+	/*
+	 * A write that fails part way must not leave a torn record for later records to follow,
+	 * or replay would stop at it and drop them.
+	 */
+	@Test
+	public void testFailedWriteIsRetried() throws IOException {
+		DurableAVLTree<Long, String> tree = open(0);
+		for (long i = 0; i < 10; i++) {
+			tree.add(i, "v" + i);
+		}
+		// Fail before any byte, part way through the record, and after it is all written
+		int[] failAfter = { 0, 5, Integer.MAX_VALUE };
+		for (int i = 0; i < failAfter.length; i++) {
+			tree.failNextWriteAfter = failAfter[i];
+			try {
+				tree.add(10L + i, "failed");
+				fail();
+			}
+			catch (UncheckedIOException e) {
+				// expected
+			}
+			tree.add(110L + i, "after");
+		}
+		tree.close();
+
+		tree = open(0);
+		assertEquals(16, tree.size());
+		assertEquals(16, tree.lastSequence());
+		for (long i = 0; i < failAfter.length; i++) {
+			assertEquals("failed", tree.get(10 + i));
+			assertEquals("after", tree.get(110 + i));
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testCheckpointWhileWriting() throws Exception {
+		DurableAVLTree<Long, String> tree = open(0);
+		for (long i = 0; i < 5000; i++) {
+			tree.add(i, "value");
+		}
+		Thread writer = new Thread(() -> {
+			for (long i = 5000; i < 5500; i++)
+				tree.add(i, "later");
+		});
+		writer.start();
+		tree.checkpoint();
+		writer.join();
+		assertTrue(tree.checkpointSequence() >= 5000);
+		tree.close();
+
+		DurableAVLTree<Long, String> reopened = open(0);
+		assertEquals(5500, reopened.size());
+		assertEquals(5500, reopened.lastSequence());
+		assertEquals("later", reopened.get(5499L));
+		reopened.close();
+	}
+
+	/*
+	 * Writers that fall due for a checkpoint while another writer is taking one must not take
+	 * one each once it finishes.
+	 */
+	@Test
+	public void testAutomaticCheckpointsDoNotPileUp() throws Exception {
+		DurableAVLTree<Long, String> tree = open(1000);
+		Thread[] writers = new Thread[16];
+		for (int t = 0; t < writers.length; t++) {
+			long base = t * 10000L;
+			writers[t] = new Thread(() -> {
+				for (long i = 0; i < 2000; i++)
+					tree.add(base + i, "w");
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+
+		// Each checkpoint covers at least the interval's worth of new records
+		assertTrue(tree.checkpointCount() > 0);
+		assertTrue(tree.checkpointCount() <= 32000 / 1000);
+		assertTrue(tree.checkpointSequence() > 32000 - 2 * 1000);
+		tree.close();
+
+		DurableAVLTree<Long, String> reopened = open(1000);
+		assertEquals(32000, reopened.size());
+		reopened.close();
+	}
+
+	@Test
+	public void testGroupCommitSharesSyncs() throws Exception {
+		DurableAVLTree<Long, String> tree = open(0);
+		Thread[] writers = new Thread[8];
+		for (int t = 0; t < writers.length; t++) {
+			long base = t * 1000L;
+			writers[t] = new Thread(() -> {
+				for (long i = 0; i < 200; i++)
+					tree.add(base + i, "w");
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+
+		assertEquals(1600, tree.size());
+		assertTrue(tree.syncCount() <= 1600);
+		tree.close();
+
+		DurableAVLTree<Long, String> reopened = open(0);
+		assertEquals(1600, reopened.size());
+		reopened.close();
+	}
+
+	private List<Path> files(String prefix) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+			for (Path file : stream)
+				files.add(file);
+		}
+		return files;
+	}
+
+}
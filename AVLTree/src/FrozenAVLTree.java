@@ -0,0 +1,336 @@
+/*
+ * A read-only binary search tree laid out in van Emde Boas order, made by AVLTree.freeze().
+ *
+ * The entries form a perfectly balanced tree (each node is the middle entry of its key range)
+ * stored in flat arrays. Nodes are numbered in van Emde Boas order: the top half of the levels is
+ * laid out recursively first, followed by each subtree hanging below it, also recursively. Any
+ * root-to-leaf path then crosses only O(log(n) / log(B)) blocks of B consecutive nodes, for
+ * every block size B at once, so a lookup touches far fewer cache lines and pages than in a
+ * tree of heap-allocated nodes, without tuning for a particular cache.
+ *
+ * Child links are int indices into the same arrays. A second array maps each rank to its node, so
+ * select() is O(1) and range iteration walks the entries in key order.
+ *
+ * All updates throw UnsupportedOperationException.
+ */
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+public class FrozenAVLTree<K, T> implements BinarySearchTreeInterface<K, T>, Iterable<Map.Entry<K, T>> {
+
+
+	private static final int NIL = -1;
+
+	private final Object[] keys;		// indexed by node, in van Emde Boas order; node 0 is the root
+	private final Object[] vals;
+	private final int[] left;
+	private final int[] right;
+	private final int[] nodeOfRank;
+	private final int size;
+	private final int height;
+	private final Comparator<? super K> comparator;		// null for natural ordering
+
+	private int next;				// next node number to hand out while building
+
+
+	/*
+	 * Builds the layout from the first n entries of sortedKeys and sortedVals, which must
+	 * be sorted by comparator and distinct.
+	 */
+	FrozenAVLTree(Object[] sortedKeys, Object[] sortedVals, int n, Comparator<? super K> comparator) {
+		this.comparator = comparator;
+		size = n;
+		height = 32 - Integer.numberOfLeadingZeros(n);
+		keys = new Object[n];
+		vals = new Object[n];
+		left = new int[n];
+		right = new int[n];
+		nodeOfRank = new int[n];
+
+		layout(0, n, height);
+		for (int rank = 0; rank < n; rank++) {
+			int node = nodeOfRank[rank];
+			keys[node] = sortedKeys[rank];
+			vals[node] = sortedVals[rank];
+		}
+		link(0, n);
+	}
+
+	/*
+	 * Numbers the top levels of the balanced subtree over ranks [lo, hi) in van Emde Boas
+	 * order: the upper half of the levels first, then each subtree below them left to right.
+	 */
+	private void layout(int lo, int hi, int levels) {
+		if (lo >= hi || levels == 0)
+			return;
+		if (levels == 1) {
+			nodeOfRank[(lo + hi) >>> 1] = next++;
+			return;
+		}
+		int top = levels / 2;
+		layout(lo, hi, top);
+		layoutBelow(lo, hi, top, levels - top);
+	}
+	private void layoutBelow(int lo, int hi, int depth, int levels) {
+		if (lo >= hi)
+			return;
+		if (depth == 0) {
+			layout(lo, hi, levels);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		layoutBelow(lo, mid, depth - 1, levels);
+		layoutBelow(mid + 1, hi, depth - 1, levels);
+	}
+
+	/*
+	 * Fills in the child links of the subtree over ranks [lo, hi) and returns its root.
+	 */
+	private int link(int lo, int hi) {
+		if (lo >= hi)
+			return NIL;
+		int mid = (lo + hi) >>> 1;
+		int node = nodeOfRank[mid];
+		left[node] = link(lo, mid);
+		right[node] = link(mid + 1, hi);
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(K a, Object b) {
+		return (comparator == null)? ((Comparable<? super K>) a).compareTo((K) b) : comparator.compare(a, (K) b);
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int height() {
+		return height;
+	}
+
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(K key) {
+		int node = find(key);
+		return (node == NIL)? null : (T) vals[node];
+	}
+
+	@Override
+	public boolean contains(K key) {
+		return find(key) != NIL;
+	}
+
+	private int find(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		int node = (size == 0)? NIL : 0;
+		while (node != NIL) {
+			int cmp = compare(key, keys[node]);
+			if (cmp < 0)
+				node = left[node];
+			else if (cmp > 0)
+				node = right[node];
+			else
+				return node;
+		}
+		return NIL;
+	}
+
+
+
+	@Override
+	public K min() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return keyOfRank(0);
+	}
+
+	@Override
+	public K max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return keyOfRank(size - 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private K keyOfRank(int rank) {
+		return (K) keys[nodeOfRank[rank]];
+	}
+
+
+
+	/*
+	 * Each node is the middle rank of the range it covers, so ranks fall out of the
+	 * descent without stored subtree sizes.
+	 */
+	@Override
+	public int rank(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		int lo = 0, hi = size;
+		int node = (size == 0)? NIL : 0;
+		while (node != NIL) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(key, keys[node]);
+			if (cmp < 0) {
+				hi = mid;
+				node = left[node];
+			}
+			else if (cmp > 0) {
+				lo = mid + 1;
+				node = right[node];
+			}
+			else
+				return mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public K select(int rank) {
+		if (rank < 0 || rank >= size)
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size);
+		return keyOfRank(rank);
+	}
+
+	@Override
+	public int countRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		if (compare(lo, hi) > 0)
+			return 0;
+		int count = rank(hi) - rank(lo);
+		if (contains(hi))
+			count++;
+		return count;
+	}
+
+	@Override
+	public K median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return keyOfRank((size - 1) / 2);
+	}
+
+
+
+	@Override
+	public void add(K key, T val) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public void remove(K key) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public void removeMin() {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public void removeMax() {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public T putIfAbsent(K key, T val) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public T replace(K key, T val) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+	@Override
+	public T removeAndGet(K key) {
+		throw new UnsupportedOperationException("Tree is frozen");
+	}
+
+
+
+	/**
+	 * Returns an iterator over the entries in ascending key order.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, T>> iterator() {
+		return new RankIterator(0, size);
+	}
+
+	/**
+	 * Returns an iterator over the entries with keys between lo and hi in
+	 * ascending key order.
+	 *
+	 * @param lo the low end of the range
+	 * @param loInclusive whether a key equal to lo is included
+	 * @param hi the high end of the range
+	 * @param hiInclusive whether a key equal to hi is included
+	 * @return an iterator over the range
+	 * @throws IllegalArgumentException if lo or hi is null
+	 */
+	public Iterator<Map.Entry<K, T>> entries(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		int from = rank(lo);
+		if (!loInclusive && contains(lo))
+			from++;
+		int to = rank(hi);
+		if (hiInclusive && contains(hi))
+			to++;
+		return new RankIterator(from, Math.max(from, to));
+	}
+
+	private class RankIterator implements Iterator<Map.Entry<K, T>> {
+		private int rank;
+		private final int end;
+
+		RankIterator(int from, int to) {
+			this.rank = from;
+			this.end = to;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return rank < end;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Map.Entry<K, T> next() {
+			if (rank >= end)
+				throw new NoSuchElementException();
+			int node = nodeOfRank[rank++];
+			return new AbstractMap.SimpleImmutableEntry<K, T>((K) keys[node], (T) vals[node]);
+		}
+	}
+
+}
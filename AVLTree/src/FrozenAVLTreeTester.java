@@ -0,0 +1,88 @@
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class FrozenAVLTreeTester {
+
+	@Test
+	public void testMatchesSourceTree() {
+		Random rnd = new Random();
+		for (int n : new int[] { 0, 1, 2, 3, 7, 8, 100, 5000 }) {
+			AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+			TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+			while (expected.size() < n) {
+				int key = rnd.nextInt(4 * n);
+				tree.add(key, -key);
+				expected.put(key, -key);
+			}
+			FrozenAVLTree<Integer, Integer> frozen = tree.freeze();
+
+			assertEquals(n, frozen.size());
+			assertEquals(n == 0, frozen.isEmpty());
+			assertTrue(frozen.height() <= tree.height());
+			for (int key = -1; key <= 4 * n; key++) {
+				assertEquals(expected.get(key), frozen.get(key));
+				assertEquals(expected.headMap(key).size(), frozen.rank(key));
+			}
+			int rank = 0;
+			for (int key : expected.keySet()) {
+				assertEquals(Integer.valueOf(key), frozen.select(rank++));
+			}
+			if (n > 0) {
+				assertEquals(expected.firstKey(), frozen.min());
+				assertEquals(expected.lastKey(), frozen.max());
+				assertEquals(tree.median(), frozen.median());
+				assertEquals(tree.countRange(n, 3 * n), frozen.countRange(n, 3 * n));
+			}
+		}
+	}
+
+	@Test
+	public void testRangeIteration() {
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		for (int key = 0; key < 1000; key += 2) {
+			tree.add(key, key);
+		}
+		FrozenAVLTree<Integer, Integer> frozen = tree.freeze();
+
+		Iterator<Map.Entry<Integer, Integer>> it = frozen.entries(10, false, 20, true);
+		for (int key = 12; key <= 20; key += 2) {
+			assertEquals(Integer.valueOf(key), it.next().getKey());
+		}
+		assertFalse(it.hasNext());
+
+		int count = 0;
+		for (Map.Entry<Integer, Integer> entry : frozen) {
+			assertEquals(Integer.valueOf(2 * count++), entry.getKey());
+		}
+		assertEquals(500, count);
+		assertFalse(frozen.entries(30, true, 20, true).hasNext());
+	}
+
+	@Test
+	public void testFrozenCopyIsIndependent() {
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		tree.add(1, 1);
+		FrozenAVLTree<Integer, Integer> frozen = tree.freeze();
+		tree.add(2, 2);
+
+		assertEquals(1, frozen.size());
+		assertFalse(frozen.contains(2));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testUpdatesAreRejected() {
+		new AVLTree<Integer, Integer>().freeze().add(1, 1);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testCompoundUpdatesAreRejected() {
+		new AVLTree<Integer, Integer>().freeze().merge(1, 1, Integer::sum);
+	}
+
+}
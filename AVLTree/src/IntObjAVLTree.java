@@ -0,0 +1,417 @@
+/*
+ * An AVL self-balancing binary search tree that maps primitive int keys to object values.
+ * Offers the same operations as BinarySearchTreeInterface without boxing keys.
+ *
+ * Nodes are not objects: each node is an int index into parallel arrays holding its key, value,
+ * children, height and subtree size. Index 0 is a sentinel standing in for null, with height 0
+ * and size 0. Removed slots are chained into a free list (through the left array) and reused.
+ */
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class IntObjAVLTree<V> {
+
+	// Index of the sentinel node that stands in for null
+	private static final int NIL = 0;
+
+	// AVL trees have height at most about 1.44 * log2(n), so this is enough for any tree with an int size
+	private static final int MAX_HEIGHT = 64;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+
+
+	private int[] keys;
+	private Object[] vals;
+	private int[] left;
+	private int[] right;
+	private byte[] height;
+	private int[] size;
+
+	int root;
+	private int next;			// first slot that has never been used
+	private int free;			// head of the free list of removed slots
+
+	// Nodes visited on the way down by add and remove, replayed bottom-up to rebalance
+	private final int[] path = new int[MAX_HEIGHT];
+
+
+	public IntObjAVLTree() {
+		this(DEFAULT_CAPACITY);
+	}
+	public IntObjAVLTree(int initialCapacity) {
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("Capacity is negative");
+		int slots = initialCapacity + 1;
+		keys = new int[slots];
+		vals = new Object[slots];
+		left = new int[slots];
+		right = new int[slots];
+		height = new byte[slots];
+		size = new int[slots];
+		clear();
+	}
+
+
+
+	private int newNode(int key, V val) {
+		int node;
+		if (free != NIL) {
+			node = free;
+			free = left[node];
+		}
+		else {
+			if (next == keys.length)
+				grow();
+			node = next++;
+		}
+		keys[node] = key;
+		vals[node] = val;
+		left[node] = NIL;
+		right[node] = NIL;
+		height[node] = 1;
+		size[node] = 1;
+		return node;
+	}
+	private void freeNode(int node) {
+		vals[node] = null;
+		left[node] = free;
+		free = node;
+	}
+	private void grow() {
+		int capacity = keys.length + (keys.length >> 1) + 1;
+		keys = Arrays.copyOf(keys, capacity);
+		vals = Arrays.copyOf(vals, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		height = Arrays.copyOf(height, capacity);
+		size = Arrays.copyOf(size, capacity);
+	}
+
+
+
+	public boolean isEmpty() {
+		return root == NIL;
+	}
+
+
+
+	public int size() {
+		return size[root];
+	}
+
+
+
+	public int height() {
+		return height[root];
+	}
+
+
+
+	private int find(int key) {
+		int current = root;
+		while (current != NIL) {
+			int k = keys[current];
+			if (key < k)
+				current = left[current];
+			else if (key > k)
+				current = right[current];
+			else
+				return current;
+		}
+		return NIL;
+	}
+
+
+
+	/**
+	 * Returns the value associated with the given key.
+	 *
+	 * @param key the key
+	 * @return the value associated with the given key if the key is in the
+	 *         tree and null if the key is not
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int node = find(key);
+		return (node == NIL)? null : (V) vals[node];
+	}
+
+
+
+	public boolean contains(int key) {
+		return find(key) != NIL;
+	}
+
+
+
+	private int rotateRight(int A) {
+		int B = left[A];
+		int C = right[B];
+
+		right[B] = A;
+		left[A] = C;
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private int rotateLeft(int A) {
+		int B = right[A];
+		int C = left[B];
+
+		left[B] = A;
+		right[A] = C;
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private void update(int node) {
+		height[node] = (byte) (1 + Math.max(height[left[node]], height[right[node]]));
+		size[node] = 1 + size[left[node]] + size[right[node]];
+	}
+	private int getBalance(int node) {
+		return height[left[node]] - height[right[node]];
+	}
+	private int balance(int root) {
+		update(root);
+
+		int balance = getBalance(root);
+
+		if (balance > 1 && getBalance(left[root]) >= 0)                // left-left case
+			return rotateRight(root);
+
+		if (balance < -1 && getBalance(right[root]) <= 0)              // right-right case
+			return rotateLeft(root);
+
+		if (balance > 1 && getBalance(left[root]) < 0) {              // left-right case
+			left[root] = rotateLeft(left[root]);
+			return rotateRight(root);
+		}
+
+		if (balance < -1 && getBalance(right[root]) > 0) {            // right-left case
+			right[root] = rotateRight(right[root]);
+			return rotateLeft(root);
+		}
+
+		return root;
+	}
+	private void rebalancePath(int depth) {
+		while (depth > 0) {
+			int node = path[--depth];
+			replaceChild((depth > 0)? path[depth - 1] : NIL, node, balance(node));
+		}
+	}
+	private void replaceChild(int parent, int oldChild, int newChild) {
+		if (parent == NIL)
+			root = newChild;
+		else if (left[parent] == oldChild)
+			left[parent] = newChild;
+		else
+			right[parent] = newChild;
+	}
+
+
+
+	/**
+	 * Inserts the specified key-value pair into the tree, overwriting
+	 * the old value with the new value if the tree already contains the
+	 * specified key. Deletes the specified key (and its associated value) from
+	 * this tree if the specified value is null.
+	 *
+	 * @param key the key
+	 * @param val the value
+	 */
+	public void add(int key, V val) {
+		if (val == null) {
+			remove(key);
+			return;
+		}
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			int k = keys[current];
+			if (key == k) {
+				vals[current] = val;
+				return;
+			}
+			path[depth++] = current;
+			current = (key < k)? left[current] : right[current];
+		}
+
+		int node = newNode(key, val);
+		if (depth == 0)
+			root = node;
+		else if (key < keys[path[depth - 1]])
+			left[path[depth - 1]] = node;
+		else
+			right[path[depth - 1]] = node;
+
+		rebalancePath(depth);
+	}
+
+
+
+	public void remove(int key) {
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			int k = keys[current];
+			if (key == k)
+				break;
+			path[depth++] = current;
+			current = (key < k)? left[current] : right[current];
+		}
+		if (current == NIL)
+			return;
+
+		int parent = (depth > 0)? path[depth - 1] : NIL;
+		if (left[current] == NIL)									// right child only or leaf case
+			replaceChild(parent, current, right[current]);
+		else if (right[current] == NIL)							// left child only case
+			replaceChild(parent, current, left[current]);
+		else {														// two children case
+			path[depth++] = current;
+			int leftMax = left[current];
+			while (right[leftMax] != NIL) {
+				path[depth++] = leftMax;
+				leftMax = right[leftMax];
+			}
+			keys[current] = keys[leftMax];
+			vals[current] = vals[leftMax];
+			replaceChild(path[depth - 1], leftMax, left[leftMax]);
+			current = leftMax;
+		}
+		freeNode(current);
+
+		rebalancePath(depth);
+	}
+
+
+
+	public void removeMin() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (left[current] != NIL) {
+			path[depth++] = current;
+			current = left[current];
+		}
+		replaceChild((depth > 0)? path[depth - 1] : NIL, current, right[current]);
+		freeNode(current);
+		rebalancePath(depth);
+	}
+
+
+
+	public void removeMax() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (right[current] != NIL) {
+			path[depth++] = current;
+			current = right[current];
+		}
+		replaceChild((depth > 0)? path[depth - 1] : NIL, current, left[current]);
+		freeNode(current);
+		rebalancePath(depth);
+	}
+
+
+
+	public int min() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (left[current] != NIL)
+			current = left[current];
+		return keys[current];
+	}
+
+
+
+	public int max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (right[current] != NIL)
+			current = right[current];
+		return keys[current];
+	}
+
+
+
+	public int rank(int key) {
+		int rank = 0;
+		int current = root;
+		while (current != NIL) {
+			int k = keys[current];
+			if (key < k)
+				current = left[current];
+			else if (key > k) {
+				rank += 1 + size[left[current]];
+				current = right[current];
+			}
+			else
+				return rank + size[left[current]];
+		}
+		return rank;
+	}
+
+
+
+	public int select(int rank) {
+		if (rank < 0 || rank >= size())
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		int current = root;
+		while (true) {
+			int leftSize = size[left[current]];
+			if (rank < leftSize)
+				current = left[current];
+			else if (rank > leftSize) {
+				rank -= leftSize + 1;
+				current = right[current];
+			}
+			else
+				return keys[current];
+		}
+	}
+
+
+
+	public int countRange(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		int count = rank(hi) - rank(lo);
+		if (contains(hi))
+			count++;
+		return count;
+	}
+
+
+
+	public int median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return select((size() - 1) / 2);
+	}
+
+
+
+	/**
+	 * Removes all entries. The node arrays keep their capacity.
+	 */
+	public void clear() {
+		Arrays.fill(vals, null);
+		root = NIL;
+		next = 1;
+		free = NIL;
+	}
+
+}
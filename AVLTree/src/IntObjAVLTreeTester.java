@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class IntObjAVLTreeTester {
+
+	@Test
+	public void testAddGetRemove() {
+		IntObjAVLTree<String> tree = new IntObjAVLTree<String>();
+
+		assertNull(tree.get(1));
+
+		tree.add(1, "a");
+		assertEquals("a", tree.get(1));
+
+		tree.add(1, "b");
+		assertEquals("b", tree.get(1));
+		assertEquals(1, tree.size());
+
+		tree.add(1, null);
+		assertTrue(tree.isEmpty());
+		assertNull(tree.get(1));
+	}
+
+	@Test
+	public void testMatchesTreeMap() {
+		IntObjAVLTree<String> tree = new IntObjAVLTree<String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(500);
+			switch (rnd.nextInt(4)) {
+			case 0:
+			case 1:
+				String word = "v" + rnd.nextInt();
+				tree.add(key, word);
+				expected.put(key, word);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMin();
+					expected.pollFirstEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.get(key), tree.get(key));
+			if (!expected.isEmpty()) {
+				assertEquals(expected.firstKey().intValue(), tree.min());
+				assertEquals(expected.lastKey().intValue(), tree.max());
+				int r = rnd.nextInt(expected.size());
+				assertEquals(r, tree.rank(tree.select(r)));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+import static org.junit.Assert.*;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class LongLongAVLTreeTester {
+
+	@Test
+	public void testAddGetRemove() {
+		LongLongAVLTree tree = new LongLongAVLTree();
+
+		assertTrue(tree.isEmpty());
+		assertEquals(-1, tree.get(1, -1));
+
+		tree.add(1, 10);
+		assertEquals(10, tree.get(1, -1));
+		assertTrue(tree.contains(1));
+
+		tree.add(1, 20);
+		assertEquals(20, tree.get(1, -1));
+		assertEquals(1, tree.size());
+
+		tree.remove(2);
+		assertEquals(1, tree.size());
+
+		tree.remove(1);
+		assertTrue(tree.isEmpty());
+		assertFalse(tree.contains(1));
+	}
+
+	@Test
+	public void testMatchesTreeMap() {
+		LongLongAVLTree tree = new LongLongAVLTree();
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			long key = rnd.nextInt(500) - 250;
+			switch (rnd.nextInt(5)) {
+			case 0:
+			case 1:
+				long val = rnd.nextLong();
+				tree.add(key, val);
+				expected.put(key, val);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			case 3:
+				if (!expected.isEmpty()) {
+					tree.removeMin();
+					expected.pollFirstEntry();
+				}
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMax();
+					expected.pollLastEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.containsKey(key), tree.contains(key));
+			if (expected.containsKey(key))
+				assertEquals(expected.get(key).longValue(), tree.get(key, 0));
+			if (!expected.isEmpty()) {
+				assertEquals(expected.firstKey().longValue(), tree.min());
+				assertEquals(expected.lastKey().longValue(), tree.max());
+			}
+		}
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+	}
+
+	@Test
+	public void testRankAndSelect() {
+		LongLongAVLTree tree = new LongLongAVLTree();
+
+		for (long i = 0; i < 1000; i++) {
+			tree.add(i * 2, i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, tree.rank(i * 2L));
+			assertEquals(i + 1, tree.rank(i * 2L + 1));
+			assertEquals(i * 2L, tree.select(i));
+		}
+		assertEquals(11, tree.countRange(10, 30));
+		assertEquals(0, tree.countRange(30, 10));
+		assertEquals(998, tree.median());
+	}
+
+	@Test
+	public void testClearReusesStorage() {
+		LongLongAVLTree tree = new LongLongAVLTree(4);
+
+		for (int round = 0; round < 3; round++) {
+			for (long i = 0; i < 100; i++) {
+				tree.add(i, -i);
+			}
+			assertEquals(100, tree.size());
+			assertEquals(-99, tree.get(99, 0));
+			tree.clear();
+			assertTrue(tree.isEmpty());
+		}
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testMinOfEmptyTree() {
+		new LongLongAVLTree().min();
+	}
+
+}
@@ -0,0 +1,842 @@
+/*
+ * A persistent AVL self-balancing binary search tree of long keys and long values stored in a
+ * memory-mapped file, so that reopening it is O(1) instead of rebuilding it from source data.
+ *
+ * File layout:
+ *   bytes 0 - 127      two header slots, written alternately by commit()
+ *   bytes 4096 - ...   fixed-width 32 byte node records, mapped in segments as the file grows
+ *
+ * Each header slot holds a magic number, the format version, a commit sequence number, the root
+ * node, the allocation high-water mark and a CRC32 of those fields. Opening the file picks the
+ * valid slot with the highest sequence number.
+ *
+ * Committed nodes are never modified. add and remove copy the nodes on the path they change into
+ * fresh records past the committed high-water mark (copy-on-write), and nodes created since the
+ * last commit are updated in place. commit() forces the new records to disk and only then writes
+ * the other header slot, so a crash at any point leaves the last committed tree intact. Records of
+ * superseded versions are not reused, so the file grows with every change until compact()
+ * rewrites it with only the live records.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class MappedAVLTree implements BinarySearchTreeInterface<Long, Long>, Closeable {
+
+	/**
+	 * When changes are made durable.
+	 */
+	public enum SyncPolicy {
+		/** Every add and remove is committed and forced to disk before it returns. */
+		PER_OPERATION,
+		/** Changes are committed only when commit() or close() is called. */
+		PER_BATCH,
+		/** Changes are committed by the first add or remove after the sync period has elapsed, and by commit() and close(). */
+		PERIODIC
+	}
+
+
+
+	// Header layout
+	private static final long MAGIC = 0x41564c544d415031L;		// "AVLTMAP1"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4096;
+	private static final int SLOT_BYTES = 64;
+	private static final int SLOT_MAGIC = 0;
+	private static final int SLOT_VERSION = 8;
+	private static final int SLOT_SEGMENT_SHIFT = 12;
+	private static final int SLOT_SEQUENCE = 16;
+	private static final int SLOT_ROOT = 24;
+	private static final int SLOT_NEXT = 28;
+	private static final int SLOT_CRC = 32;
+
+	// Node record layout
+	private static final int KEY = 0;
+	private static final int VAL = 8;
+	private static final int LEFT = 16;
+	private static final int RIGHT = 20;
+	private static final int HEIGHT = 24;
+	private static final int SIZE = 28;
+	private static final int NODE_BYTES = 32;
+
+	// Index of the sentinel node that stands in for null
+	private static final int NIL = 0;
+
+	// AVL trees have height at most about 1.44 * log2(n), so this is enough for any tree with an int size
+	private static final int MAX_HEIGHT = 64;
+
+	private static final int DEFAULT_SEGMENT_SHIFT = 20;
+
+
+
+	private final Path file;
+	private FileChannel channel;			// replaced, with the header and segments, by compact()
+	private MappedByteBuffer header;
+	private final int segmentShift;
+	private final int segmentMask;
+	private MappedByteBuffer[] segments;
+	private final SyncPolicy policy;
+	private final long periodNanos;
+
+	private long sequence;			// sequence number of the last commit
+	private int committedRoot;
+	private int committedNext;		// nodes below this index belong to a committed version and are never modified
+	int root;
+	private int next;				// first record that has never been used
+	private long lastCommit;
+	private boolean closed;
+
+	// Nodes visited on the way down by add and remove, and which child was taken at each
+	private final int[] path = new int[MAX_HEIGHT];
+	private final boolean[] wentLeft = new boolean[MAX_HEIGHT];
+
+
+
+	/**
+	 * Opens the tree stored in the given file, creating an empty tree if the
+	 * file does not exist or is empty.
+	 *
+	 * @param file the file holding the tree
+	 * @param policy when changes are made durable
+	 * @return the tree as of its last commit
+	 * @throws IOException if the file cannot be mapped or does not hold a valid tree
+	 */
+	public static MappedAVLTree open(Path file, SyncPolicy policy) throws IOException {
+		return open(file, policy, 1000);
+	}
+	/**
+	 * Opens the tree stored in the given file, creating an empty tree if the
+	 * file does not exist or is empty.
+	 *
+	 * @param file the file holding the tree
+	 * @param policy when changes are made durable
+	 * @param periodMillis the sync period for SyncPolicy.PERIODIC
+	 * @return the tree as of its last commit
+	 * @throws IOException if the file cannot be mapped or does not hold a valid tree
+	 */
+	public static MappedAVLTree open(Path file, SyncPolicy policy, long periodMillis) throws IOException {
+		return open(file, policy, periodMillis, DEFAULT_SEGMENT_SHIFT);
+	}
+	// For tests: segmentShift sets the size of the segments a new file grows by
+	static MappedAVLTree open(Path file, SyncPolicy policy, long periodMillis, int segmentShift) throws IOException {
+		if (policy == null)
+			throw new IllegalArgumentException("Sync policy is null");
+		if (periodMillis < 0)
+			throw new IllegalArgumentException("Sync period is negative");
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new MappedAVLTree(file, channel, policy, TimeUnit.MILLISECONDS.toNanos(periodMillis), segmentShift);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private MappedAVLTree(Path file, FileChannel channel, SyncPolicy policy, long periodNanos, int newSegmentShift) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.policy = policy;
+		this.periodNanos = periodNanos;
+		boolean created = channel.size() == 0;
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+
+		if (created) {
+			segmentShift = newSegmentShift;
+			sequence = 0;
+			committedRoot = NIL;
+			committedNext = 1;
+			writeSlot(0);
+			header.force();
+		}
+		else {
+			int slot = newestValidSlot();
+			if (slot < 0)
+				throw new IOException("File does not hold a valid tree header");
+			int base = slot * SLOT_BYTES;
+			if (header.getInt(base + SLOT_VERSION) != VERSION)
+				throw new IOException("Unsupported tree file version " + header.getInt(base + SLOT_VERSION));
+			segmentShift = header.getInt(base + SLOT_SEGMENT_SHIFT);
+			sequence = header.getLong(base + SLOT_SEQUENCE);
+			committedRoot = header.getInt(base + SLOT_ROOT);
+			committedNext = header.getInt(base + SLOT_NEXT);
+		}
+		segmentMask = (1 << segmentShift) - 1;
+		segments = new MappedByteBuffer[4];
+		root = committedRoot;
+		next = committedNext;
+		lastCommit = System.nanoTime();
+	}
+
+
+
+	private int newestValidSlot() {
+		int newest = -1;
+		long newestSequence = -1;
+		for (int slot = 0; slot < 2; slot++) {
+			int base = slot * SLOT_BYTES;
+			if (header.getLong(base + SLOT_MAGIC) != MAGIC)
+				continue;
+			if (header.getInt(base + SLOT_CRC) != slotChecksum(base))
+				continue;
+			long slotSequence = header.getLong(base + SLOT_SEQUENCE);
+			if (slotSequence > newestSequence) {
+				newest = slot;
+				newestSequence = slotSequence;
+			}
+		}
+		return newest;
+	}
+	private void writeSlot(int slot) {
+		int base = slot * SLOT_BYTES;
+		header.putLong(base + SLOT_MAGIC, MAGIC);
+		header.putInt(base + SLOT_VERSION, VERSION);
+		header.putInt(base + SLOT_SEGMENT_SHIFT, segmentShift);
+		header.putLong(base + SLOT_SEQUENCE, sequence);
+		header.putInt(base + SLOT_ROOT, committedRoot);
+		header.putInt(base + SLOT_NEXT, committedNext);
+		header.putInt(base + SLOT_CRC, slotChecksum(base));
+	}
+	private int slotChecksum(int base) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < SLOT_CRC; i++)
+			crc.update(header.get(base + i));
+		return (int) crc.getValue();
+	}
+
+
+
+	private MappedByteBuffer segment(int node) {
+		int index = node >>> segmentShift;
+		if (index >= segments.length)
+			segments = Arrays.copyOf(segments, Math.max(segments.length * 2, index + 1));
+		MappedByteBuffer segment = segments[index];
+		if (segment == null) {
+			long position = HEADER_BYTES + ((long) index << segmentShift) * NODE_BYTES;
+			long length = (long) NODE_BYTES << segmentShift;
+			try {
+				segment = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not map tree file", e);
+			}
+			segments[index] = segment;
+		}
+		return segment;
+	}
+	private int offset(int node) {
+		return (node & segmentMask) * NODE_BYTES;
+	}
+
+	private long key(int node) {
+		return segment(node).getLong(offset(node) + KEY);
+	}
+	private long val(int node) {
+		return segment(node).getLong(offset(node) + VAL);
+	}
+	private int left(int node) {
+		return segment(node).getInt(offset(node) + LEFT);
+	}
+	private int right(int node) {
+		return segment(node).getInt(offset(node) + RIGHT);
+	}
+	private int height(int node) {
+		return segment(node).getInt(offset(node) + HEIGHT);
+	}
+	private int size(int node) {
+		return segment(node).getInt(offset(node) + SIZE);
+	}
+	private void setKey(int node, long key) {
+		segment(node).putLong(offset(node) + KEY, key);
+	}
+	private void setVal(int node, long val) {
+		segment(node).putLong(offset(node) + VAL, val);
+	}
+	private void setLeft(int node, int child) {
+		segment(node).putInt(offset(node) + LEFT, child);
+	}
+	private void setRight(int node, int child) {
+		segment(node).putInt(offset(node) + RIGHT, child);
+	}
+
+
+
+	private int allocate() {
+		if (next == Integer.MAX_VALUE)
+			throw new IllegalStateException("Tree file is full");
+		return next++;
+	}
+	private int newNode(long key, long val) {
+		int node = allocate();
+		ByteBuffer segment = segment(node);
+		int offset = offset(node);
+		segment.putLong(offset + KEY, key);
+		segment.putLong(offset + VAL, val);
+		segment.putInt(offset + LEFT, NIL);
+		segment.putInt(offset + RIGHT, NIL);
+		segment.putInt(offset + HEIGHT, 1);
+		segment.putInt(offset + SIZE, 1);
+		return node;
+	}
+	/*
+	 * Returns a node that may be modified in place: the node itself if it was created
+	 * since the last commit, or else a fresh copy of it.
+	 */
+	private int mutable(int node) {
+		if (node >= committedNext)
+			return node;
+		int copy = allocate();
+		ByteBuffer from = segment(node);
+		ByteBuffer to = segment(copy);
+		int fromOffset = offset(node);
+		int toOffset = offset(copy);
+		for (int i = 0; i < NODE_BYTES; i += 8)
+			to.putLong(toOffset + i, from.getLong(fromOffset + i));
+		return copy;
+	}
+	private void ensureOpen() {
+		if (closed)
+			throw new IllegalStateException("Tree is closed");
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		ensureOpen();
+		return root == NIL;
+	}
+
+
+
+	@Override
+	public int size() {
+		ensureOpen();
+		return size(root);
+	}
+
+
+
+	@Override
+	public int height() {
+		ensureOpen();
+		return height(root);
+	}
+
+
+
+	private int find(long key) {
+		int current = root;
+		while (current != NIL) {
+			long k = key(current);
+			if (key < k)
+				current = left(current);
+			else if (key > k)
+				current = right(current);
+			else
+				return current;
+		}
+		return NIL;
+	}
+
+
+
+	@Override
+	public Long get(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		int node = find(key);
+		return (node == NIL)? null : val(node);
+	}
+
+
+
+	@Override
+	public boolean contains(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		return find(key) != NIL;
+	}
+
+
+
+	// Rotations expect A to be mutable already and copy the child that moves up
+	private int rotateRight(int A) {
+		int B = mutable(left(A));
+		int C = right(B);
+
+		setRight(B, A);
+		setLeft(A, C);
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private int rotateLeft(int A) {
+		int B = mutable(right(A));
+		int C = left(B);
+
+		setLeft(B, A);
+		setRight(A, C);
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private void update(int node) {
+		ByteBuffer segment = segment(node);
+		int offset = offset(node);
+		int left = segment.getInt(offset + LEFT);
+		int right = segment.getInt(offset + RIGHT);
+		segment.putInt(offset + HEIGHT, 1 + Math.max(height(left), height(right)));
+		segment.putInt(offset + SIZE, 1 + size(left) + size(right));
+	}
+	private int getBalance(int node) {
+		return height(left(node)) - height(right(node));
+	}
+	private int balance(int root) {
+		update(root);
+
+		int balance = getBalance(root);
+
+		if (balance > 1 && getBalance(left(root)) >= 0)                // left-left case
+			return rotateRight(root);
+
+		if (balance < -1 && getBalance(right(root)) <= 0)              // right-right case
+			return rotateLeft(root);
+
+		if (balance > 1 && getBalance(left(root)) < 0) {              // left-right case
+			setLeft(root, rotateLeft(mutable(left(root))));
+			return rotateRight(root);
+		}
+
+		if (balance < -1 && getBalance(right(root)) > 0) {            // right-left case
+			setRight(root, rotateRight(mutable(right(root))));
+			return rotateLeft(root);
+		}
+
+		return root;
+	}
+	/*
+	 * Copies the first depth entries of path bottom-up, hanging child off the deepest
+	 * one and rebalancing each in turn, and makes the result the new root.
+	 */
+	private void rebuildPath(int depth, int child) {
+		while (depth > 0) {
+			depth--;
+			int node = mutable(path[depth]);
+			if (wentLeft[depth])
+				setLeft(node, child);
+			else
+				setRight(node, child);
+			child = balance(node);
+		}
+		root = child;
+	}
+
+
+
+	@Override
+	public void add(Long key, Long val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (val == null) {
+			remove(key);
+			return;
+		}
+		ensureOpen();
+		long k = key;
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			long currentKey = key(current);
+			if (k == currentKey) {
+				if (val(current) != val) {
+					int node = mutable(current);
+					setVal(node, val);
+					rebuildPath(depth, node);
+					maybeCommit();
+				}
+				return;
+			}
+			path[depth] = current;
+			wentLeft[depth++] = k < currentKey;
+			current = (k < currentKey)? left(current) : right(current);
+		}
+
+		rebuildPath(depth, newNode(k, val));
+		maybeCommit();
+	}
+
+
+
+	@Override
+	public void remove(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		long k = key;
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			long currentKey = key(current);
+			if (k == currentKey)
+				break;
+			path[depth] = current;
+			wentLeft[depth++] = k < currentKey;
+			current = (k < currentKey)? left(current) : right(current);
+		}
+		if (current == NIL)
+			return;
+
+		if (left(current) == NIL)									// right child only or leaf case
+			rebuildPath(depth, right(current));
+		else if (right(current) == NIL)							// left child only case
+			rebuildPath(depth, left(current));
+		else {														// two children case
+			int target = mutable(current);
+			path[depth] = target;
+			wentLeft[depth++] = true;
+			int leftMax = left(current);
+			while (right(leftMax) != NIL) {
+				path[depth] = leftMax;
+				wentLeft[depth++] = false;
+				leftMax = right(leftMax);
+			}
+			setKey(target, key(leftMax));
+			setVal(target, val(leftMax));
+			rebuildPath(depth, left(leftMax));
+		}
+		maybeCommit();
+	}
+
+
+
+	@Override
+	public void removeMin() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (left(current) != NIL) {
+			path[depth] = current;
+			wentLeft[depth++] = true;
+			current = left(current);
+		}
+		rebuildPath(depth, right(current));
+		maybeCommit();
+	}
+
+
+
+	@Override
+	public void removeMax() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (right(current) != NIL) {
+			path[depth] = current;
+			wentLeft[depth++] = false;
+			current = right(current);
+		}
+		rebuildPath(depth, left(current));
+		maybeCommit();
+	}
+
+
+
+	@Override
+	public Long min() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (left(current) != NIL)
+			current = left(current);
+		return key(current);
+	}
+
+
+
+	@Override
+	public Long max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (right(current) != NIL)
+			current = right(current);
+		return key(current);
+	}
+
+
+
+	@Override
+	public int rank(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		return rank((long) key);
+	}
+	private int rank(long key) {
+		int rank = 0;
+		int current = root;
+		while (current != NIL) {
+			long k = key(current);
+			if (key < k)
+				current = left(current);
+			else if (key > k) {
+				rank += 1 + size(left(current));
+				current = right(current);
+			}
+			else
+				return rank + size(left(current));
+		}
+		return rank;
+	}
+
+
+
+	@Override
+	public Long select(int rank) {
+		if (rank < 0 || rank >= size())
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		int current = root;
+		while (true) {
+			int leftSize = size(left(current));
+			if (rank < leftSize)
+				current = left(current);
+			else if (rank > leftSize) {
+				rank -= leftSize + 1;
+				current = right(current);
+			}
+			else
+				return key(current);
+		}
+	}
+
+
+
+	@Override
+	public int countRange(Long lo, Long hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		if (lo > hi)
+			return 0;
+		int count = rank((long) hi) - rank((long) lo);
+		if (find(hi) != NIL)
+			count++;
+		return count;
+	}
+
+
+
+	@Override
+	public Long median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return select((size() - 1) / 2);
+	}
+
+
+
+	private void maybeCommit() {
+		if (policy == SyncPolicy.PER_OPERATION
+				|| (policy == SyncPolicy.PERIODIC && System.nanoTime() - lastCommit >= periodNanos))
+			commit();
+	}
+
+	/**
+	 * Makes all changes since the last commit durable. The new node records are
+	 * forced to disk first, and then the header slot not holding the previous
+	 * commit is overwritten with the new root and forced.
+	 *
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	public void commit() {
+		ensureOpen();
+		lastCommit = System.nanoTime();
+		if (root == committedRoot && next == committedNext)
+			return;
+		writeCommit();
+	}
+	private void writeCommit() {
+		if (next > committedNext) {
+			for (int i = committedNext >>> segmentShift; i <= (next - 1) >>> segmentShift; i++)
+				segment(i << segmentShift).force();
+		}
+		sequence++;
+		committedRoot = root;
+		committedNext = next;
+		writeSlot((int) (sequence & 1));
+		header.force();
+	}
+
+	/**
+	 * Discards all changes since the last commit.
+	 *
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	public void rollback() {
+		ensureOpen();
+		root = committedRoot;
+		next = committedNext;
+	}
+
+	/**
+	 * Returns the sequence number of the last commit, which grows by one with
+	 * every commit that changed the tree.
+	 *
+	 * @return the sequence number of the last commit
+	 */
+	public long commitSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Removes all entries. The cleared tree is committed according to the sync
+	 * policy like any other change. Space in the file is not reclaimed until
+	 * compact() is called.
+	 */
+	public void clear() {
+		ensureOpen();
+		root = NIL;
+		maybeCommit();
+	}
+
+
+
+	/**
+	 * Returns the number of node records written to the file, live or superseded,
+	 * for deciding when to compact it.
+	 *
+	 * @return the number of records used
+	 */
+	public int recordCount() {
+		return next - 1;
+	}
+
+	/**
+	 * Rewrites the file with only the records of the current tree, reclaiming those
+	 * of superseded versions. The tree is written balanced to a new file beside this
+	 * one, forced, and renamed over this file, so a crash leaves either the old file
+	 * or the compacted one. Pending changes are committed with it.
+	 *
+	 * @throws IOException if the new file cannot be written or renamed, in which
+	 *         case the tree and its file are unchanged
+	 * @throws IllegalStateException if the tree is closed
+	 */
+	public void compact() throws IOException {
+		ensureOpen();
+		Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+		FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		MappedAVLTree copy;
+		try {
+			copy = new MappedAVLTree(tmp, target, policy, periodNanos, segmentShift);
+			copy.root = copy.copyBalanced(new InOrder(this), size(root));
+			copy.sequence = sequence;
+			copy.writeCommit();
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException | RuntimeException e) {
+			target.close();
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		FileChannel old = channel;
+		channel = target;
+		header = copy.header;
+		segments = copy.segments;
+		sequence = copy.sequence;
+		root = committedRoot = copy.root;
+		next = committedNext = copy.next;
+		lastCommit = copy.lastCommit;
+		forceDirectory();
+		old.close();
+	}
+	/*
+	 * Builds a balanced tree of the next n nodes of source, copied into fresh records, and
+	 * returns its root.
+	 */
+	private int copyBalanced(InOrder source, int n) {
+		if (n == 0)
+			return NIL;
+		int left = copyBalanced(source, n / 2);
+		int from = source.next();
+		int node = newNode(source.tree.key(from), source.tree.val(from));
+		setLeft(node, left);
+		setRight(node, copyBalanced(source, n - n / 2 - 1));
+		update(node);
+		return node;
+	}
+	private void forceDirectory() {
+		try (FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			dir.force(true);
+		}
+		catch (IOException e) {
+			// not supported on this platform
+		}
+	}
+
+	/*
+	 * Walks the nodes of a tree in key order.
+	 */
+	private static class InOrder {
+		final MappedAVLTree tree;
+		final int[] stack = new int[MAX_HEIGHT];
+		int depth;
+		int current;
+
+		InOrder(MappedAVLTree tree) {
+			this.tree = tree;
+			current = tree.root;
+		}
+
+		int next() {
+			while (current != NIL) {
+				stack[depth++] = current;
+				current = tree.left(current);
+			}
+			int node = stack[--depth];
+			current = tree.right(node);
+			return node;
+		}
+	}
+
+
+
+	/**
+	 * Commits any pending changes and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			commit();
+		}
+		finally {
+			closed = true;
+			Arrays.fill(segments, null);
+			channel.close();
+		}
+	}
+
+}
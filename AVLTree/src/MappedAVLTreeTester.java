@@ -0,0 +1,219 @@
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedAVLTreeTester {
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = Files.createTempFile("avltree", ".map");
+		Files.delete(file);
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		Random rnd = new Random();
+
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		assertTrue(tree.isEmpty());
+		for (int i = 0; i < 5000; i++) {
+			long key = rnd.nextInt(2000);
+			if (rnd.nextInt(3) == 0) {
+				tree.remove(key);
+				expected.remove(key);
+			}
+			else {
+				tree.add(key, (long) i);
+				expected.put(key, (long) i);
+			}
+			if (i % 100 == 0)
+				tree.commit();
+		}
+		tree.close();
+
+		tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		assertEquals(expected.size(), tree.size());
+		for (long key = 0; key < 2000; key++) {
+			assertEquals(expected.get(key), tree.get(key));
+		}
+		assertEquals(expected.firstKey(), tree.min());
+		assertEquals(expected.lastKey(), tree.max());
+		tree.close();
+	}
+
+	@Test
+	public void testRollback() throws IOException {
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		for (long i = 0; i < 100; i++) {
+			tree.add(i, i);
+		}
+		tree.commit();
+
+		for (long i = 0; i < 50; i++) {
+			tree.remove(i);
+		}
+		tree.add(7L, 70L);
+		assertEquals(51, tree.size());
+
+		tree.rollback();
+		assertEquals(100, tree.size());
+		assertEquals(Long.valueOf(7), tree.get(7L));
+		tree.close();
+	}
+
+	@Test
+	public void testPerOperationPolicyCommitsEveryChange() throws IOException {
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_OPERATION);
+		for (long i = 0; i < 10; i++) {
+			tree.add(i, i);
+			assertEquals(i + 1, tree.commitSequence());
+		}
+		tree.add(3L, 3L);
+		assertEquals(10, tree.commitSequence());
+		tree.close();
+	}
+
+	/*
+	 * Every committed change leaves superseded records behind, so under a workload of steady
+	 * size the file keeps growing unless it is compacted, and stays put if it is.
+	 */
+	@Test
+	public void testCompactionBoundsFileSize() throws IOException {
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_OPERATION, 0, 8);
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		Random rnd = new Random(1);
+		for (long i = 0; i < 500; i++) {
+			tree.add(i, i);
+			expected.put(i, i);
+		}
+		long uncompacted = Files.size(file);
+		long compacted = -1;
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 2000; i++) {
+				long key = rnd.nextInt(600);
+				if (rnd.nextBoolean()) {
+					tree.add(key, (long) i);
+					expected.put(key, (long) i);
+				}
+				else {
+					tree.remove(key);
+					expected.remove(key);
+				}
+			}
+			assertTrue(Files.size(file) > uncompacted);
+			long sequence = tree.commitSequence();
+			tree.compact();
+			assertEquals(sequence + 1, tree.commitSequence());
+			assertEquals(expected.size(), tree.recordCount());
+			if (compacted < 0)
+				compacted = Files.size(file);
+			assertEquals(compacted, Files.size(file));
+			uncompacted = compacted;
+		}
+		assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".compact")));
+		assertTrue(tree.height() <= 1 + Math.ceil(Math.log(tree.size() + 1) / Math.log(2)));
+		tree.add(-1L, -1L);
+		tree.close();
+
+		tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		expected.put(-1L, -1L);
+		assertEquals(expected.size(), tree.size());
+		for (long key : expected.keySet()) {
+			assertEquals(expected.get(key), tree.get(key));
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testTornHeaderFallsBackToPreviousCommit() throws IOException {
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		tree.add(1L, 1L);
+		tree.commit();
+		tree.add(2L, 2L);
+		tree.commit();
+		long sequence = tree.commitSequence();
+		tree.close();
+
+		// Scribble over the root field of the newest header slot, as a torn write would
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), (sequence & 1) * 64 + 24);
+		}
+
+		tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		assertEquals(sequence - 1, tree.commitSequence());
+		assertTrue(tree.contains(1L));
+		assertFalse(tree.contains(2L));
+		tree.close();
+	}
+
+	@Test
+	public void testRecoversAfterWriterIsKilled() throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				MappedAVLTreeTester.class.getName(), file.toString());
+		builder.redirectErrorStream(true);
+		Process writer = builder.start();
+		try {
+			BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream()));
+			String line;
+			while ((line = out.readLine()) != null && !line.equals("writing"))
+				;
+			assertEquals("writing", line);
+		}
+		finally {
+			writer.destroyForcibly();
+			writer.waitFor(10, TimeUnit.SECONDS);
+		}
+
+		MappedAVLTree tree = MappedAVLTree.open(file, MappedAVLTree.SyncPolicy.PER_BATCH);
+		assertEquals(1000, tree.size());
+		for (long i = 0; i < 1000; i++) {
+			assertEquals(Long.valueOf(-i), tree.get(i));
+		}
+		assertEquals(Long.valueOf(999), tree.max());
+		tree.close();
+	}
+
+	/*
+	 * Writer process for testRecoversAfterWriterIsKilled: commits one batch, then keeps
+	 * changing the tree without committing until it is killed.
+	 */
+	public static void main(String[] args) throws IOException {
+		MappedAVLTree tree = MappedAVLTree.open(new File(args[0]).toPath(), MappedAVLTree.SyncPolicy.PER_BATCH);
+		for (long i = 0; i < 1000; i++) {
+			tree.add(i, -i);
+		}
+		tree.commit();
+
+		for (long i = 0; ; i++) {
+			tree.add(1000 + i, i);
+			tree.remove(i % 1000);
+			if (i == 10000)
+				System.out.println("writing");
+		}
+	}
+
+}
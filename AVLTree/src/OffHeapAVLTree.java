@@ -0,0 +1,561 @@
+/*
+ * An AVL self-balancing binary search tree of long keys and long values whose nodes live outside
+ * the Java heap, so the garbage collector never has to trace them however large the tree grows.
+ *
+ * Nodes are fixed-width 32 byte records in an arena of direct ByteBuffer chunks. A node is
+ * addressed by an int index (chunk number in the high bits, record within the chunk in the low
+ * bits), and children are stored as indices. Index 0 is a sentinel standing in for null, with
+ * height 0 and size 0. Removed records are chained into a free list (through the left field) and
+ * reused. The arena grows a chunk at a time and is released by close().
+ */
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class OffHeapAVLTree implements BinarySearchTreeInterface<Long, Long>, Closeable {
+
+	// Node record layout
+	private static final int KEY = 0;
+	private static final int VAL = 8;
+	private static final int LEFT = 16;
+	private static final int RIGHT = 20;
+	private static final int HEIGHT = 24;
+	private static final int SIZE = 28;
+	private static final int NODE_BYTES = 32;
+
+	// Index of the sentinel node that stands in for null
+	private static final int NIL = 0;
+
+	// AVL trees have height at most about 1.44 * log2(n), so this is enough for any tree with an int size
+	private static final int MAX_HEIGHT = 64;
+
+	private static final int DEFAULT_CHUNK_SHIFT = 16;
+
+	// The largest shift whose chunk, NODE_BYTES << shift bytes, still fits in a ByteBuffer
+	static final int MAX_CHUNK_SHIFT = Integer.numberOfLeadingZeros(NODE_BYTES) - 1;
+
+
+
+	private final int chunkShift;
+	private final int chunkMask;
+	private ByteBuffer[] chunks;
+	private int chunkCount;
+
+	int root;
+	private int next;			// first record that has never been used
+	private int free;			// head of the free list of removed records
+	private boolean closed;
+
+	// Nodes visited on the way down by add and remove, replayed bottom-up to rebalance
+	private final int[] path = new int[MAX_HEIGHT];
+
+
+	public OffHeapAVLTree() {
+		this(DEFAULT_CHUNK_SHIFT);
+	}
+	/**
+	 * Creates an empty tree whose arena grows in chunks of 2^chunkShift nodes.
+	 *
+	 * @param chunkShift log2 of the number of nodes per chunk, between 1 and 25, where a
+	 *        chunk of 32-byte nodes reaches 1 GiB
+	 * @throws IllegalArgumentException if chunkShift is out of range
+	 */
+	public OffHeapAVLTree(int chunkShift) {
+		if (chunkShift < 1 || chunkShift > MAX_CHUNK_SHIFT)
+			throw new IllegalArgumentException("Chunk shift " + chunkShift + " is out of range");
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1 << chunkShift) - 1;
+		chunks = new ByteBuffer[4];
+		chunkCount = 0;
+		addChunk();
+		next = 1;
+		free = NIL;
+		root = NIL;
+	}
+
+
+
+	private void addChunk() {
+		if (chunkCount == chunks.length)
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		ByteBuffer chunk = ByteBuffer.allocateDirect(NODE_BYTES << chunkShift);
+		chunk.order(ByteOrder.nativeOrder());
+		chunks[chunkCount++] = chunk;
+	}
+	private ByteBuffer chunk(int node) {
+		return chunks[node >>> chunkShift];
+	}
+	private int offset(int node) {
+		return (node & chunkMask) * NODE_BYTES;
+	}
+
+	private long key(int node) {
+		return chunk(node).getLong(offset(node) + KEY);
+	}
+	private long val(int node) {
+		return chunk(node).getLong(offset(node) + VAL);
+	}
+	private int left(int node) {
+		return chunk(node).getInt(offset(node) + LEFT);
+	}
+	private int right(int node) {
+		return chunk(node).getInt(offset(node) + RIGHT);
+	}
+	private int height(int node) {
+		return chunk(node).getInt(offset(node) + HEIGHT);
+	}
+	private int size(int node) {
+		return chunk(node).getInt(offset(node) + SIZE);
+	}
+	private void setKey(int node, long key) {
+		chunk(node).putLong(offset(node) + KEY, key);
+	}
+	private void setVal(int node, long val) {
+		chunk(node).putLong(offset(node) + VAL, val);
+	}
+	private void setLeft(int node, int child) {
+		chunk(node).putInt(offset(node) + LEFT, child);
+	}
+	private void setRight(int node, int child) {
+		chunk(node).putInt(offset(node) + RIGHT, child);
+	}
+
+
+
+	private int newNode(long key, long val) {
+		int node;
+		if (free != NIL) {
+			node = free;
+			free = left(node);
+		}
+		else {
+			if (next == Integer.MAX_VALUE)
+				throw new IllegalStateException("Tree is full");
+			if ((next >>> chunkShift) == chunkCount)
+				addChunk();
+			node = next++;
+		}
+		ByteBuffer chunk = chunk(node);
+		int offset = offset(node);
+		chunk.putLong(offset + KEY, key);
+		chunk.putLong(offset + VAL, val);
+		chunk.putInt(offset + LEFT, NIL);
+		chunk.putInt(offset + RIGHT, NIL);
+		chunk.putInt(offset + HEIGHT, 1);
+		chunk.putInt(offset + SIZE, 1);
+		return node;
+	}
+	private void freeNode(int node) {
+		setLeft(node, free);
+		free = node;
+	}
+	private void ensureOpen() {
+		if (closed)
+			throw new IllegalStateException("Tree is closed");
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		ensureOpen();
+		return root == NIL;
+	}
+
+
+
+	@Override
+	public int size() {
+		ensureOpen();
+		return size(root);
+	}
+
+
+
+	@Override
+	public int height() {
+		ensureOpen();
+		return height(root);
+	}
+
+
+
+	private int find(long key) {
+		int current = root;
+		while (current != NIL) {
+			long k = key(current);
+			if (key < k)
+				current = left(current);
+			else if (key > k)
+				current = right(current);
+			else
+				return current;
+		}
+		return NIL;
+	}
+
+
+
+	@Override
+	public Long get(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		int node = find(key);
+		return (node == NIL)? null : val(node);
+	}
+
+
+
+	@Override
+	public boolean contains(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		return find(key) != NIL;
+	}
+
+
+
+	private int rotateRight(int A) {
+		int B = left(A);
+		int C = right(B);
+
+		setRight(B, A);
+		setLeft(A, C);
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private int rotateLeft(int A) {
+		int B = right(A);
+		int C = left(B);
+
+		setLeft(B, A);
+		setRight(A, C);
+
+		update(A);
+		update(B);
+
+		return B;
+	}
+	private void update(int node) {
+		ByteBuffer chunk = chunk(node);
+		int offset = offset(node);
+		int left = chunk.getInt(offset + LEFT);
+		int right = chunk.getInt(offset + RIGHT);
+		chunk.putInt(offset + HEIGHT, 1 + Math.max(height(left), height(right)));
+		chunk.putInt(offset + SIZE, 1 + size(left) + size(right));
+	}
+	private int getBalance(int node) {
+		return height(left(node)) - height(right(node));
+	}
+	private int balance(int root) {
+		update(root);
+
+		int balance = getBalance(root);
+
+		if (balance > 1 && getBalance(left(root)) >= 0)                // left-left case
+			return rotateRight(root);
+
+		if (balance < -1 && getBalance(right(root)) <= 0)              // right-right case
+			return rotateLeft(root);
+
+		if (balance > 1 && getBalance(left(root)) < 0) {              // left-right case
+			setLeft(root, rotateLeft(left(root)));
+			return rotateRight(root);
+		}
+
+		if (balance < -1 && getBalance(right(root)) > 0) {            // right-left case
+			setRight(root, rotateRight(right(root)));
+			return rotateLeft(root);
+		}
+
+		return root;
+	}
+	private void rebalancePath(int depth) {
+		while (depth > 0) {
+			int node = path[--depth];
+			replaceChild((depth > 0)? path[depth - 1] : NIL, node, balance(node));
+		}
+	}
+	private void replaceChild(int parent, int oldChild, int newChild) {
+		if (parent == NIL)
+			root = newChild;
+		else if (left(parent) == oldChild)
+			setLeft(parent, newChild);
+		else
+			setRight(parent, newChild);
+	}
+
+
+
+	@Override
+	public void add(Long key, Long val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (val == null) {
+			remove(key);
+			return;
+		}
+		ensureOpen();
+		long k = key;
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			long currentKey = key(current);
+			if (k == currentKey) {
+				setVal(current, val);
+				return;
+			}
+			path[depth++] = current;
+			current = (k < currentKey)? left(current) : right(current);
+		}
+
+		int node = newNode(k, val);
+		if (depth == 0)
+			root = node;
+		else if (k < key(path[depth - 1]))
+			setLeft(path[depth - 1], node);
+		else
+			setRight(path[depth - 1], node);
+
+		rebalancePath(depth);
+	}
+
+
+
+	@Override
+	public void remove(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		long k = key;
+		int current = root;
+		int depth = 0;
+		while (current != NIL) {
+			long currentKey = key(current);
+			if (k == currentKey)
+				break;
+			path[depth++] = current;
+			current = (k < currentKey)? left(current) : right(current);
+		}
+		if (current == NIL)
+			return;
+
+		int parent = (depth > 0)? path[depth - 1] : NIL;
+		if (left(current) == NIL)									// right child only or leaf case
+			replaceChild(parent, current, right(current));
+		else if (right(current) == NIL)							// left child only case
+			replaceChild(parent, current, left(current));
+		else {														// two children case
+			path[depth++] = current;
+			int leftMax = left(current);
+			while (right(leftMax) != NIL) {
+				path[depth++] = leftMax;
+				leftMax = right(leftMax);
+			}
+			setKey(current, key(leftMax));
+			setVal(current, val(leftMax));
+			replaceChild(path[depth - 1], leftMax, left(leftMax));
+			current = leftMax;
+		}
+		freeNode(current);
+
+		rebalancePath(depth);
+	}
+
+
+
+	@Override
+	public void removeMin() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (left(current) != NIL) {
+			path[depth++] = current;
+			current = left(current);
+		}
+		replaceChild((depth > 0)? path[depth - 1] : NIL, current, right(current));
+		freeNode(current);
+		rebalancePath(depth);
+	}
+
+
+
+	@Override
+	public void removeMax() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		int depth = 0;
+		while (right(current) != NIL) {
+			path[depth++] = current;
+			current = right(current);
+		}
+		replaceChild((depth > 0)? path[depth - 1] : NIL, current, left(current));
+		freeNode(current);
+		rebalancePath(depth);
+	}
+
+
+
+	@Override
+	public Long min() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (left(current) != NIL)
+			current = left(current);
+		return key(current);
+	}
+
+
+
+	@Override
+	public Long max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		int current = root;
+		while (right(current) != NIL)
+			current = right(current);
+		return key(current);
+	}
+
+
+
+	@Override
+	public int rank(Long key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		return rank((long) key);
+	}
+	private int rank(long key) {
+		int rank = 0;
+		int current = root;
+		while (current != NIL) {
+			long k = key(current);
+			if (key < k)
+				current = left(current);
+			else if (key > k) {
+				rank += 1 + size(left(current));
+				current = right(current);
+			}
+			else
+				return rank + size(left(current));
+		}
+		return rank;
+	}
+
+
+
+	@Override
+	public Long select(int rank) {
+		if (rank < 0 || rank >= size())
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		int current = root;
+		while (true) {
+			int leftSize = size(left(current));
+			if (rank < leftSize)
+				current = left(current);
+			else if (rank > leftSize) {
+				rank -= leftSize + 1;
+				current = right(current);
+			}
+			else
+				return key(current);
+		}
+	}
+
+
+
+	@Override
+	public int countRange(Long lo, Long hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		ensureOpen();
+		if (lo > hi)
+			return 0;
+		int count = rank((long) hi) - rank((long) lo);
+		if (find(hi) != NIL)
+			count++;
+		return count;
+	}
+
+
+
+	@Override
+	public Long median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return select((size() - 1) / 2);
+	}
+
+
+
+	/**
+	 * Removes all entries. The arena keeps the chunks it has already allocated.
+	 */
+	public void clear() {
+		ensureOpen();
+		root = NIL;
+		next = 1;
+		free = NIL;
+	}
+
+
+
+	/**
+	 * Returns the number of node records the arena can hold without growing.
+	 *
+	 * @return the capacity of the arena in nodes
+	 */
+	public long capacity() {
+		return (long) chunkCount << chunkShift;
+	}
+
+	/**
+	 * Returns the number of bytes of off-heap memory reserved by the arena.
+	 *
+	 * @return the size of the arena in bytes
+	 */
+	public long reservedBytes() {
+		return capacity() * NODE_BYTES;
+	}
+
+	/**
+	 * Returns the number of bytes of the arena holding live nodes.
+	 *
+	 * @return the number of bytes used by the nodes of the tree
+	 */
+	public long usedBytes() {
+		if (closed)
+			return 0;
+		return (long) size(root) * NODE_BYTES;
+	}
+
+
+
+	/**
+	 * Releases the arena. Any further operation on the tree throws
+	 * IllegalStateException. The direct buffers are handed back to the
+	 * JVM, which frees their memory once they are collected.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		root = NIL;
+		Arrays.fill(chunks, null);
+		chunkCount = 0;
+	}
+
+}
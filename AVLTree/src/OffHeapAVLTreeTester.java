@@ -0,0 +1,101 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class OffHeapAVLTreeTester {
+
+	@Test
+	public void testMatchesTreeMap() {
+		OffHeapAVLTree tree = new OffHeapAVLTree(4);
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			long key = rnd.nextInt(1000);
+			switch (rnd.nextInt(4)) {
+			case 0:
+			case 1:
+				long val = rnd.nextLong();
+				tree.add(key, val);
+				expected.put(key, val);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMax();
+					expected.pollLastEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.get(key), tree.get(key));
+			if (!expected.isEmpty()) {
+				assertEquals(expected.firstKey(), tree.min());
+				assertEquals(expected.lastKey(), tree.max());
+				int r = rnd.nextInt(expected.size());
+				assertEquals(r, tree.rank(tree.select(r)));
+			}
+		}
+		tree.close();
+	}
+
+	@Test
+	public void testCapacityGrowsByChunks() {
+		OffHeapAVLTree tree = new OffHeapAVLTree(4);
+
+		assertEquals(16, tree.capacity());
+		assertEquals(0, tree.usedBytes());
+
+		for (long i = 0; i < 100; i++) {
+			tree.add(i, i);
+		}
+		assertEquals(112, tree.capacity());
+		assertEquals(112 * 32, tree.reservedBytes());
+		assertEquals(100 * 32, tree.usedBytes());
+
+		tree.clear();
+		assertTrue(tree.isEmpty());
+		assertEquals(112, tree.capacity());
+		tree.close();
+	}
+
+	/*
+	 * The largest chunk shift must give a chunk that fits in a ByteBuffer, and the next one
+	 * must be refused by the constructor rather than overflow in the allocation.
+	 */
+	@Test
+	public void testChunkShiftBounds() {
+		assertEquals(25, OffHeapAVLTree.MAX_CHUNK_SHIFT);
+		assertTrue((32L << OffHeapAVLTree.MAX_CHUNK_SHIFT) <= Integer.MAX_VALUE);
+		assertTrue((32L << (OffHeapAVLTree.MAX_CHUNK_SHIFT + 1)) > Integer.MAX_VALUE);
+		for (int shift : new int[] { 0, OffHeapAVLTree.MAX_CHUNK_SHIFT + 1 }) {
+			try {
+				new OffHeapAVLTree(shift);
+				fail();
+			}
+			catch (IllegalArgumentException e) {
+				assertEquals("Chunk shift " + shift + " is out of range", e.getMessage());
+			}
+		}
+		OffHeapAVLTree tree = new OffHeapAVLTree(1);
+		tree.add(1L, 1L);
+		tree.add(2L, 2L);
+		assertEquals(Long.valueOf(2L), tree.get(2L));
+		tree.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testClosedTreeRejectsOperations() {
+		OffHeapAVLTree tree = new OffHeapAVLTree();
+		tree.add(1L, 1L);
+		tree.close();
+		assertEquals(0, tree.capacity());
+		tree.get(1L);
+	}
+
+}
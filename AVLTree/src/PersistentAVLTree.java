@@ -0,0 +1,616 @@
+/*
+ * A persistent (immutable) AVL self-balancing binary search tree that stores key-value pairs.
+ *
+ * Updates never modify an existing tree. with() and without() copy the nodes on the path from
+ * the changed node up to the root and return a new tree that shares every other node with the
+ * old one, so each version costs O(log(n)) new nodes and old versions stay valid forever.
+ * snapshot() is O(1).
+ *
+ * For batches of updates, asTransient() returns a mutable Transient view. It copies a shared
+ * node the first time it touches it and then updates its own copies in place, skipping the
+ * repeated path copying of the persistent operations. Ownership is tracked with an edit token
+ * stored in each node, as in Clojure's transient collections.
+ */
+
+import java.util.NoSuchElementException;
+
+public final class PersistentAVLTree<K extends Comparable<K>, T> {
+
+
+	static final class Node<K, T> {
+		Node<K, T> left, right;
+		K key;
+		T val;
+		int height;
+		int size;
+		final Object edit;		// token of the transient that may modify this node in place, or null
+
+		Node(K key, T val, Object edit) {
+			this.key = key;
+			this.val = val;
+			this.edit = edit;
+			height = 1;
+			size = 1;
+		}
+
+		Node(Node<K, T> other, Object edit) {
+			this.left = other.left;
+			this.right = other.right;
+			this.key = other.key;
+			this.val = other.val;
+			this.height = other.height;
+			this.size = other.size;
+			this.edit = edit;
+		}
+	}
+
+
+
+	private static final PersistentAVLTree<?, ?> EMPTY = new PersistentAVLTree<>(null);
+
+	final Node<K, T> root;
+
+
+	private PersistentAVLTree(Node<K, T> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the empty tree.
+	 *
+	 * @return the empty tree
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K extends Comparable<K>, T> PersistentAVLTree<K, T> empty() {
+		return (PersistentAVLTree<K, T>) EMPTY;
+	}
+	private static <K extends Comparable<K>, T> PersistentAVLTree<K, T> of(Node<K, T> root) {
+		return (root == null)? PersistentAVLTree.<K, T>empty() : new PersistentAVLTree<K, T>(root);
+	}
+
+
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	public int size() {
+		return size(root);
+	}
+
+	public int height() {
+		return height(root);
+	}
+
+	public T get(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node<K, T> node = getNode(root, key);
+		return (node == null)? null : node.val;
+	}
+
+	public boolean contains(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return getNode(root, key) != null;
+	}
+
+	public K min() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return minNode(root).key;
+	}
+
+	public K max() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return maxNode(root).key;
+	}
+
+	public int rank(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		return rank(root, key);
+	}
+
+	public K select(int rank) {
+		if (rank < 0 || rank >= size())
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+		return select(root, rank).key;
+	}
+
+	public int countRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		return countRange(root, lo, hi);
+	}
+
+	public K median() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return select(root, (size() - 1) / 2).key;
+	}
+
+
+
+	/**
+	 * Returns a tree with the given key-value pair added, or with the key
+	 * removed if val is null. This tree is not modified.
+	 *
+	 * @param key the key
+	 * @param val the value
+	 * @return the updated tree
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public PersistentAVLTree<K, T> with(K key, T val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		if (val == null)
+			return without(key);
+		Node<K, T> newRoot = add(root, key, val, null);
+		return (newRoot == root)? this : of(newRoot);
+	}
+
+	/**
+	 * Returns a tree with the given key removed. This tree is not modified.
+	 *
+	 * @param key the key
+	 * @return the updated tree
+	 * @throws IllegalArgumentException if key is null
+	 */
+	public PersistentAVLTree<K, T> without(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		Node<K, T> newRoot = remove(root, key, null);
+		return (newRoot == root)? this : of(newRoot);
+	}
+
+	/**
+	 * Returns a tree with the smallest key removed. This tree is not modified.
+	 *
+	 * @return the updated tree
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public PersistentAVLTree<K, T> withoutMin() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return of(removeMin(root, null));
+	}
+
+	/**
+	 * Returns a tree with the largest key removed. This tree is not modified.
+	 *
+	 * @return the updated tree
+	 * @throws NoSuchElementException if the tree is empty
+	 */
+	public PersistentAVLTree<K, T> withoutMax() {
+		if (isEmpty())
+			throw new NoSuchElementException("Tree is empty");
+		return of(removeMax(root, null));
+	}
+
+
+
+	/**
+	 * Returns a snapshot of this tree in O(1). Since the tree is immutable the
+	 * snapshot is the tree itself.
+	 *
+	 * @return this tree
+	 */
+	public PersistentAVLTree<K, T> snapshot() {
+		return this;
+	}
+
+	/**
+	 * Returns a mutable view starting from the contents of this tree, for
+	 * applying a batch of updates without copying a path per update. This tree
+	 * is not affected by changes to the view.
+	 *
+	 * @return a new transient view of this tree
+	 */
+	public Transient<K, T> asTransient() {
+		return new Transient<K, T>(root);
+	}
+
+
+
+	/**
+	 * A mutable view of a PersistentAVLTree. Nodes it has copied belong to it and
+	 * are updated in place. snapshot() hands out the current contents as an
+	 * immutable tree in O(1), after which the view copies nodes again before
+	 * changing them. A transient must not be used by several threads at once.
+	 */
+	public static final class Transient<K extends Comparable<K>, T> implements BinarySearchTreeInterface<K, T> {
+
+		private Node<K, T> root;
+		private Object edit;
+
+		private Transient(Node<K, T> root) {
+			this.root = root;
+			this.edit = new Object();
+		}
+
+		private void ensureEditable() {
+			if (edit == null)
+				throw new IllegalStateException("Transient used after persistent()");
+		}
+
+		/**
+		 * Returns the current contents as an immutable tree in O(1). The transient
+		 * stays usable; nodes it owned so far are now shared and will be copied
+		 * before any further change.
+		 *
+		 * @return the current contents as a persistent tree
+		 */
+		public PersistentAVLTree<K, T> snapshot() {
+			ensureEditable();
+			edit = new Object();
+			return of(root);
+		}
+
+		/**
+		 * Returns the current contents as an immutable tree in O(1) and ends this
+		 * transient. Any further use of it throws IllegalStateException.
+		 *
+		 * @return the current contents as a persistent tree
+		 */
+		public PersistentAVLTree<K, T> persistent() {
+			ensureEditable();
+			edit = null;
+			return of(root);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			ensureEditable();
+			return root == null;
+		}
+
+		@Override
+		public int size() {
+			ensureEditable();
+			return PersistentAVLTree.size(root);
+		}
+
+		@Override
+		public int height() {
+			ensureEditable();
+			return PersistentAVLTree.height(root);
+		}
+
+		@Override
+		public T get(K key) {
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			ensureEditable();
+			Node<K, T> node = getNode(root, key);
+			return (node == null)? null : node.val;
+		}
+
+		@Override
+		public boolean contains(K key) {
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			ensureEditable();
+			return getNode(root, key) != null;
+		}
+
+		@Override
+		public void add(K key, T val) {
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			if (val == null) {
+				remove(key);
+				return;
+			}
+			ensureEditable();
+			root = PersistentAVLTree.add(root, key, val, edit);
+		}
+
+		@Override
+		public void remove(K key) {
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			ensureEditable();
+			root = PersistentAVLTree.remove(root, key, edit);
+		}
+
+		@Override
+		public void removeMin() {
+			if (isEmpty())
+				throw new NoSuchElementException("Tree is empty");
+			root = PersistentAVLTree.removeMin(root, edit);
+		}
+
+		@Override
+		public void removeMax() {
+			if (isEmpty())
+				throw new NoSuchElementException("Tree is empty");
+			root = PersistentAVLTree.removeMax(root, edit);
+		}
+
+		@Override
+		public K min() {
+			if (isEmpty())
+				throw new NoSuchElementException("Tree is empty");
+			return minNode(root).key;
+		}
+
+		@Override
+		public K max() {
+			if (isEmpty())
+				throw new NoSuchElementException("Tree is empty");
+			return maxNode(root).key;
+		}
+
+		@Override
+		public int rank(K key) {
+			if (key == null)
+				throw new IllegalArgumentException("Key is null");
+			ensureEditable();
+			return PersistentAVLTree.rank(root, key);
+		}
+
+		@Override
+		public K select(int rank) {
+			if (rank < 0 || rank >= size())
+				throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + size());
+			return PersistentAVLTree.select(root, rank).key;
+		}
+
+		@Override
+		public int countRange(K lo, K hi) {
+			if (lo == null || hi == null)
+				throw new IllegalArgumentException("Key is null");
+			ensureEditable();
+			return PersistentAVLTree.countRange(root, lo, hi);
+		}
+
+		@Override
+		public K median() {
+			if (isEmpty())
+				throw new NoSuchElementException("Tree is empty");
+			return PersistentAVLTree.select(root, (size() - 1) / 2).key;
+		}
+
+		public void clear() {
+			ensureEditable();
+			root = null;
+		}
+	}
+
+
+
+	/*
+	 * Tree algorithms shared by the persistent and transient forms. Updates take the edit
+	 * token of the caller: null for persistent updates, which copy every node they change.
+	 */
+
+	static int size(Node<?, ?> root) {
+		if (root == null)
+			return 0;
+		return root.size;
+	}
+
+	static int height(Node<?, ?> root) {
+		if (root == null)
+			return 0;
+		return root.height;
+	}
+
+	private static int getBalance(Node<?, ?> root) {
+		if (root == null)
+			return 0;
+		return height(root.left) - height(root.right);
+	}
+
+	static <K extends Comparable<K>, T> Node<K, T> getNode(Node<K, T> root, K key) {
+		Node<K, T> current = root;
+		while (current != null) {
+			int cmp = key.compareTo(current.key);
+			if (cmp < 0)
+				current = current.left;
+			else if (cmp > 0)
+				current = current.right;
+			else
+				return current;
+		}
+		return null;
+	}
+
+	static <K, T> Node<K, T> minNode(Node<K, T> root) {
+		Node<K, T> current = root;
+		while (current.left != null)
+			current = current.left;
+		return current;
+	}
+
+	static <K, T> Node<K, T> maxNode(Node<K, T> root) {
+		Node<K, T> current = root;
+		while (current.right != null)
+			current = current.right;
+		return current;
+	}
+
+	static <K extends Comparable<K>, T> int rank(Node<K, T> root, K key) {
+		int rank = 0;
+		Node<K, T> current = root;
+		while (current != null) {
+			int cmp = key.compareTo(current.key);
+			if (cmp < 0)
+				current = current.left;
+			else if (cmp > 0) {
+				rank += 1 + size(current.left);
+				current = current.right;
+			}
+			else
+				return rank + size(current.left);
+		}
+		return rank;
+	}
+
+	static <K, T> Node<K, T> select(Node<K, T> root, int rank) {
+		Node<K, T> current = root;
+		while (true) {
+			int leftSize = size(current.left);
+			if (rank < leftSize)
+				current = current.left;
+			else if (rank > leftSize) {
+				rank -= leftSize + 1;
+				current = current.right;
+			}
+			else
+				return current;
+		}
+	}
+
+	static <K extends Comparable<K>, T> int countRange(Node<K, T> root, K lo, K hi) {
+		if (lo.compareTo(hi) > 0)
+			return 0;
+		int count = rank(root, hi) - rank(root, lo);
+		if (getNode(root, hi) != null)
+			count++;
+		return count;
+	}
+
+	/*
+	 * Returns node itself if the caller's edit token owns it, or else a copy that it owns.
+	 */
+	private static <K, T> Node<K, T> editable(Node<K, T> node, Object edit) {
+		if (edit != null && node.edit == edit)
+			return node;
+		return new Node<K, T>(node, edit);
+	}
+
+	// Rotations expect A to be editable already and copy the child that moves up
+	private static <K, T> Node<K, T> rotateRight(Node<K, T> A, Object edit) {
+		Node<K, T> B = editable(A.left, edit);
+		Node<K, T> C = B.right;
+
+		B.right = A;
+		A.left = C;
+
+		A.height = 1 + Math.max(height(A.left), height(A.right));
+		A.size = 1 + size(A.left) + size(A.right);
+		B.height = 1 + Math.max(height(B.left), height(B.right));
+		B.size = 1 + size(B.left) + size(B.right);
+
+		return B;
+	}
+	private static <K, T> Node<K, T> rotateLeft(Node<K, T> A, Object edit) {
+		Node<K, T> B = editable(A.right, edit);
+		Node<K, T> C = B.left;
+
+		B.left = A;
+		A.right = C;
+
+		A.height = 1 + Math.max(height(A.left), height(A.right));
+		A.size = 1 + size(A.left) + size(A.right);
+		B.height = 1 + Math.max(height(B.left), height(B.right));
+		B.size = 1 + size(B.left) + size(B.right);
+
+		return B;
+	}
+	private static <K, T> Node<K, T> balance(Node<K, T> root, Object edit) {
+		// Update height and size
+		root.height = 1 + Math.max(height(root.left), height(root.right));
+		root.size = 1 + size(root.left) + size(root.right);
+
+		// Update balance
+		int balance = getBalance(root);
+
+		// Balance if needed
+		if (balance > 1 && getBalance(root.left) >= 0)                // left-left case
+			return rotateRight(root, edit);
+
+		if (balance < -1 && getBalance(root.right) <= 0)              // right-right case
+			return rotateLeft(root, edit);
+
+		if (balance > 1 && getBalance(root.left) < 0) {              // left-right case
+			root.left = rotateLeft(editable(root.left, edit), edit);
+			return rotateRight(root, edit);
+		}
+
+		if (balance < -1 && getBalance(root.right) > 0) {            // right-left case
+			root.right = rotateRight(editable(root.right, edit), edit);
+			return rotateLeft(root, edit);
+		}
+
+		return root;
+	}
+
+	/*
+	 * The update algorithms return the subtree unchanged (the same node) when the update
+	 * has no effect, so unchanged paths are never copied. A node the caller owns may come
+	 * back as the same node yet have been updated in place, so its parent is always rebalanced.
+	 */
+	private static boolean unchanged(Node<?, ?> child, Node<?, ?> oldChild, Object edit) {
+		return child == oldChild && (child == null || edit == null || child.edit != edit);
+	}
+
+	static <K extends Comparable<K>, T> Node<K, T> add(Node<K, T> root, K key, T val, Object edit) {
+		if (root == null)
+			return new Node<K, T>(key, val, edit);
+		int cmp = key.compareTo(root.key);
+		if (cmp == 0) {
+			if (root.val == val)
+				return root;
+			Node<K, T> node = editable(root, edit);
+			node.val = val;
+			return node;
+		}
+		Node<K, T> child = add((cmp < 0)? root.left : root.right, key, val, edit);
+		if (unchanged(child, (cmp < 0)? root.left : root.right, edit))
+			return root;
+		Node<K, T> node = editable(root, edit);
+		if (cmp < 0)
+			node.left = child;
+		else
+			node.right = child;
+		return balance(node, edit);
+	}
+
+	static <K extends Comparable<K>, T> Node<K, T> remove(Node<K, T> root, K key, Object edit) {
+		if (root == null)
+			return null;
+		int cmp = key.compareTo(root.key);
+		if (cmp == 0) {
+			if (root.left == null)									// right child only or leaf case
+				return root.right;
+			if (root.right == null)									// left child only case
+				return root.left;
+			Node<K, T> leftMax = maxNode(root.left);				// two children case
+			Node<K, T> node = editable(root, edit);
+			node.key = leftMax.key;
+			node.val = leftMax.val;
+			node.left = removeMax(root.left, edit);
+			return balance(node, edit);
+		}
+		Node<K, T> child = remove((cmp < 0)? root.left : root.right, key, edit);
+		if (unchanged(child, (cmp < 0)? root.left : root.right, edit))
+			return root;
+		Node<K, T> node = editable(root, edit);
+		if (cmp < 0)
+			node.left = child;
+		else
+			node.right = child;
+		return balance(node, edit);
+	}
+
+	static <K, T> Node<K, T> removeMin(Node<K, T> root, Object edit) {
+		if (root.left == null)
+			return root.right;
+		Node<K, T> node = editable(root, edit);
+		node.left = removeMin(root.left, edit);
+		return balance(node, edit);
+	}
+
+	static <K, T> Node<K, T> removeMax(Node<K, T> root, Object edit) {
+		if (root.right == null)
+			return root.left;
+		Node<K, T> node = editable(root, edit);
+		node.right = removeMax(root.right, edit);
+		return balance(node, edit);
+	}
+
+}
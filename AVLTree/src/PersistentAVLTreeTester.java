@@ -0,0 +1,128 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class PersistentAVLTreeTester {
+
+	@Test
+	public void testOldVersionsAreUnchanged() {
+		List<PersistentAVLTree<Integer, String>> versions = new ArrayList<PersistentAVLTree<Integer, String>>();
+		List<TreeMap<Integer, String>> expected = new ArrayList<TreeMap<Integer, String>>();
+		Random rnd = new Random();
+
+		PersistentAVLTree<Integer, String> tree = PersistentAVLTree.empty();
+		TreeMap<Integer, String> map = new TreeMap<Integer, String>();
+		for (int i = 0; i < 2000; i++) {
+			int key = rnd.nextInt(300);
+			if (rnd.nextInt(3) == 0) {
+				tree = tree.without(key);
+				map.remove(key);
+			}
+			else {
+				tree = tree.with(key, "v" + i);
+				map.put(key, "v" + i);
+			}
+			if (i % 100 == 0) {
+				versions.add(tree);
+				expected.add(new TreeMap<Integer, String>(map));
+			}
+		}
+
+		for (int v = 0; v < versions.size(); v++) {
+			PersistentAVLTree<Integer, String> version = versions.get(v);
+			TreeMap<Integer, String> contents = expected.get(v);
+			assertEquals(contents.size(), version.size());
+			for (int key = 0; key < 300; key++) {
+				assertEquals(contents.get(key), version.get(key));
+			}
+			if (!contents.isEmpty()) {
+				assertEquals(contents.firstKey(), version.min());
+				assertEquals(contents.lastKey(), version.max());
+			}
+		}
+	}
+
+	@Test
+	public void testValuesNeedNotBeComparable() {
+		byte[] bytes = { 1, 2, 3 };
+		PersistentAVLTree<Integer, byte[]> tree = PersistentAVLTree.<Integer, byte[]>empty().with(1, bytes);
+		assertSame(bytes, tree.get(1));
+		assertTrue(tree.without(1).isEmpty());
+	}
+
+	@Test
+	public void testUnchangedUpdatesReturnSameTree() {
+		PersistentAVLTree<Integer, String> tree = PersistentAVLTree.<Integer, String>empty().with(1, "a").with(2, "b");
+
+		assertSame(tree, tree.without(3));
+		assertSame(tree, tree.snapshot());
+		assertTrue(tree.withoutMin().withoutMax().isEmpty());
+	}
+
+	@Test
+	public void testTransientBatch() {
+		PersistentAVLTree<Integer, String> base = PersistentAVLTree.<Integer, String>empty().with(0, "base");
+		PersistentAVLTree.Transient<Integer, String> batch = base.asTransient();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		expected.put(0, "base");
+		Random rnd = new Random();
+
+		for (int i = 0; i < 5000; i++) {
+			int key = rnd.nextInt(1000);
+			if (rnd.nextInt(4) == 0) {
+				batch.remove(key);
+				expected.remove(key);
+			}
+			else {
+				batch.add(key, "t" + i);
+				expected.put(key, "t" + i);
+			}
+		}
+		assertEquals(expected.size(), batch.size());
+
+		PersistentAVLTree<Integer, String> result = batch.persistent();
+		assertEquals(1, base.size());
+		assertEquals("base", base.get(0));
+		assertEquals(expected.size(), result.size());
+		for (int key = 0; key < 1000; key++) {
+			assertEquals(expected.get(key), result.get(key));
+		}
+		assertTrue(result.height() <= 1.45 * Math.log(result.size() + 2) / Math.log(2));
+	}
+
+	@Test
+	public void testTransientSnapshotIsIsolated() {
+		PersistentAVLTree.Transient<Integer, String> writer = PersistentAVLTree.<Integer, String>empty().asTransient();
+		for (int i = 0; i < 100; i++) {
+			writer.add(i, "a");
+		}
+
+		PersistentAVLTree<Integer, String> snapshot = writer.snapshot();
+		for (int i = 0; i < 100; i++) {
+			writer.add(i, "b");
+		}
+		for (int i = 0; i < 50; i++) {
+			writer.remove(i);
+		}
+
+		assertEquals(100, snapshot.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("a", snapshot.get(i));
+		}
+		assertEquals(50, writer.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTransientEndsAfterPersistent() {
+		PersistentAVLTree.Transient<Integer, String> batch = PersistentAVLTree.<Integer, String>empty().asTransient();
+		batch.add(1, "a");
+		batch.persistent();
+		batch.add(2, "b");
+	}
+
+}
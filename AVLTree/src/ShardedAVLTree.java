@@ -0,0 +1,678 @@
+/*
+ * A thread-safe AVL tree partitioned by key range into shards, so writers to different ranges run
+ * in parallel.
+ *
+ * Each shard is an AVLTree covering the keys from its lower bound up to the next shard's, guarded
+ * by its own read-write lock. The shards are kept in an array sorted by lower bound and replaced as
+ * a whole whenever the partition changes, so routing a key is a binary search over a snapshot of
+ * the array and takes no lock. A shard that has been split or merged away is marked retired under
+ * its lock; an operation that locks a retired shard rereads the array and tries again.
+ *
+ * The initial bounds are quantiles of a sample of the keys. After that the partition adapts to the
+ * load: every shard counts its writes, and once a shard has taken CHECK_INTERVAL of them the writer
+ * rebalances. While there are fewer shards than the limit the hottest shard is split at its
+ * median with splitAt(). At the limit, a shard that took more than twice the mean number of writes
+ * since the last check is split, and the coldest adjacent pair is joined with concat() to make
+ * room, so a moving hot spot is followed without growing the shard count. Both are O(log(n)).
+ *
+ * Because the shards cover disjoint ranges in order, min() and max() come from the first and last
+ * non-empty shards, and iteration walks the shards in order, taking a batch of entries at a time
+ * under each shard's read lock. Iterators are weakly consistent, as in ConcurrentSkipListMap: they
+ * never throw ConcurrentModificationException, and may or may not show changes made after they
+ * were created. size(), rank() and the other aggregates add up the shards one at a time and are
+ * weakly consistent in the same way.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+public class ShardedAVLTree<K, T> implements BinarySearchTreeInterface<K, T>, Iterable<Map.Entry<K, T>> {
+
+
+	static final int CHECK_INTERVAL = 1 << 12;		// writes to one shard between rebalancing checks, a power of two
+	static final int MIN_SPLIT_SIZE = 64;			// smallest shard that is split
+	private static final int BATCH = 256;			// entries an iterator copies per lock
+
+	private static final class Shard<K, T> {
+		final K lo;									// smallest key of the shard, or null for the first shard
+		final AVLTree<K, T> tree;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		boolean retired;							// guarded by lock
+		volatile int writes;						// since the last rebalance, written under lock
+
+		Shard(K lo, AVLTree<K, T> tree) {
+			this.lo = lo;
+			this.tree = tree;
+		}
+	}
+
+	private volatile Shard<K, T>[] shards;
+	private final int maxShards;
+	private final Comparator<? super K> comparator;		// null for natural ordering
+	private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+
+	/**
+	 * Creates an empty tree that starts with one shard and splits it as writes
+	 * arrive, up to the given number of shards.
+	 *
+	 * @param maxShards the largest number of shards
+	 * @throws IllegalArgumentException if maxShards is less than 1
+	 */
+	public ShardedAVLTree(int maxShards) {
+		this(maxShards, null, null);
+	}
+
+	/**
+	 * Creates an empty tree with maxShards shards whose bounds are evenly spaced
+	 * quantiles of the sample keys.
+	 *
+	 * @param maxShards the largest number of shards
+	 * @param sample keys drawn from the expected distribution, or null for a single initial shard
+	 * @throws IllegalArgumentException if maxShards is less than 1 or the sample holds a null
+	 */
+	public ShardedAVLTree(int maxShards, Collection<? extends K> sample) {
+		this(maxShards, sample, null);
+	}
+
+	/**
+	 * Creates an empty tree ordered by the given comparator, with maxShards shards
+	 * whose bounds are evenly spaced quantiles of the sample keys.
+	 *
+	 * @param maxShards the largest number of shards
+	 * @param sample keys drawn from the expected distribution, or null for a single initial shard
+	 * @param comparator the ordering of the keys, or null for their natural ordering
+	 * @throws IllegalArgumentException if maxShards is less than 1 or the sample holds a null
+	 */
+	public ShardedAVLTree(int maxShards, Collection<? extends K> sample, Comparator<? super K> comparator) {
+		if (maxShards < 1)
+			throw new IllegalArgumentException("Shard count " + maxShards + " is less than 1");
+		this.maxShards = maxShards;
+		this.comparator = comparator;
+
+		List<K> bounds = new ArrayList<K>();
+		if (sample != null && !sample.isEmpty()) {
+			List<K> sorted = new ArrayList<K>(sample);
+			for (K key : sorted) {
+				if (key == null)
+					throw new IllegalArgumentException("Key is null");
+			}
+			sorted.sort(comparator);
+			for (int i = 1; i < maxShards; i++) {
+				K bound = sorted.get((int) ((long) i * sorted.size() / maxShards));
+				if (bounds.isEmpty() || compare(bound, bounds.get(bounds.size() - 1)) > 0)
+					bounds.add(bound);
+			}
+		}
+		Shard<K, T>[] initial = newArray(bounds.size() + 1);
+		initial[0] = new Shard<K, T>(null, newTree());
+		for (int i = 0; i < bounds.size(); i++)
+			initial[i + 1] = new Shard<K, T>(bounds.get(i), newTree());
+		shards = initial;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, T> Shard<K, T>[] newArray(int length) {
+		return (Shard<K, T>[]) new Shard<?, ?>[length];
+	}
+
+	private AVLTree<K, T> newTree() {
+		return new AVLTree<K, T>(comparator);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(K a, K b) {
+		return (comparator == null)? ((Comparable<? super K>) a).compareTo(b) : comparator.compare(a, b);
+	}
+
+	/*
+	 * Returns the index of the shard covering key in the given array.
+	 */
+	private int indexOf(Shard<K, T>[] array, K key) {
+		int lo = 1, hi = array.length - 1;
+		int index = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, array[mid].lo) >= 0) {
+				index = mid;
+				lo = mid + 1;
+			}
+			else
+				hi = mid - 1;
+		}
+		return index;
+	}
+
+
+
+	/**
+	 * Returns the number of shards the key space is currently split into.
+	 *
+	 * @return the number of shards
+	 */
+	public int shardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the comparator ordering the keys, or null if they are in their
+	 * natural ordering.
+	 *
+	 * @return the comparator, or null
+	 */
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+
+
+	/*
+	 * Runs fn on the live shard covering key, under its read or write lock.
+	 */
+	private <R> R withShard(K key, boolean write, Function<AVLTree<K, T>, R> fn) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		while (true) {
+			Shard<K, T>[] array = shards;
+			Shard<K, T> shard = array[indexOf(array, key)];
+			ReentrantReadWriteLock.ReadLock readLock = shard.lock.readLock();
+			ReentrantReadWriteLock.WriteLock writeLock = shard.lock.writeLock();
+			if (write)
+				writeLock.lock();
+			else
+				readLock.lock();
+			boolean check = false;
+			try {
+				if (shard.retired)
+					continue;
+				R result = fn.apply(shard.tree);
+				if (write)
+					check = (++shard.writes & (CHECK_INTERVAL - 1)) == 0;
+				return result;
+			}
+			finally {
+				if (write)
+					writeLock.unlock();
+				else
+					readLock.unlock();
+				if (check)
+					rebalance();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Returns whether the tree is empty, by checking each shard in turn.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return sumShards(tree -> tree.isEmpty()? 0 : 1, false) == 0;
+	}
+
+	/**
+	 * Returns the sum of the shard sizes, each read under its own lock.
+	 */
+	@Override
+	public int size() {
+		return sumShards(AVLTree::size, false);
+	}
+
+	/**
+	 * Returns the height of the tallest shard.
+	 */
+	@Override
+	public int height() {
+		return sumShards(AVLTree::height, true);
+	}
+
+	/*
+	 * Adds up fn over the shards, or takes the maximum, reading each under its lock and
+	 * starting over if one was retired meanwhile.
+	 */
+	private int sumShards(Function<AVLTree<K, T>, Integer> fn, boolean max) {
+		retry:
+		while (true) {
+			int result = 0;
+			for (Shard<K, T> shard : shards) {
+				shard.lock.readLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					int value = fn.apply(shard.tree);
+					result = max? Math.max(result, value) : result + value;
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			return result;
+		}
+	}
+
+
+
+	@Override
+	public T get(K key) {
+		return withShard(key, false, tree -> tree.get(key));
+	}
+
+	@Override
+	public boolean contains(K key) {
+		return withShard(key, false, tree -> tree.contains(key));
+	}
+
+
+
+	@Override
+	public void add(K key, T val) {
+		withShard(key, true, tree -> {
+			tree.add(key, val);
+			return null;
+		});
+	}
+
+	@Override
+	public void remove(K key) {
+		withShard(key, true, tree -> {
+			tree.remove(key);
+			return null;
+		});
+	}
+
+	/*
+	 * The compound updates are atomic, since each runs in one descent of one shard under
+	 * its write lock.
+	 */
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		return withShard(key, true, tree -> tree.compute(key, fn));
+	}
+
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		return withShard(key, true, tree -> tree.merge(key, val, fn));
+	}
+
+	@Override
+	public T putIfAbsent(K key, T val) {
+		return withShard(key, true, tree -> tree.putIfAbsent(key, val));
+	}
+
+	@Override
+	public T replace(K key, T val) {
+		return withShard(key, true, tree -> tree.replace(key, val));
+	}
+
+	@Override
+	public T removeAndGet(K key) {
+		return withShard(key, true, tree -> tree.removeAndGet(key));
+	}
+
+
+
+	/**
+	 * Removes the smallest key, from the first shard that is not empty.
+	 */
+	@Override
+	public void removeMin() {
+		removeEnd(true);
+	}
+
+	/**
+	 * Removes the largest key, from the last shard that is not empty.
+	 */
+	@Override
+	public void removeMax() {
+		removeEnd(false);
+	}
+
+	private void removeEnd(boolean min) {
+		retry:
+		while (true) {
+			Shard<K, T>[] array = shards;
+			for (int i = 0; i < array.length; i++) {
+				Shard<K, T> shard = array[min? i : array.length - 1 - i];
+				shard.lock.writeLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					if (shard.tree.isEmpty())
+						continue;
+					if (min)
+						shard.tree.removeMin();
+					else
+						shard.tree.removeMax();
+					shard.writes++;
+					return;
+				}
+				finally {
+					shard.lock.writeLock().unlock();
+				}
+			}
+			throw new NoSuchElementException("Tree is empty");
+		}
+	}
+
+	/**
+	 * Removes every key, one shard at a time.
+	 */
+	public void clear() {
+		retry:
+		while (true) {
+			Shard<K, T>[] array = shards;
+			for (Shard<K, T> shard : array) {
+				shard.lock.writeLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					shard.tree.clear();
+				}
+				finally {
+					shard.lock.writeLock().unlock();
+				}
+			}
+			return;
+		}
+	}
+
+
+
+	/**
+	 * Returns the smallest key, the head of the first shard that is not empty.
+	 */
+	@Override
+	public K min() {
+		return end(true);
+	}
+
+	/**
+	 * Returns the largest key, the head of the last shard that is not empty.
+	 */
+	@Override
+	public K max() {
+		return end(false);
+	}
+
+	private K end(boolean min) {
+		retry:
+		while (true) {
+			Shard<K, T>[] array = shards;
+			for (int i = 0; i < array.length; i++) {
+				Shard<K, T> shard = array[min? i : array.length - 1 - i];
+				shard.lock.readLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					if (!shard.tree.isEmpty())
+						return min? shard.tree.min() : shard.tree.max();
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			throw new NoSuchElementException("Tree is empty");
+		}
+	}
+
+
+
+	@Override
+	public int rank(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		retry:
+		while (true) {
+			Shard<K, T>[] array = shards;
+			int index = indexOf(array, key);
+			int rank = 0;
+			for (int i = 0; i <= index; i++) {
+				Shard<K, T> shard = array[i];
+				shard.lock.readLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					rank += (i < index)? shard.tree.size() : shard.tree.rank(key);
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			return rank;
+		}
+	}
+
+	@Override
+	public K select(int rank) {
+		if (rank < 0)
+			throw new IllegalArgumentException("Rank " + rank + " is out of range");
+		retry:
+		while (true) {
+			int remaining = rank;
+			for (Shard<K, T> shard : shards) {
+				shard.lock.readLock().lock();
+				try {
+					if (shard.retired)
+						continue retry;
+					int size = shard.tree.size();
+					if (remaining < size)
+						return shard.tree.select(remaining);
+					remaining -= size;
+				}
+				finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			throw new IllegalArgumentException("Rank " + rank + " is out of range for size " + (rank - remaining));
+		}
+	}
+
+	@Override
+	public int countRange(K lo, K hi) {
+		if (lo == null || hi == null)
+			throw new IllegalArgumentException("Key is null");
+		if (compare(lo, hi) > 0)
+			return 0;
+		int count = rank(hi) - rank(lo);
+		if (contains(hi))
+			count++;
+		return count;
+	}
+
+	@Override
+	public K median() {
+		int size = size();
+		if (size == 0)
+			throw new NoSuchElementException("Tree is empty");
+		return select((size - 1) / 2);
+	}
+
+
+
+	/**
+	 * Returns a weakly consistent iterator over the entries in ascending key order.
+	 * It walks the shards in order, copying up to a batch of entries at a time under
+	 * each shard's read lock, and resumes after the last key it returned, so shards
+	 * split or merged meanwhile are followed. Its remove() removes the last key
+	 * returned from the tree.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, T>> iterator() {
+		return new ShardIterator();
+	}
+
+	private class ShardIterator implements Iterator<Map.Entry<K, T>> {
+		private final List<Map.Entry<K, T>> batch = new ArrayList<Map.Entry<K, T>>(BATCH);
+		private int next;
+		private K lastKey;									// last key copied into a batch
+		private K lastReturned;
+		private boolean exhausted;
+
+		@Override
+		public boolean hasNext() {
+			if (next < batch.size())
+				return true;
+			if (!exhausted)
+				fill();
+			return next < batch.size();
+		}
+
+		@Override
+		public Map.Entry<K, T> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<K, T> entry = batch.get(next++);
+			lastReturned = entry.getKey();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			ShardedAVLTree.this.remove(lastReturned);
+			lastReturned = null;
+		}
+
+		/*
+		 * Copies the next batch, from the shard covering the key after lastKey onwards.
+		 */
+		private void fill() {
+			batch.clear();
+			next = 0;
+			retry:
+			while (true) {
+				Shard<K, T>[] array = shards;
+				for (int i = (lastKey == null)? 0 : indexOf(array, lastKey); i < array.length; i++) {
+					Shard<K, T> shard = array[i];
+					shard.lock.readLock().lock();
+					try {
+						if (shard.retired)
+							continue retry;
+						Iterator<Map.Entry<K, T>> it = shard.tree.entries(lastKey, false, null, false, false);
+						while (it.hasNext() && batch.size() < BATCH)
+							batch.add(it.next());
+					}
+					finally {
+						shard.lock.readLock().unlock();
+					}
+					if (!batch.isEmpty()) {
+						lastKey = batch.get(batch.size() - 1).getKey();
+						return;
+					}
+				}
+				exhausted = true;
+				return;
+			}
+		}
+	}
+
+
+
+	/*
+	 * Adapts the partition to the writes counted since the last call. Runs in one writer
+	 * at a time; others skip it rather than wait.
+	 */
+	void rebalance() {
+		if (!rebalanceLock.tryLock())
+			return;
+		try {
+			Shard<K, T>[] array = shards;
+			long total = 0;
+			int hottest = 0;
+			for (int i = 0; i < array.length; i++) {
+				total += array[i].writes;
+				if (array[i].writes > array[hottest].writes)
+					hottest = i;
+			}
+			double mean = (double) total / array.length;
+
+			// Below the limit keep the counts, so the other busy shards split soon too
+			if (array.length < maxShards) {
+				split(hottest);
+				return;
+			}
+			if (array.length > 1 && array[hottest].writes > 2 * mean) {
+				int coldest = -1;
+				for (int i = 0; i + 1 < array.length; i++) {
+					if (i == hottest || i + 1 == hottest)
+						continue;
+					if (coldest < 0 || array[i].writes + array[i + 1].writes < array[coldest].writes + array[coldest + 1].writes)
+						coldest = i;
+				}
+				if (coldest >= 0 && join(coldest))
+					split((coldest < hottest)? hottest - 1 : hottest);
+			}
+
+			for (Shard<K, T> shard : shards)
+				shard.writes = 0;
+		}
+		finally {
+			rebalanceLock.unlock();
+		}
+	}
+
+	/*
+	 * Splits shard index at its median key. Called under rebalanceLock.
+	 */
+	private boolean split(int index) {
+		Shard<K, T>[] array = shards;
+		Shard<K, T> shard = array[index];
+		shard.lock.writeLock().lock();
+		try {
+			if (shard.tree.size() < MIN_SPLIT_SIZE) {
+				shard.writes = 0;							// let the next hottest shard go first
+				return false;
+			}
+			K median = shard.tree.median();
+			AVLTree<K, T> upper = shard.tree.splitAt(median);
+			Shard<K, T>[] replaced = newArray(array.length + 1);
+			System.arraycopy(array, 0, replaced, 0, index);
+			replaced[index] = new Shard<K, T>(shard.lo, shard.tree);
+			replaced[index + 1] = new Shard<K, T>(median, upper);
+			System.arraycopy(array, index + 1, replaced, index + 2, array.length - index - 1);
+			shards = replaced;
+			shard.retired = true;
+			return true;
+		}
+		finally {
+			shard.lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Joins shards index and index + 1. Called under rebalanceLock.
+	 */
+	private boolean join(int index) {
+		Shard<K, T>[] array = shards;
+		Shard<K, T> left = array[index], right = array[index + 1];
+		left.lock.writeLock().lock();
+		right.lock.writeLock().lock();
+		try {
+			left.tree.concat(right.tree);
+			Shard<K, T>[] replaced = newArray(array.length - 1);
+			System.arraycopy(array, 0, replaced, 0, index);
+			replaced[index] = new Shard<K, T>(left.lo, left.tree);
+			System.arraycopy(array, index + 2, replaced, index + 1, array.length - index - 2);
+			shards = replaced;
+			left.retired = true;
+			right.retired = true;
+			return true;
+		}
+		finally {
+			right.lock.writeLock().unlock();
+			left.lock.writeLock().unlock();
+		}
+	}
+
+}
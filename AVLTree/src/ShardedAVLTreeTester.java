@@ -0,0 +1,201 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class ShardedAVLTreeTester {
+
+	@Test
+	public void testMatchesTreeMap() {
+		ShardedAVLTree<Integer, String> tree = new ShardedAVLTree<Integer, String>(8);
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 100000; i++) {
+			int key = rnd.nextInt(5000);
+			String value = "v" + rnd.nextInt(10);
+			switch (rnd.nextInt(6)) {
+			case 0:
+			case 1:
+				tree.add(key, value);
+				expected.put(key, value);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			case 3:
+				assertEquals(expected.merge(key, value, (a, b) -> a.length() > 8? null : a + b),
+						tree.merge(key, value, (a, b) -> a.length() > 8? null : a + b));
+				break;
+			case 4:
+				assertEquals(expected.remove(key), tree.removeAndGet(key));
+				break;
+			default:
+				if (!expected.isEmpty() && rnd.nextInt(10) == 0) {
+					tree.removeMax();
+					expected.pollLastEntry();
+				}
+			}
+			assertEquals(expected.get(key), tree.get(key));
+		}
+		assertEquals(8, tree.shardCount());
+		assertEquals(expected.size(), tree.size());
+		assertEquals(expected.firstKey(), tree.min());
+		assertEquals(expected.lastKey(), tree.max());
+		assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(tree.iterator()));
+		for (int i = 0; i < 100; i++) {
+			int key = rnd.nextInt(5100) - 50;
+			assertEquals(expected.headMap(key).size(), tree.rank(key));
+			assertEquals(expected.subMap(key, true, key + 300, true).size(), tree.countRange(key, key + 300));
+		}
+		List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+		for (int rank = 0; rank < keys.size(); rank += 37) {
+			assertEquals(keys.get(rank), tree.select(rank));
+		}
+		assertEquals(keys.get((keys.size() - 1) / 2), tree.median());
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+
+		tree.removeMin();
+		expected.pollFirstEntry();
+		assertEquals(expected.firstKey(), tree.min());
+		tree.clear();
+		assertTrue(tree.isEmpty());
+		try {
+			tree.min();
+			fail();
+		}
+		catch (java.util.NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSampledBounds() {
+		List<Integer> sample = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			sample.add(i * 10);
+		}
+		Collections.shuffle(sample);
+		ShardedAVLTree<Integer, Integer> tree = new ShardedAVLTree<Integer, Integer>(10, sample, Collections.reverseOrder());
+		assertEquals(10, tree.shardCount());
+		for (int i = -100; i < 10100; i++) {
+			tree.add(i, i);
+		}
+		assertEquals(Integer.valueOf(10099), tree.min());
+		assertEquals(Integer.valueOf(-100), tree.max());
+		int expected = 10099;
+		for (Map.Entry<Integer, Integer> entry : tree) {
+			assertEquals(expected--, (int) entry.getKey());
+		}
+		assertEquals(-101, expected);
+
+		// A sample with few distinct keys gives fewer shards
+		assertEquals(3, new ShardedAVLTree<Integer, Integer>(10, Arrays.asList(1, 1, 1, 2, 2, 2)).shardCount());
+	}
+
+	/*
+	 * Once every shard is in use, a hot spot moving across the key space makes the tree
+	 * split where the writes go and join cold shards, keeping the shard count fixed.
+	 */
+	@Test
+	public void testFollowsHotSpot() {
+		ShardedAVLTree<Integer, Integer> tree = new ShardedAVLTree<Integer, Integer>(4);
+		Random rnd = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			tree.add(rnd.nextInt(100000), i);
+		}
+		assertEquals(4, tree.shardCount());
+		int size = tree.size();
+
+		for (int i = 0; i < 10 * ShardedAVLTree.CHECK_INTERVAL; i++) {
+			tree.add(rnd.nextInt(1000), i);
+		}
+		assertEquals(4, tree.shardCount());
+		// The hot range [0, 1000) is now spread over at least two shards
+		assertTrue(tree.select(0) < 1000);
+		assertTrue(tree.size() >= size);
+		Iterator<Map.Entry<Integer, Integer>> it = tree.iterator();
+		int last = -1;
+		while (it.hasNext()) {
+			int key = it.next().getKey();
+			assertTrue(key > last);
+			last = key;
+		}
+	}
+
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final ShardedAVLTree<Integer, Integer> tree = new ShardedAVLTree<Integer, Integer>(16);
+		final int writers = 4;
+		final int perWriter = 50000;
+		Thread[] threads = new Thread[writers + 1];
+		for (int w = 0; w < writers; w++) {
+			final int base = w;
+			threads[w] = new Thread(() -> {
+				for (int i = 0; i < perWriter; i++) {
+					tree.add(i * writers + base, i);
+					tree.merge(-1 - base, 1, Integer::sum);
+				}
+			});
+		}
+		// Iterates while shards are split under it; keys must still come out in order
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		threads[writers] = new Thread(() -> {
+			try {
+				for (int round = 0; round < 5; round++) {
+					Integer last = null;
+					for (Map.Entry<Integer, Integer> entry : tree) {
+						assertTrue(last == null || entry.getKey() > last);
+						last = entry.getKey();
+					}
+				}
+			}
+			catch (Throwable t) {
+				failures.add(t);
+			}
+		});
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertTrue(failures.isEmpty());
+		assertEquals(writers * perWriter + writers, tree.size());
+		for (int w = 0; w < writers; w++) {
+			assertEquals(Integer.valueOf(perWriter), tree.get(-1 - w));
+		}
+		assertTrue(tree.shardCount() > 1 && tree.shardCount() <= 16);
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		ShardedAVLTree<Integer, Integer> tree = new ShardedAVLTree<Integer, Integer>(4, Arrays.asList(0, 250, 500, 750));
+		for (int i = 0; i < 1000; i++) {
+			tree.add(i, i);
+		}
+		Iterator<Map.Entry<Integer, Integer>> it = tree.iterator();
+		while (it.hasNext()) {
+			if (it.next().getKey() % 2 == 0)
+				it.remove();
+		}
+		assertEquals(500, tree.size());
+		assertEquals(Integer.valueOf(1), tree.min());
+	}
+
+	private <K, V> List<Map.Entry<K, V>> toList(Iterator<Map.Entry<K, V>> it) {
+		List<Map.Entry<K, V>> list = new ArrayList<Map.Entry<K, V>>();
+		while (it.hasNext())
+			list.add(it.next());
+		return list;
+	}
+
+}
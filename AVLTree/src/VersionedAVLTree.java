@@ -0,0 +1,428 @@
+/*
+ * A thread-safe AVL tree with multi-version concurrency control, built on PersistentAVLTree.
+ *
+ * The current version is an immutable PersistentAVLTree held in an AtomicReference together with
+ * its epoch, a number that goes up by one with every change. A writer path-copies the current
+ * version and publishes the result with compareAndSet, retrying if another writer got there first,
+ * so writers never block each other or readers, and each version shares every unchanged node with
+ * the one before it.
+ *
+ * Point reads simply read the current version. A long scan opens a ReadView instead, which pins the
+ * current epoch and sees that version, unchanged, until the view is closed, however many writes
+ * happen meanwhile. Pinned versions are kept in a table of epochs with a count of the views on
+ * each. When the last view on an old epoch closes, its entry is dropped, and the nodes no other
+ * version shares become unreachable and are reclaimed by the garbage collector. oldestPinnedEpoch()
+ * reports how far back versions are still being kept alive.
+ */
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+public class VersionedAVLTree<K extends Comparable<K>, T> implements BinarySearchTreeInterface<K, T> {
+
+
+	private static final class Version<K extends Comparable<K>, T> {
+		final PersistentAVLTree<K, T> tree;
+		final long epoch;
+		int views;					// open views on this version, guarded by the pinned table
+
+		Version(PersistentAVLTree<K, T> tree, long epoch) {
+			this.tree = tree;
+			this.epoch = epoch;
+		}
+	}
+
+	private final AtomicReference<Version<K, T>> current;
+	private final ConcurrentHashMap<Long, Version<K, T>> pinned = new ConcurrentHashMap<Long, Version<K, T>>();
+
+
+	public VersionedAVLTree() {
+		current = new AtomicReference<Version<K, T>>(new Version<K, T>(PersistentAVLTree.<K, T>empty(), 0));
+	}
+
+
+
+	/*
+	 * Applies change to the current version and publishes the result as the next epoch,
+	 * retrying from the new current version if another writer published first. Returns the
+	 * version the change was applied to.
+	 */
+	private Version<K, T> publish(UnaryOperator<PersistentAVLTree<K, T>> change) {
+		while (true) {
+			Version<K, T> version = current.get();
+			PersistentAVLTree<K, T> tree = change.apply(version.tree);
+			if (tree == version.tree)
+				return version;
+			if (current.compareAndSet(version, new Version<K, T>(tree, version.epoch + 1)))
+				return version;
+		}
+	}
+
+	private PersistentAVLTree<K, T> tree() {
+		return current.get().tree;
+	}
+
+
+
+	@Override
+	public boolean isEmpty() {
+		return tree().isEmpty();
+	}
+
+	@Override
+	public int size() {
+		return tree().size();
+	}
+
+	@Override
+	public int height() {
+		return tree().height();
+	}
+
+	@Override
+	public T get(K key) {
+		return tree().get(key);
+	}
+
+	@Override
+	public boolean contains(K key) {
+		return tree().contains(key);
+	}
+
+	@Override
+	public K min() {
+		return tree().min();
+	}
+
+	@Override
+	public K max() {
+		return tree().max();
+	}
+
+	@Override
+	public int rank(K key) {
+		return tree().rank(key);
+	}
+
+	@Override
+	public K select(int rank) {
+		return tree().select(rank);
+	}
+
+	@Override
+	public int countRange(K lo, K hi) {
+		return tree().countRange(lo, hi);
+	}
+
+	@Override
+	public K median() {
+		return tree().median();
+	}
+
+
+
+	@Override
+	public void add(K key, T val) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		publish(tree -> tree.with(key, val));
+	}
+
+	@Override
+	public void remove(K key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		publish(tree -> tree.without(key));
+	}
+
+	@Override
+	public void removeMin() {
+		publish(tree -> tree.withoutMin());
+	}
+
+	@Override
+	public void removeMax() {
+		publish(tree -> tree.withoutMax());
+	}
+
+	/**
+	 * Removes every key by publishing an empty version.
+	 */
+	public void clear() {
+		publish(tree -> PersistentAVLTree.<K, T>empty());
+	}
+
+
+
+	/*
+	 * The compound updates are atomic: each publishes exactly one version computed from the
+	 * one it read. Under contention the function may be applied more than once, as in
+	 * ConcurrentSkipListMap, so it should have no side effects.
+	 */
+	@Override
+	public T compute(K key, BiFunction<? super K, ? super T, ? extends T> fn) {
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, fn, true);
+	}
+
+	@Override
+	public T merge(K key, T val, BiFunction<? super T, ? super T, ? extends T> fn) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		if (fn == null)
+			throw new IllegalArgumentException("Function is null");
+		return update(key, (k, old) -> (old == null)? val : fn.apply(old, val), true);
+	}
+
+	@Override
+	public T putIfAbsent(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? val : old, false);
+	}
+
+	@Override
+	public T replace(K key, T val) {
+		if (val == null)
+			throw new IllegalArgumentException("Value is null");
+		return update(key, (k, old) -> (old == null)? null : val, false);
+	}
+
+	@Override
+	public T removeAndGet(K key) {
+		return update(key, (k, old) -> null, false);
+	}
+
+	private T update(K key, BiFunction<? super K, ? super T, ? extends T> fn, boolean returnNew) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null");
+		while (true) {
+			Version<K, T> version = current.get();
+			T old = version.tree.get(key);
+			T val = fn.apply(key, old);
+			if (val == old)
+				return returnNew? val : old;
+			PersistentAVLTree<K, T> tree = version.tree.with(key, val);
+			if (current.compareAndSet(version, new Version<K, T>(tree, version.epoch + 1)))
+				return returnNew? val : old;
+		}
+	}
+
+
+
+	/**
+	 * Returns the current version as an immutable tree in O(1). Unlike a ReadView it
+	 * is not pinned, so it does not show up in oldestPinnedEpoch().
+	 *
+	 * @return the current version
+	 */
+	public PersistentAVLTree<K, T> snapshot() {
+		return tree();
+	}
+
+	/**
+	 * Pins the current version and returns a read-only view of it, which stays the
+	 * same however the tree changes until it is closed. Views should be closed, as
+	 * with try-with-resources, so the versions they pin can be reclaimed.
+	 *
+	 * @return a view of the current version
+	 */
+	public ReadView openView() {
+		Version<K, T> version = current.get();
+		pinned.compute(version.epoch, (epoch, pinnedVersion) -> {
+			if (pinnedVersion == null)
+				pinnedVersion = version;
+			pinnedVersion.views++;
+			return pinnedVersion;
+		});
+		return new ReadView(version);
+	}
+	private void unpin(Version<K, T> version) {
+		pinned.computeIfPresent(version.epoch, (epoch, pinnedVersion) -> (--pinnedVersion.views == 0)? null : pinnedVersion);
+	}
+
+	/**
+	 * Returns the epoch of the current version, which is the number of changes
+	 * published so far.
+	 *
+	 * @return the current epoch
+	 */
+	public long currentEpoch() {
+		return current.get().epoch;
+	}
+
+	/**
+	 * Returns the oldest epoch pinned by an open view, or the current epoch if no
+	 * view is open. Every version older than this one can be reclaimed.
+	 *
+	 * @return the oldest pinned epoch
+	 */
+	public long oldestPinnedEpoch() {
+		long oldest = currentEpoch();
+		for (long epoch : pinned.keySet())
+			oldest = Math.min(oldest, epoch);
+		return oldest;
+	}
+
+	/**
+	 * Returns the number of distinct versions pinned by open views.
+	 *
+	 * @return the number of pinned versions
+	 */
+	public int pinnedVersions() {
+		return pinned.size();
+	}
+
+
+
+	/**
+	 * A consistent read-only view of one version of the tree. A view may be used
+	 * by several threads at once; after close() every method throws
+	 * IllegalStateException.
+	 */
+	public final class ReadView implements Iterable<Map.Entry<K, T>>, AutoCloseable {
+		private final Version<K, T> version;
+		private volatile boolean closed;
+
+		private ReadView(Version<K, T> version) {
+			this.version = version;
+		}
+
+		private PersistentAVLTree<K, T> tree() {
+			if (closed)
+				throw new IllegalStateException("View is closed");
+			return version.tree;
+		}
+
+		/**
+		 * Returns the epoch of the version this view sees.
+		 *
+		 * @return the epoch of this view
+		 */
+		public long epoch() {
+			return version.epoch;
+		}
+
+		public boolean isEmpty() {
+			return tree().isEmpty();
+		}
+
+		public int size() {
+			return tree().size();
+		}
+
+		public T get(K key) {
+			return tree().get(key);
+		}
+
+		public boolean contains(K key) {
+			return tree().contains(key);
+		}
+
+		public K min() {
+			return tree().min();
+		}
+
+		public K max() {
+			return tree().max();
+		}
+
+		public int rank(K key) {
+			return tree().rank(key);
+		}
+
+		public K select(int rank) {
+			return tree().select(rank);
+		}
+
+		/**
+		 * Returns an iterator over the entries of this version in ascending key order.
+		 */
+		@Override
+		public Iterator<Map.Entry<K, T>> iterator() {
+			return new NodeIterator(tree().root, null, false, null, false);
+		}
+
+		/**
+		 * Returns an iterator over the entries of this version with keys between lo
+		 * and hi in ascending key order.
+		 *
+		 * @param lo the low end of the range
+		 * @param loInclusive whether a key equal to lo is included
+		 * @param hi the high end of the range
+		 * @param hiInclusive whether a key equal to hi is included
+		 * @return an iterator over the range
+		 * @throws IllegalArgumentException if lo or hi is null
+		 */
+		public Iterator<Map.Entry<K, T>> entries(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+			if (lo == null || hi == null)
+				throw new IllegalArgumentException("Key is null");
+			return new NodeIterator(tree().root, lo, loInclusive, hi, hiInclusive);
+		}
+
+		/**
+		 * Unpins the version this view sees. Closing a view twice has no effect.
+		 */
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			unpin(version);
+		}
+
+		private class NodeIterator implements Iterator<Map.Entry<K, T>> {
+			private final ArrayDeque<PersistentAVLTree.Node<K, T>> stack = new ArrayDeque<PersistentAVLTree.Node<K, T>>();
+			private final K hi;							// null for no upper bound
+			private final boolean hiInclusive;
+
+			NodeIterator(PersistentAVLTree.Node<K, T> root, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+				this.hi = hi;
+				this.hiInclusive = hiInclusive;
+				// Push the path to the first key in range, keeping only nodes at or after it
+				for (PersistentAVLTree.Node<K, T> node = root; node != null; ) {
+					int cmp = (lo == null)? -1 : lo.compareTo(node.key);
+					if (cmp < 0 || (cmp == 0 && loInclusive)) {
+						stack.push(node);
+						node = node.left;
+					}
+					else
+						node = node.right;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				if (stack.isEmpty())
+					return false;
+				if (hi == null)
+					return true;
+				int cmp = stack.peek().key.compareTo(hi);
+				return cmp < 0 || (cmp == 0 && hiInclusive);
+			}
+
+			@Override
+			public Map.Entry<K, T> next() {
+				if (closed)
+					throw new IllegalStateException("View is closed");
+				if (!hasNext())
+					throw new NoSuchElementException();
+				PersistentAVLTree.Node<K, T> node = stack.pop();
+				for (PersistentAVLTree.Node<K, T> child = node.right; child != null; child = child.left)
+					stack.push(child);
+				return new AbstractMap.SimpleImmutableEntry<K, T>(node.key, node.val);
+			}
+		}
+	}
+
+}
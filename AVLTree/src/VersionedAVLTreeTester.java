@@ -0,0 +1,200 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class VersionedAVLTreeTester {
+
+	@Test
+	public void testMatchesTreeMap() {
+		VersionedAVLTree<Integer, String> tree = new VersionedAVLTree<Integer, String>();
+		TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+		Random rnd = new Random();
+
+		for (int i = 0; i < 20000; i++) {
+			int key = rnd.nextInt(500);
+			String value = "v" + rnd.nextInt(10);
+			switch (rnd.nextInt(6)) {
+			case 0:
+			case 1:
+				tree.add(key, value);
+				expected.put(key, value);
+				break;
+			case 2:
+				tree.remove(key);
+				expected.remove(key);
+				break;
+			case 3:
+				assertEquals(expected.merge(key, value, (a, b) -> a.length() > 8? null : a + b),
+						tree.merge(key, value, (a, b) -> a.length() > 8? null : a + b));
+				break;
+			case 4:
+				assertEquals(expected.putIfAbsent(key, value), tree.putIfAbsent(key, value));
+				break;
+			default:
+				if (!expected.isEmpty()) {
+					tree.removeMin();
+					expected.pollFirstEntry();
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			assertEquals(expected.get(key), tree.get(key));
+		}
+		assertEquals(expected.firstKey(), tree.min());
+		assertEquals(expected.lastKey(), tree.max());
+		assertTrue(tree.height() <= 1.45 * Math.log(tree.size() + 2) / Math.log(2));
+		try (VersionedAVLTree<Integer, String>.ReadView view = tree.openView()) {
+			assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), toList(view.iterator()));
+			assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.subMap(100, false, 200, true).entrySet()), toList(view.entries(100, false, 200, true)));
+			assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.subMap(100, true, 200, false).entrySet()), toList(view.entries(100, true, 200, false)));
+		}
+	}
+
+	@Test
+	public void testViewIsStable() {
+		VersionedAVLTree<Integer, Integer> tree = new VersionedAVLTree<Integer, Integer>();
+		for (int i = 0; i < 1000; i++) {
+			tree.add(i, i);
+		}
+		assertEquals(1000, tree.currentEpoch());
+
+		VersionedAVLTree<Integer, Integer>.ReadView view = tree.openView();
+		Iterator<Map.Entry<Integer, Integer>> it = view.iterator();
+		for (int i = 0; i < 500; i++) {
+			assertEquals(Integer.valueOf(i), it.next().getKey());
+		}
+		for (int i = 0; i < 1000; i++) {
+			tree.remove(i);
+			tree.add(i + 1000, i);
+		}
+		for (int i = 500; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), it.next().getKey());
+		}
+		assertFalse(it.hasNext());
+		assertEquals(1000, view.epoch());
+		assertEquals(1000, view.size());
+		assertEquals(Integer.valueOf(999), view.max());
+		assertEquals(Integer.valueOf(1000), tree.min());
+
+		// Nothing changed, so nothing is published
+		tree.remove(5);
+		tree.compute(5, (k, v) -> null);
+		assertEquals(3000, tree.currentEpoch());
+		view.close();
+	}
+
+	@Test
+	public void testPinsAreReleased() {
+		VersionedAVLTree<Integer, Integer> tree = new VersionedAVLTree<Integer, Integer>();
+		tree.add(1, 1);
+		VersionedAVLTree<Integer, Integer>.ReadView first = tree.openView();
+		VersionedAVLTree<Integer, Integer>.ReadView second = tree.openView();
+		tree.add(2, 2);
+		VersionedAVLTree<Integer, Integer>.ReadView third = tree.openView();
+		tree.add(3, 3);
+		assertEquals(2, tree.pinnedVersions());
+		assertEquals(1, tree.oldestPinnedEpoch());
+
+		first.close();
+		first.close();
+		assertEquals(1, tree.oldestPinnedEpoch());
+		second.close();
+		assertEquals(2, tree.oldestPinnedEpoch());
+		third.close();
+		assertEquals(0, tree.pinnedVersions());
+		assertEquals(3, tree.oldestPinnedEpoch());
+
+		try {
+			first.get(1);
+			fail();
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testValuesNeedNotBeComparable() {
+		VersionedAVLTree<Integer, byte[]> tree = new VersionedAVLTree<Integer, byte[]>();
+		byte[] bytes = { 1, 2, 3 };
+		tree.add(1, bytes);
+		VersionedAVLTree<Integer, byte[]>.ReadView view = tree.openView();
+		tree.remove(1);
+		assertSame(bytes, view.get(1));
+		assertNull(tree.get(1));
+		view.close();
+	}
+
+	/*
+	 * Each writer adds its own keys in ascending order, so every version holds a prefix of
+	 * each writer's keys. A scan that saw keys from two different versions would find a gap.
+	 */
+	@Test
+	public void testScansSeeOneVersion() throws InterruptedException {
+		final VersionedAVLTree<Long, Long> tree = new VersionedAVLTree<Long, Long>();
+		final int writers = 4;
+		final int scanners = 4;
+		final long perWriter = 20000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int w = 0; w < writers; w++) {
+			final long base = w * perWriter;
+			threads.add(new Thread(() -> {
+				for (long i = 0; i < perWriter; i++) {
+					tree.add(base + i, i);
+				}
+			}));
+		}
+		for (int s = 0; s < scanners; s++) {
+			threads.add(new Thread(() -> {
+				try {
+					while (!done.get()) {
+						try (VersionedAVLTree<Long, Long>.ReadView view = tree.openView()) {
+							long[] next = new long[writers];
+							int count = 0;
+							for (Map.Entry<Long, Long> entry : view) {
+								int w = (int) (entry.getKey() / perWriter);
+								assertEquals(next[w]++, (long) entry.getValue());
+								count++;
+							}
+							assertEquals(view.size(), count);
+						}
+					}
+				}
+				catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (int w = 0; w < writers; w++)
+			threads.get(w).join();
+		done.set(true);
+		for (Thread thread : threads)
+			thread.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(writers * perWriter, tree.size());
+		assertEquals(0, tree.pinnedVersions());
+	}
+
+	private <K, V> List<Map.Entry<K, V>> toList(Iterator<Map.Entry<K, V>> it) {
+		List<Map.Entry<K, V>> list = new ArrayList<Map.Entry<K, V>>();
+		while (it.hasNext())
+			list.add(it.next());
+		return list;
+	}
+
+}